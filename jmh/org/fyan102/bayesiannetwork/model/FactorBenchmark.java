@@ -0,0 +1,115 @@
+package org.fyan102.bayesiannetwork.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the factor kernels with naive loops. Run with ./gradlew jmh; the vector
+ * kernels are only used when the benchmark JVM gets --add-modules jdk.incubator.vector,
+ * which the jmh task passes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FactorBenchmark {
+    @Param({"64", "4096", "262144"})
+    private int size;
+
+    private double[] a;
+    private double[] b;
+    private double[] out;
+    private Factor left;
+    private Factor right;
+    private FactorKernels scalar;
+    private FactorKernels kernels;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        a = new double[size];
+        b = new double[size];
+        out = new double[size];
+        for (int i = 0; i < size; i++) {
+            a[i] = random.nextDouble();
+            b[i] = random.nextDouble();
+        }
+        // two binary factors sharing their trailing variables, as in a clique tree
+        int vars = Integer.numberOfTrailingZeros(size);
+        left = binary(random, 0, vars);
+        right = binary(random, vars / 2, vars);
+        scalar = FactorKernels.scalar();
+        kernels = FactorKernels.INSTANCE;
+    }
+
+    private static Factor binary(Random random, int from, int to) {
+        int[] vars = new int[to - from];
+        int[] card = new int[vars.length];
+        for (int i = 0; i < vars.length; i++) {
+            vars[i] = from + i;
+            card[i] = 2;
+        }
+        double[] values = new double[1 << vars.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble();
+        }
+        return new Factor(vars, card, values);
+    }
+
+    @Benchmark
+    public double sumNaive() {
+        double sum = 0;
+        for (double value : a) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double sumScalar() {
+        return scalar.sum(a, 0, size);
+    }
+
+    @Benchmark
+    public double sumKernel() {
+        return kernels.sum(a, 0, size);
+    }
+
+    @Benchmark
+    public double[] multiplyNaive() {
+        for (int i = 0; i < size; i++) {
+            out[i] = a[i] * b[i];
+        }
+        return out;
+    }
+
+    @Benchmark
+    public double[] multiplyKernel() {
+        kernels.multiply(a, 0, b, 0, out, 0, size);
+        return out;
+    }
+
+    @Benchmark
+    public Factor product() {
+        return left.product(right);
+    }
+
+    @Benchmark
+    public Factor productSumOut() {
+        return left.product(right).sumOut(0);
+    }
+}
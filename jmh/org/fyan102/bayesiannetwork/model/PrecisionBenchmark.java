@@ -0,0 +1,106 @@
+package org.fyan102.bayesiannetwork.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares junction tree queries with the tables stored in double and in single
+ * precision, on a grid where every node has its left and upper neighbours as parents.
+ * The setup prints the memory of the clique potentials and the largest absolute
+ * difference of any posterior from the double precision result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrecisionBenchmark {
+    @Param({"false", "true"})
+    private boolean singlePrecision;
+
+    @Param({"8"})
+    private int width;
+
+    private Network network;
+    private JunctionTree tree;
+    private Map<Node, Integer> evidence;
+
+    @Setup
+    public void setUp() {
+        network = grid(width, new Random(42));
+        List<Node> nodes = network.getNodes();
+        evidence = new HashMap<>();
+        evidence.put(nodes.get(0), 1);
+        evidence.put(nodes.get(nodes.size() - 1), 0);
+        evidence.put(nodes.get(nodes.size() / 2), 2);
+        Map<Node, double[]> reference = JunctionTree.compile(network).query(evidence);
+
+        network.setSinglePrecision(singlePrecision);
+        tree = JunctionTree.compile(network);
+        double error = 0;
+        for (Map.Entry<Node, double[]> posterior : tree.query(evidence).entrySet()) {
+            double[] expected = reference.get(posterior.getKey());
+            for (int i = 0; i < expected.length; i++) {
+                error = Math.max(error, Math.abs(posterior.getValue()[i] - expected[i]));
+            }
+        }
+        System.out.printf("%npotentials %d bytes, largest error %.3g%n", tree.getPotentialBytes(), error);
+    }
+
+    private static Network grid(int width, Random random) {
+        Network network = new Network();
+        Node[] nodes = new Node[width * width];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node("n" + i);
+            for (int s = 0; s < 3; s++) {
+                nodes[i].addState("s" + s);
+            }
+            if (i % width > 0) {
+                nodes[i].addParent(nodes[i - 1]);
+            }
+            if (i >= width) {
+                nodes[i].addParent(nodes[i - width]);
+            }
+            double[] table = new double[(i == 0 ? 1 : nodes[i].getNumberOfRows()) * 3];
+            for (int r = 0; r < table.length; r += 3) {
+                double sum = 0;
+                for (int s = 0; s < 3; s++) {
+                    table[r + s] = random.nextDouble();
+                    sum += table[r + s];
+                }
+                for (int s = 0; s < 3; s++) {
+                    table[r + s] /= sum;
+                }
+            }
+            if (i == 0) {
+                nodes[i].setBeliefs(table);
+            }
+            else {
+                nodes[i].setProbArray(table);
+            }
+            network.addNode(nodes[i]);
+        }
+        return network;
+    }
+
+    @Benchmark
+    public Map<Node, double[]> query() {
+        return tree.query(evidence);
+    }
+}
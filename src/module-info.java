@@ -3,6 +3,10 @@ module org.fyan102.bayesiannetwork {
     // requires javafx.controls;
     // requires javafx.fxml;
     requires com.google.gson;
+    // Optional: the vector kernels are only loaded when the module is present
+    requires static jdk.incubator.vector;
+    // Optional: off-heap tables fall back to direct buffers without the module
+    requires static jdk.incubator.foreign;
     
     // Open packages for reflection (needed for Gson)
     opens org.fyan102.bayesiannetwork.ui;
@@ -0,0 +1,274 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Junction-tree propagation of many evidence cases at once. A message only depends
+ * on the evidence columns on one side of its separator, so across a data set most
+ * cases send the same message over most separators. Each clique gives every case a
+ * signature made of the findings homed there and the signatures of its incoming
+ * messages, and computes one message per distinct signature, which all cases with
+ * that signature share. Parts of the tree without evidence columns are propagated
+ * once for the whole batch, and only the messages towards the home cliques of the
+ * targets are computed.
+ */
+final class BatchPropagation {
+    private final CliqueTree tree;
+    private final int[] columns;
+    private final int[] targets;
+    private final int[][] homedColumns;
+    private final int[][] homedTargets;
+    private final boolean[] needed;
+    private final boolean[] dependent;
+    private final boolean[] varying;
+    private final double[][] sharedUp;
+    private final double[][] sharedMarginals;
+
+    /**
+     * Constructor of BatchPropagation class
+     *
+     * @param tree    the compiled tree
+     * @param columns the node id of each evidence column
+     * @param targets the node ids to compute posteriors for
+     */
+    BatchPropagation(CliqueTree tree, int[] columns, int[] targets) {
+        tree.buildMaps();
+        this.tree = tree;
+        this.columns = columns;
+        this.targets = targets;
+        int m = tree.getNumberOfCliques();
+        homedColumns = group(columns, m);
+        homedTargets = group(targets, m);
+        dependent = new boolean[m];
+        for (int c = 0; c < m; c++) {
+            dependent[c] = homedColumns[c].length > 0;
+        }
+        for (int i = m - 1; i >= 0; i--) {
+            int c = tree.order[i];
+            if (dependent[c] && tree.parent[c] >= 0) {
+                dependent[tree.parent[c]] = true;
+            }
+        }
+        varying = new boolean[m];
+        for (int c : tree.order) {
+            varying[c] = tree.parent[c] >= 0 ? varying[tree.parent[c]] : dependent[c];
+        }
+        needed = new boolean[m];
+        for (int v : targets) {
+            for (int c = tree.home[v]; c >= 0 && !needed[c]; c = tree.parent[c]) {
+                needed[c] = true;
+            }
+        }
+
+        double[][] potentials = tree.potentials();
+        double[][] beliefs = tree.propagate(potentials, null);
+        sharedUp = new double[m][];
+        for (int i = m - 1; i >= 0; i--) {
+            int c = tree.order[i];
+            if (!dependent[c] && tree.parent[c] >= 0) {
+                tree.collect(c, potentials[c], sharedUp);
+            }
+        }
+        sharedMarginals = new double[targets.length][];
+        for (int t = 0; t < targets.length; t++) {
+            if (!varying[tree.home[targets[t]]]) {
+                sharedMarginals[t] = tree.marginal(beliefs, targets[t]);
+            }
+        }
+    }
+
+    /**
+     * list, for every clique, the positions of the nodes that have it as home clique
+     */
+    private int[][] group(int[] nodes, int m) {
+        int[] count = new int[m];
+        for (int v : nodes) {
+            count[tree.home[v]]++;
+        }
+        int[][] result = new int[m][];
+        for (int c = 0; c < m; c++) {
+            result[c] = new int[count[c]];
+            count[c] = 0;
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            int c = tree.home[nodes[i]];
+            result[c][count[c]++] = i;
+        }
+        return result;
+    }
+
+    /**
+     * compute the posteriors of the targets for every case
+     *
+     * @param evidence one row per case with the observed state of each column, or -1
+     * @return for each target, one posterior row per case
+     */
+    double[][][] run(int[][] evidence) {
+        int n = evidence.length;
+        int m = tree.getNumberOfCliques();
+        int[][] upSignature = new int[m][];
+        List<List<double[]>> upMessages = new ArrayList<>();
+        for (int c = 0; c < m; c++) {
+            upMessages.add(new ArrayList<>());
+        }
+        for (int i = m - 1; i >= 0; i--) {
+            int c = tree.order[i];
+            if (!dependent[c] || tree.parent[c] < 0) {
+                continue;
+            }
+            upSignature[c] = new int[n];
+            Map<Key, Integer> distinct = new HashMap<>();
+            for (int r = 0; r < n; r++) {
+                Key key = signature(c, evidence[r], r, upSignature, null);
+                Integer id = distinct.get(key);
+                if (id == null) {
+                    id = distinct.size();
+                    distinct.put(key, id);
+                    double[] work = incoming(c, evidence[r], r, upSignature, upMessages, null);
+                    double[] message = new double[tree.separatorSize[c]];
+                    int[] map = tree.childMap[c];
+                    for (int e = 0; e < work.length; e++) {
+                        message[map[e]] += work[e];
+                    }
+                    CliqueTree.normalize(message);
+                    upMessages.get(c).add(message);
+                }
+                upSignature[c][r] = id;
+            }
+        }
+
+        double[][][] results = new double[targets.length][n][];
+        for (int t = 0; t < targets.length; t++) {
+            if (sharedMarginals[t] != null) {
+                for (int r = 0; r < n; r++) {
+                    results[t][r] = sharedMarginals[t].clone();
+                }
+            }
+        }
+        int[][] downSignature = new int[m][];
+        List<List<double[]>> downMessages = new ArrayList<>();
+        for (int c = 0; c < m; c++) {
+            downMessages.add(new ArrayList<>());
+        }
+        for (int c : tree.order) {
+            if (!needed[c] || !varying[c]) {
+                continue;
+            }
+            int[] beliefSignature = new int[n];
+            List<double[][]> marginals = new ArrayList<>();
+            Map<Key, Integer> distinct = new HashMap<>();
+            for (int r = 0; r < n; r++) {
+                Key key = signature(c, evidence[r], r, upSignature, downSignature);
+                Integer id = distinct.get(key);
+                if (id == null) {
+                    id = distinct.size();
+                    distinct.put(key, id);
+                    double[] down = tree.parent[c] >= 0 ? downMessages.get(c).get(downSignature[c][r]) : null;
+                    double[] belief = incoming(c, evidence[r], r, upSignature, upMessages, down);
+                    double[][] clique = new double[homedTargets[c].length][];
+                    for (int i = 0; i < clique.length; i++) {
+                        clique[i] = tree.marginal(c, belief, targets[homedTargets[c][i]]);
+                    }
+                    marginals.add(clique);
+                    for (int k : tree.children[c]) {
+                        if (needed[k]) {
+                            downMessages.get(k).add(downMessage(k, belief, r, upSignature, upMessages));
+                        }
+                    }
+                }
+                beliefSignature[r] = id;
+            }
+            for (int k : tree.children[c]) {
+                if (needed[k]) {
+                    downSignature[k] = beliefSignature;
+                }
+            }
+            for (int i = 0; i < homedTargets[c].length; i++) {
+                double[][] rows = results[homedTargets[c][i]];
+                for (int r = 0; r < n; r++) {
+                    rows[r] = marginals.get(beliefSignature[r])[i].clone();
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * describe everything a clique table depends on for one case: the findings homed
+     * in the clique, the upward messages of its children and, if downward signatures
+     * are given, the downward message from its parent
+     */
+    private Key signature(int c, int[] row, int r, int[][] upSignature, int[][] downSignature) {
+        int[] homed = homedColumns[c];
+        int[] children = tree.children[c];
+        int[] values = new int[homed.length + children.length + 1];
+        int i = 0;
+        for (int j : homed) {
+            values[i++] = row[j];
+        }
+        for (int k : children) {
+            values[i++] = dependent[k] ? upSignature[k][r] : -1;
+        }
+        values[i] = downSignature != null && tree.parent[c] >= 0 ? downSignature[c][r] : -1;
+        return new Key(values);
+    }
+
+    /**
+     * condition the potential of a clique on the findings homed there and multiply in
+     * the messages of its children and parent
+     */
+    private double[] incoming(int c, int[] row, int r, int[][] upSignature, List<List<double[]>> upMessages,
+                              double[] down) {
+        double[] work = tree.potential(c);
+        for (int j : homedColumns[c]) {
+            if (row[j] >= 0) {
+                tree.applyEvidence(work, c, columns[j], row[j]);
+            }
+        }
+        for (int k : tree.children[c]) {
+            double[] message = dependent[k] ? upMessages.get(k).get(upSignature[k][r]) : sharedUp[k];
+            CliqueTree.multiply(work, message, tree.parentMap[k]);
+        }
+        if (down != null) {
+            CliqueTree.multiply(work, down, tree.childMap[c]);
+        }
+        return work;
+    }
+
+    /**
+     * compute the message from a clique belief to one of its children by dividing out
+     * the upward message of the child
+     */
+    private double[] downMessage(int k, double[] belief, int r, int[][] upSignature,
+                                 List<List<double[]>> upMessages) {
+        double[] up = dependent[k] ? upMessages.get(k).get(upSignature[k][r]) : sharedUp[k];
+        return tree.distribute(k, belief, up);
+    }
+
+    /**
+     * a signature compared by content
+     */
+    private static final class Key {
+        private final int[] values;
+        private final int hash;
+
+        Key(int[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(values, ((Key) other).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.Map;
+
+/**
+ * The beliefs of a loopy belief propagation run and how it converged
+ */
+public class BeliefPropagationResult {
+    private final Map<Node, double[]> marginals;
+    private final boolean converged;
+    private final double[] residuals;
+    private final long[] iterationNanos;
+
+    /**
+     * Constructor of BeliefPropagationResult class
+     *
+     * @param marginals      the approximate posterior of each node
+     * @param converged      whether the residual fell below the tolerance
+     * @param residuals      the largest message residual after each iteration
+     * @param iterationNanos the wall-clock time of each iteration
+     */
+    BeliefPropagationResult(Map<Node, double[]> marginals, boolean converged, double[] residuals,
+                            long[] iterationNanos) {
+        this.marginals = marginals;
+        this.converged = converged;
+        this.residuals = residuals;
+        this.iterationNanos = iterationNanos;
+    }
+
+    /**
+     * get the approximate posterior of a node
+     *
+     * @param node the node
+     * @return the belief over the states of the node
+     */
+    public double[] getMarginal(Node node) {
+        return marginals.get(node).clone();
+    }
+
+    /**
+     * Return the approximate posterior of every node in the network
+     *
+     * @return the belief of each node, in network order
+     */
+    public Map<Node, double[]> getMarginals() {
+        return marginals;
+    }
+
+    /**
+     * Return whether the messages converged within the iteration limit
+     *
+     * @return true if the last residual is below the tolerance
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * Return the number of iterations run
+     *
+     * @return the number of iterations
+     */
+    public int getIterations() {
+        return residuals.length;
+    }
+
+    /**
+     * Return the largest message residual after each iteration
+     *
+     * @return one residual per iteration
+     */
+    public double[] getResiduals() {
+        return residuals.clone();
+    }
+
+    /**
+     * Return the wall-clock time of each iteration
+     *
+     * @return one time in nanoseconds per iteration
+     */
+    public long[] getIterationNanos() {
+        return iterationNanos.clone();
+    }
+}
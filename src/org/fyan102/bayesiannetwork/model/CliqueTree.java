@@ -0,0 +1,1012 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled form of a junction tree. The moral graph of the snapshot is
+ * triangulated along an elimination order, the maximal cliques are joined into a
+ * maximum-weight spanning tree and the conditional probability tables are multiplied
+ * into clique potentials. Index maps between every clique and its separators are
+ * precomputed, so propagation only walks flat arrays.
+ * <p>
+ * In single precision the compiled potentials are stored as floats, which halves the
+ * memory of the tree, and every query copies them into double working arrays, so
+ * messages and beliefs are still summed in double precision. Off the heap they are
+ * stored in {@link OffHeapTable}s, which the garbage collector never has to copy and
+ * which are indexed by long, so a clique may exceed 2^31 entries. Queries then stream
+ * the potentials block by block instead of copying them, and the index maps are only
+ * built for the callers that propagate arrays.
+ */
+final class CliqueTree {
+    final NetworkSnapshot snapshot;
+    private static final int BLOCK = 1 << 16;
+
+    final int[][] vars;
+    final long[][] strides;
+    final long[] size;
+    final int[] parent;
+    final int[] order;
+    final int[][] children;
+    final int[][] separators;
+    final int[] separatorSize;
+    final int[][] childMap;
+    final int[][] parentMap;
+    final int[] home;
+    final int[] assigned;
+    private final TableStorage storage;
+    private final double[][] potentials;
+    private final float[][] singlePotentials;
+    private final OffHeapTable[] offHeapPotentials;
+    private volatile boolean mapped;
+    private volatile boolean closed;
+
+    /**
+     * compile a snapshot
+     *
+     * @param snapshot    the network to compile
+     * @param elimination the ids of every node in elimination order, or null to find
+     *                    an order with the min-weight heuristic
+     * @param storage     where to keep the potentials
+     */
+    CliqueTree(NetworkSnapshot snapshot, int[] elimination, TableStorage storage) {
+        this.snapshot = snapshot;
+        int n = snapshot.size();
+        List<int[]> scopes = snapshot.scopes();
+        if (elimination == null) {
+            boolean[] all = new boolean[n];
+            Arrays.fill(all, true);
+            elimination = EliminationOrder.minWeight(snapshot.card, scopes, all);
+        }
+
+        List<int[]> maximal = EliminationOrder.maximalCliques(n, EliminationOrder.cliques(n, scopes, elimination));
+        List<List<Integer>> containing = new ArrayList<>();
+        for (int v = 0; v < n; v++) {
+            containing.add(new ArrayList<>());
+        }
+        for (int k = 0; k < maximal.size(); k++) {
+            for (int var : maximal.get(k)) {
+                containing.get(var).add(k);
+            }
+        }
+
+        int m = maximal.size();
+        vars = maximal.toArray(new int[0][]);
+        strides = new long[m][];
+        size = new long[m];
+        for (int c = 0; c < m; c++) {
+            strides[c] = new long[vars[c].length];
+            long entries = 1;
+            for (int i = vars[c].length - 1; i >= 0; i--) {
+                strides[c][i] = entries;
+                int card = snapshot.card[vars[c][i]];
+                if (card > 0 && entries > Long.MAX_VALUE / Double.BYTES / card) {
+                    throw new IllegalStateException("A clique of the network has more than "
+                            + Long.MAX_VALUE / Double.BYTES + " entries");
+                }
+                entries *= card;
+            }
+            size[c] = entries;
+        }
+        checkStorage(storage);
+
+        parent = new int[m];
+        order = new int[m];
+        children = new int[m][];
+        buildTree(containing);
+
+        separators = new int[m][];
+        separatorSize = new int[m];
+        for (int c = 0; c < m; c++) {
+            if (parent[c] < 0) {
+                continue;
+            }
+            separators[c] = intersection(vars[c], vars[parent[c]]);
+            long entries = 1;
+            for (int var : separators[c]) {
+                entries *= snapshot.card[var];
+            }
+            if (entries > Integer.MAX_VALUE) {
+                throw new IllegalStateException("A separator of the network has more than "
+                        + Integer.MAX_VALUE + " entries");
+            }
+            separatorSize[c] = (int) entries;
+        }
+        childMap = new int[m][];
+        parentMap = new int[m][];
+
+        home = new int[n];
+        assigned = new int[n];
+        for (int v = 0; v < n; v++) {
+            home[v] = smallest(containing.get(v), new int[]{v});
+            assigned[v] = smallest(containing.get(v), snapshot.family(v));
+        }
+        this.storage = storage;
+        potentials = storage == TableStorage.DOUBLE ? new double[m][] : null;
+        singlePotentials = storage == TableStorage.SINGLE ? new float[m][] : null;
+        offHeapPotentials = storage == TableStorage.OFF_HEAP ? new OffHeapTable[m] : null;
+        if (storage != TableStorage.OFF_HEAP) {
+            buildMaps();
+        }
+        loadPotentials(snapshot, null);
+    }
+
+    private CliqueTree(CliqueTree structure, NetworkSnapshot snapshot, TableStorage storage) {
+        this.snapshot = snapshot;
+        vars = structure.vars;
+        strides = structure.strides;
+        size = structure.size;
+        parent = structure.parent;
+        order = structure.order;
+        children = structure.children;
+        separators = structure.separators;
+        separatorSize = structure.separatorSize;
+        // share the index maps only once they are complete
+        mapped = structure.mapped;
+        childMap = mapped ? structure.childMap : new int[vars.length][];
+        parentMap = mapped ? structure.parentMap : new int[vars.length][];
+        home = structure.home;
+        assigned = structure.assigned;
+        checkStorage(storage);
+        this.storage = storage;
+        potentials = storage == TableStorage.DOUBLE ? new double[vars.length][] : null;
+        singlePotentials = storage == TableStorage.SINGLE ? new float[vars.length][] : null;
+        offHeapPotentials = storage == TableStorage.OFF_HEAP ? new OffHeapTable[vars.length] : null;
+        if (storage != TableStorage.OFF_HEAP) {
+            buildMaps();
+        }
+        loadPotentials(snapshot, structure.storage == storage && !structure.closed ? structure : null);
+    }
+
+    /**
+     * reject cliques that do not fit in an array unless they are kept off the heap
+     */
+    private void checkStorage(TableStorage storage) {
+        if (storage == TableStorage.OFF_HEAP) {
+            return;
+        }
+        for (long entries : size) {
+            if (entries > Integer.MAX_VALUE) {
+                throw new IllegalStateException("A clique of the network has more than "
+                        + Integer.MAX_VALUE + " entries; keep the tables off the heap for larger cliques");
+            }
+        }
+    }
+
+    /**
+     * build the maps from every clique entry to the entries of its separators, which
+     * propagation over arrays walks. They are built at once for potentials on the heap
+     * and on first use off the heap, where queries stream the cliques without them.
+     *
+     * @throws IllegalStateException if a clique does not fit in an array
+     */
+    void buildMaps() {
+        if (mapped) {
+            return;
+        }
+        synchronized (this) {
+            if (mapped) {
+                return;
+            }
+            for (int c = 0; c < vars.length; c++) {
+                if (parent[c] >= 0) {
+                    childMap[c] = project(c, separators[c]);
+                    parentMap[c] = project(parent[c], separators[c]);
+                }
+            }
+            mapped = true;
+        }
+    }
+
+    /**
+     * reuse the cliques of this tree for a snapshot with the same structure. Clique
+     * potentials whose tables did not change are shared with this tree, unless the
+     * storage changes or this tree has been closed.
+     *
+     * @param snapshot a snapshot with new parameters
+     * @param storage  where to keep the potentials
+     * @return the recompiled tree
+     */
+    CliqueTree withParameters(NetworkSnapshot snapshot, TableStorage storage) {
+        return new CliqueTree(this, snapshot, storage);
+    }
+
+    /**
+     * get where the potentials are kept
+     *
+     * @return the storage
+     */
+    TableStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * check if the off-heap potentials have been released
+     *
+     * @return true once closed
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * release the off-heap potentials at once instead of when the tree is collected.
+     * They may be shared with trees compiled from this one, which must not be used
+     * anymore either.
+     */
+    void close() {
+        closed = true;
+        if (offHeapPotentials != null) {
+            for (OffHeapTable table : offHeapPotentials) {
+                table.close();
+            }
+        }
+    }
+
+    /**
+     * get a working copy of the potential of a clique, in double precision
+     *
+     * @param c the clique
+     * @return a copy the caller may change
+     * @throws IllegalStateException if the clique does not fit in an array
+     */
+    double[] potential(int c) {
+        if (storage == TableStorage.SINGLE) {
+            return widen(singlePotentials[c]);
+        }
+        if (storage == TableStorage.OFF_HEAP) {
+            return offHeapPotentials[c].toArray();
+        }
+        return potentials[c].clone();
+    }
+
+    /**
+     * get the potentials of all cliques in double precision. With double storage the
+     * arrays are shared with the tree and must not be modified.
+     *
+     * @return the potential of every clique
+     */
+    double[][] potentials() {
+        if (storage == TableStorage.DOUBLE) {
+            return potentials;
+        }
+        double[][] result = new double[vars.length][];
+        for (int c = 0; c < result.length; c++) {
+            result[c] = potential(c);
+        }
+        return result;
+    }
+
+    /**
+     * check if a clique still has the very potential of another tree of the same
+     * structure, so anything computed from it is still valid
+     *
+     * @param other the other tree
+     * @param c     the clique
+     * @return true if the potential is shared
+     */
+    boolean sharesPotential(CliqueTree other, int c) {
+        if (storage != other.storage) {
+            return false;
+        }
+        if (storage == TableStorage.SINGLE) {
+            return singlePotentials[c] == other.singlePotentials[c];
+        }
+        if (storage == TableStorage.OFF_HEAP) {
+            return offHeapPotentials[c] == other.offHeapPotentials[c];
+        }
+        return potentials[c] == other.potentials[c];
+    }
+
+    /**
+     * get the number of bytes the compiled potentials take, on or off the heap,
+     * counting shared tables once per tree
+     *
+     * @return the size of the potential tables
+     */
+    long getPotentialBytes() {
+        long entries = 0;
+        for (long s : size) {
+            entries += s;
+        }
+        return entries * (storage == TableStorage.SINGLE ? Float.BYTES : Double.BYTES);
+    }
+
+    static float[] narrow(double[] table) {
+        float[] result = new float[table.length];
+        for (int e = 0; e < table.length; e++) {
+            result[e] = (float) table[e];
+        }
+        return result;
+    }
+
+    static double[] widen(float[] table) {
+        double[] result = new double[table.length];
+        for (int e = 0; e < table.length; e++) {
+            result[e] = table[e];
+        }
+        return result;
+    }
+
+    int getNumberOfCliques() {
+        return vars.length;
+    }
+
+    /**
+     * join the cliques into a maximum spanning forest, weighting each pair of
+     * cliques by the number of variables they share, then root every tree
+     */
+    private void buildTree(List<List<Integer>> containing) {
+        int m = vars.length;
+        Map<Long, Integer> weights = new HashMap<>();
+        for (List<Integer> cliques : containing) {
+            for (int i = 0; i < cliques.size(); i++) {
+                for (int j = i + 1; j < cliques.size(); j++) {
+                    long key = (long) cliques.get(i) * m + cliques.get(j);
+                    weights.merge(key, 1, Integer::sum);
+                }
+            }
+        }
+        List<long[]> edges = new ArrayList<>();
+        for (Map.Entry<Long, Integer> entry : weights.entrySet()) {
+            edges.add(new long[]{entry.getValue(), entry.getKey()});
+        }
+        edges.sort((a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0]) : Long.compare(a[1], b[1]));
+
+        int[] root = new int[m];
+        for (int c = 0; c < m; c++) {
+            root[c] = c;
+        }
+        List<List<Integer>> adjacent = new ArrayList<>();
+        for (int c = 0; c < m; c++) {
+            adjacent.add(new ArrayList<>());
+        }
+        for (long[] edge : edges) {
+            int a = (int) (edge[1] / m);
+            int b = (int) (edge[1] % m);
+            int ra = find(root, a);
+            int rb = find(root, b);
+            if (ra != rb) {
+                root[ra] = rb;
+                adjacent.get(a).add(b);
+                adjacent.get(b).add(a);
+            }
+        }
+
+        Arrays.fill(parent, -2);
+        int next = 0;
+        for (int start = 0; start < m; start++) {
+            if (parent[start] != -2) {
+                continue;
+            }
+            parent[start] = -1;
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            queue.add(start);
+            while (!queue.isEmpty()) {
+                int c = queue.poll();
+                order[next++] = c;
+                for (int k : adjacent.get(c)) {
+                    if (parent[k] == -2) {
+                        parent[k] = c;
+                        queue.add(k);
+                    }
+                }
+            }
+        }
+        for (int c = 0; c < m; c++) {
+            int count = 0;
+            for (int k : adjacent.get(c)) {
+                if (parent[k] == c) {
+                    count++;
+                }
+            }
+            children[c] = new int[count];
+            count = 0;
+            for (int k : adjacent.get(c)) {
+                if (parent[k] == c) {
+                    children[c][count++] = k;
+                }
+            }
+        }
+    }
+
+    private static int find(int[] root, int c) {
+        while (root[c] != c) {
+            root[c] = root[root[c]];
+            c = root[c];
+        }
+        return c;
+    }
+
+    private static int[] intersection(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int x : a) {
+            for (int y : b) {
+                if (x == y) {
+                    result[count++] = x;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * find the clique with the smallest table among those that contain a set of variables
+     */
+    private int smallest(List<Integer> candidates, int[] required) {
+        int best = -1;
+        for (int c : candidates) {
+            boolean contains = true;
+            for (int var : required) {
+                if (position(c, var) < 0) {
+                    contains = false;
+                    break;
+                }
+            }
+            if (contains && (best < 0 || size[c] < size[best])) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    int position(int clique, int var) {
+        int[] scope = vars[clique];
+        for (int i = 0; i < scope.length; i++) {
+            if (scope[i] == var) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * map every entry of a clique table to the matching entry of a table over a
+     * subset of the clique, laid out row-major in the order of the subset
+     *
+     * @param clique the clique
+     * @param subset the variables of the smaller table
+     * @return the index into the smaller table for each clique entry
+     */
+    int[] project(int clique, int[] subset) {
+        if (size[clique] > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("A clique of " + size[clique] + " entries does not fit in an array");
+        }
+        int[] scope = vars[clique];
+        int[] stride = new int[scope.length];
+        int s = 1;
+        for (int i = subset.length - 1; i >= 0; i--) {
+            stride[position(clique, subset[i])] = s;
+            s *= snapshot.card[subset[i]];
+        }
+        int[] map = new int[(int) size[clique]];
+        int[] assignment = new int[scope.length];
+        int index = 0;
+        for (int e = 0; e < map.length; e++) {
+            map[e] = index;
+            for (int l = scope.length - 1; l >= 0; l--) {
+                if (++assignment[l] < snapshot.card[scope[l]]) {
+                    index += stride[l];
+                    break;
+                }
+                assignment[l] = 0;
+                index -= (snapshot.card[scope[l]] - 1) * stride[l];
+            }
+        }
+        return map;
+    }
+
+    /**
+     * multiply the conditional probability tables into the clique potentials,
+     * rebuilding only the cliques that hold a table changed since a previous tree.
+     * Every clique is multiplied out in doubles and then stored; in single precision
+     * it is rounded once.
+     *
+     * @param snapshot the tables to load
+     * @param previous a tree with the same structure and storage whose potentials may
+     *                 be reused, or null
+     */
+    private void loadPotentials(NetworkSnapshot snapshot, CliqueTree previous) {
+        boolean[] stale = new boolean[vars.length];
+        Arrays.fill(stale, previous == null);
+        List<List<Integer>> tables = new ArrayList<>();
+        for (int c = 0; c < vars.length; c++) {
+            tables.add(new ArrayList<>());
+        }
+        for (int v = 0; v < assigned.length; v++) {
+            tables.get(assigned[v]).add(v);
+            if (previous != null && previous.snapshot.parameterVersion(v) != snapshot.parameterVersion(v)) {
+                stale[assigned[v]] = true;
+            }
+        }
+        for (int c = 0; c < vars.length; c++) {
+            if (!stale[c]) {
+                if (storage == TableStorage.SINGLE) {
+                    singlePotentials[c] = previous.singlePotentials[c];
+                }
+                else if (storage == TableStorage.OFF_HEAP) {
+                    offHeapPotentials[c] = previous.offHeapPotentials[c];
+                }
+                else {
+                    potentials[c] = previous.potentials[c];
+                }
+                continue;
+            }
+            if (storage == TableStorage.OFF_HEAP) {
+                offHeapPotentials[c] = offHeapPotential(snapshot, c, tables.get(c));
+                continue;
+            }
+            double[] potential = new double[(int) size[c]];
+            Arrays.fill(potential, 1.0);
+            for (int v : tables.get(c)) {
+                int[] map = project(c, snapshot.family(v));
+                double[] table = snapshot.cpt[v];
+                for (int e = 0; e < potential.length; e++) {
+                    potential[e] *= table[map[e]];
+                }
+            }
+            if (storage == TableStorage.SINGLE) {
+                singlePotentials[c] = narrow(potential);
+            }
+            else {
+                potentials[c] = potential;
+            }
+        }
+    }
+
+    /**
+     * multiply the tables of a clique into a potential off the heap, one block at a
+     * time, so the clique never has to fit in an array
+     *
+     * @param snapshot the tables to load
+     * @param c        the clique
+     * @param tables   the nodes whose tables are assigned to the clique
+     * @return the potential
+     */
+    private OffHeapTable offHeapPotential(NetworkSnapshot snapshot, int c, List<Integer> tables) {
+        int[][] families = new int[tables.size()][];
+        double[][] cpts = new double[tables.size()][];
+        for (int t = 0; t < families.length; t++) {
+            families[t] = snapshot.family(tables.get(t));
+            cpts[t] = snapshot.cpt[tables.get(t)];
+        }
+        Cursor cursor = new Cursor(c, families);
+        OffHeapTable potential = OffHeapTable.allocate(size[c]);
+        double[] block = new double[(int) Math.min(size[c], BLOCK)];
+        for (long start = 0; start < size[c]; start += block.length) {
+            int length = (int) Math.min(block.length, size[c] - start);
+            for (int e = 0; e < length; e++) {
+                double value = 1.0;
+                for (int t = 0; t < cpts.length; t++) {
+                    value *= cpts[t][cursor.index[t]];
+                }
+                block[e] = value;
+                cursor.next();
+            }
+            potential.copyFrom(block, 0, start, length);
+        }
+        return potential;
+    }
+
+    /**
+     * zero out the entries of the home cliques that disagree with the evidence
+     *
+     * @param potentials the clique tables to condition, changed in place
+     * @param observed   the observed state of each node, or -1
+     */
+    void applyEvidence(double[][] potentials, int[] observed) {
+        for (int v = 0; v < observed.length; v++) {
+            if (observed[v] >= 0) {
+                applyEvidence(potentials[home[v]], home[v], v, observed[v]);
+            }
+        }
+    }
+
+    void applyEvidence(double[] potential, int clique, int var, int state) {
+        int i = position(clique, var);
+        long stride = strides[clique][i];
+        int card = snapshot.card[var];
+        for (int e = 0; e < potential.length; e++) {
+            if ((e / stride) % card != state) {
+                potential[e] = 0;
+            }
+        }
+    }
+
+    /**
+     * compute the message a clique sends to its parent. The message is normalized
+     * and the normalizing constant returned.
+     */
+    double collect(int c, double[] potential, double[][] up) {
+        double[] work = potential.clone();
+        for (int k : children[c]) {
+            multiply(work, up[k], parentMap[k]);
+        }
+        double[] message = new double[separatorSize[c]];
+        int[] map = childMap[c];
+        for (int e = 0; e < work.length; e++) {
+            message[map[e]] += work[e];
+        }
+        up[c] = message;
+        return normalize(message);
+    }
+
+    /**
+     * compute the message a clique receives from its parent, given the belief of the
+     * parent. Dividing out the upward message is exact when zero entries divide to zero.
+     */
+    double[] distribute(int c, double[] parentBelief, double[] up) {
+        double[] message = new double[separatorSize[c]];
+        int[] map = parentMap[c];
+        for (int e = 0; e < parentBelief.length; e++) {
+            message[map[e]] += parentBelief[e];
+        }
+        for (int s = 0; s < message.length; s++) {
+            message[s] = up[s] > 0 ? message[s] / up[s] : 0;
+        }
+        normalize(message);
+        return message;
+    }
+
+    /**
+     * compute the belief of a clique from its potential and incoming messages
+     */
+    double[] belief(int c, double[] potential, double[][] up, double[] down) {
+        double[] belief = potential.clone();
+        for (int k : children[c]) {
+            multiply(belief, up[k], parentMap[k]);
+        }
+        if (down != null) {
+            multiply(belief, down, childMap[c]);
+        }
+        return belief;
+    }
+
+    /**
+     * run one collect and one distribute pass
+     *
+     * @param potentials the conditioned clique tables
+     * @param logZ       receives the log probability of the evidence, may be null
+     * @return the belief of each clique
+     */
+    double[][] propagate(double[][] potentials, double[] logZ) {
+        int m = vars.length;
+        double[][] up = new double[m][];
+        double logScale = 0;
+        for (int i = m - 1; i >= 0; i--) {
+            int c = order[i];
+            if (parent[c] >= 0) {
+                logScale += Math.log(collect(c, potentials[c], up));
+            }
+        }
+        double[][] beliefs = new double[m][];
+        double[][] down = new double[m][];
+        for (int c : order) {
+            if (parent[c] >= 0) {
+                down[c] = distribute(c, beliefs[parent[c]], up[c]);
+            }
+            beliefs[c] = belief(c, potentials[c], up, down[c]);
+            if (parent[c] < 0) {
+                double sum = 0;
+                for (double value : beliefs[c]) {
+                    sum += value;
+                }
+                logScale += Math.log(sum);
+            }
+        }
+        if (logZ != null) {
+            logZ[0] = logScale;
+        }
+        return beliefs;
+    }
+
+    /**
+     * compute the posterior distributions of some nodes. Potentials on the heap are
+     * copied, conditioned and propagated as arrays. Potentials off the heap are
+     * streamed instead, so a query only holds the messages, the results and one block
+     * of a clique on the heap.
+     *
+     * @param observed the observed state of each node, or -1
+     * @param targets  the ids of the nodes to query
+     * @param logZ     receives the log probability of the evidence, may be null
+     * @return the normalized marginal of each target
+     */
+    double[][] query(int[] observed, int[] targets, double[] logZ) {
+        if (storage == TableStorage.OFF_HEAP) {
+            return stream(observed, targets, logZ);
+        }
+        double[][] potentials = new double[vars.length][];
+        for (int c = 0; c < potentials.length; c++) {
+            potentials[c] = potential(c);
+        }
+        applyEvidence(potentials, observed);
+        double[][] beliefs = propagate(potentials, logZ);
+        double[][] results = new double[targets.length][];
+        for (int t = 0; t < targets.length; t++) {
+            results[t] = marginal(beliefs, targets[t]);
+        }
+        return results;
+    }
+
+    /**
+     * run one collect and one distribute pass over the potentials kept off the heap.
+     * Each pass reads a clique block by block and multiplies in the findings and the
+     * messages as it goes, so no clique is copied and no clique belief is kept. The
+     * distribute pass only visits the cliques on the way to a target, and the roots
+     * when the probability of the evidence is asked for.
+     */
+    private double[][] stream(int[] observed, int[] targets, double[] logZ) {
+        int m = vars.length;
+        List<List<Integer>> found = new ArrayList<>();
+        List<List<Integer>> homed = new ArrayList<>();
+        for (int c = 0; c < m; c++) {
+            found.add(new ArrayList<>());
+            homed.add(new ArrayList<>());
+        }
+        for (int v = 0; v < observed.length; v++) {
+            if (observed[v] >= 0) {
+                found.get(home[v]).add(v);
+            }
+        }
+        for (int t = 0; t < targets.length; t++) {
+            homed.get(home[targets[t]]).add(t);
+        }
+        boolean[] needed = new boolean[m];
+        for (int i = m - 1; i >= 0; i--) {
+            int c = order[i];
+            needed[c] |= !homed.get(c).isEmpty();
+            if (needed[c] && parent[c] >= 0) {
+                needed[parent[c]] = true;
+            }
+        }
+        long largest = 0;
+        for (long entries : size) {
+            largest = Math.max(largest, entries);
+        }
+        double[] block = new double[(int) Math.min(largest, BLOCK)];
+
+        double[][] up = new double[m][];
+        double logScale = 0;
+        for (int i = m - 1; i >= 0; i--) {
+            int c = order[i];
+            if (parent[c] >= 0) {
+                double[] message = new double[separatorSize[c]];
+                sweep(c, observed, found.get(c), up, null, new int[][]{separators[c]},
+                        new double[][]{message}, block);
+                up[c] = message;
+                logScale += Math.log(normalize(message));
+            }
+        }
+
+        double[][] down = new double[m][];
+        double[][] results = new double[targets.length][];
+        for (int c : order) {
+            boolean root = parent[c] < 0;
+            if (!needed[c] && !(root && logZ != null)) {
+                continue;
+            }
+            List<Integer> sent = new ArrayList<>();
+            for (int k : children[c]) {
+                if (needed[k]) {
+                    sent.add(k);
+                }
+            }
+            List<Integer> local = homed.get(c);
+            int[][] subsets = new int[sent.size() + local.size()][];
+            double[][] sums = new double[subsets.length][];
+            for (int j = 0; j < sent.size(); j++) {
+                subsets[j] = separators[sent.get(j)];
+                sums[j] = new double[separatorSize[sent.get(j)]];
+            }
+            for (int j = 0; j < local.size(); j++) {
+                int v = targets[local.get(j)];
+                subsets[sent.size() + j] = new int[]{v};
+                sums[sent.size() + j] = new double[snapshot.card[v]];
+            }
+            double sum = sweep(c, observed, found.get(c), up, down[c], subsets, sums, block);
+            for (int j = 0; j < sent.size(); j++) {
+                int k = sent.get(j);
+                double[] message = sums[j];
+                for (int e = 0; e < message.length; e++) {
+                    message[e] = up[k][e] > 0 ? message[e] / up[k][e] : 0;
+                }
+                normalize(message);
+                down[k] = message;
+            }
+            for (int j = 0; j < local.size(); j++) {
+                normalize(sums[sent.size() + j]);
+                results[local.get(j)] = sums[sent.size() + j];
+            }
+            if (root) {
+                logScale += Math.log(sum);
+            }
+        }
+        if (logZ != null) {
+            logZ[0] = logScale;
+        }
+        return results;
+    }
+
+    /**
+     * read the potential of a clique off the heap once, multiply every entry by the
+     * findings homed in the clique, the messages from its children and the message
+     * from its parent, and add the products into tables over subsets of the clique
+     *
+     * @param c        the clique
+     * @param observed the observed state of each node, or -1
+     * @param found    the observed nodes homed in the clique
+     * @param up       the message of each child clique
+     * @param down     the message from the parent clique, or null to leave it out
+     * @param subsets  the variables of each table to add into
+     * @param sums     the tables to add into, laid out row-major over their subsets
+     * @param block    a buffer for reading the potential
+     * @return the sum of the products
+     */
+    private double sweep(int c, int[] observed, List<Integer> found, double[][] up, double[] down,
+                         int[][] subsets, double[][] sums, double[] block) {
+        int[] from = children[c];
+        int in = from.length + found.size() + (down != null ? 1 : 0);
+        int[][] all = new int[in + subsets.length][];
+        double[][] factors = new double[in][];
+        for (int j = 0; j < from.length; j++) {
+            all[j] = separators[from[j]];
+            factors[j] = up[from[j]];
+        }
+        for (int j = 0; j < found.size(); j++) {
+            int v = found.get(j);
+            double[] indicator = new double[snapshot.card[v]];
+            indicator[observed[v]] = 1;
+            all[from.length + j] = new int[]{v};
+            factors[from.length + j] = indicator;
+        }
+        if (down != null) {
+            all[in - 1] = separators[c];
+            factors[in - 1] = down;
+        }
+        System.arraycopy(subsets, 0, all, in, subsets.length);
+
+        Cursor cursor = new Cursor(c, all);
+        int[] index = cursor.index;
+        OffHeapTable potential = offHeapPotentials[c];
+        double sum = 0;
+        for (long start = 0; start < size[c]; start += block.length) {
+            int length = (int) Math.min(block.length, size[c] - start);
+            potential.copyTo(start, block, 0, length);
+            for (int e = 0; e < length; e++) {
+                double value = block[e];
+                for (int j = 0; j < in && value != 0; j++) {
+                    value *= factors[j][index[j]];
+                }
+                if (value != 0) {
+                    for (int j = 0; j < sums.length; j++) {
+                        sums[j][index[in + j]] += value;
+                    }
+                    sum += value;
+                }
+                cursor.next();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * get the distribution of one node from the belief of its home clique
+     *
+     * @param beliefs the belief of each clique
+     * @param v       the node id
+     * @return the normalized marginal
+     */
+    double[] marginal(double[][] beliefs, int v) {
+        return marginal(home[v], beliefs[home[v]], v);
+    }
+
+    /**
+     * get the distribution of one node from the belief of a clique that contains it
+     *
+     * @param c      the clique
+     * @param belief the belief of the clique
+     * @param v      the node id
+     * @return the normalized marginal
+     */
+    double[] marginal(int c, double[] belief, int v) {
+        long stride = strides[c][position(c, v)];
+        int card = snapshot.card[v];
+        double[] result = new double[card];
+        for (int e = 0; e < belief.length; e++) {
+            result[(int) (e / stride % card)] += belief[e];
+        }
+        normalize(result);
+        return result;
+    }
+
+    static void multiply(double[] table, double[] message, int[] map) {
+        for (int e = 0; e < table.length; e++) {
+            table[e] *= message[map[e]];
+        }
+    }
+
+    static double normalize(double[] table) {
+        double sum = 0;
+        for (double value : table) {
+            sum += value;
+        }
+        if (sum > 0) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] /= sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * walks the entries of a clique in row-major order, keeping the index of the
+     * matching entry in each of several tables over subsets of the clique. It stands
+     * in for the index maps where a clique is streamed rather than held in an array.
+     */
+    private final class Cursor {
+        private final int[] card;
+        private final int[] assignment;
+        private final int[][] tables;
+        private final int[][] steps;
+        final int[] index;
+
+        Cursor(int clique, int[][] subsets) {
+            int[] scope = vars[clique];
+            card = new int[scope.length];
+            for (int i = 0; i < scope.length; i++) {
+                card[i] = snapshot.card[scope[i]];
+            }
+            assignment = new int[scope.length];
+            index = new int[subsets.length];
+            // for each variable of the clique, the tables over it and its step in each
+            int[] count = new int[scope.length];
+            for (int[] subset : subsets) {
+                for (int var : subset) {
+                    count[position(clique, var)]++;
+                }
+            }
+            tables = new int[scope.length][];
+            steps = new int[scope.length][];
+            for (int i = 0; i < scope.length; i++) {
+                tables[i] = new int[count[i]];
+                steps[i] = new int[count[i]];
+                count[i] = 0;
+            }
+            for (int t = 0; t < subsets.length; t++) {
+                int step = 1;
+                for (int i = subsets[t].length - 1; i >= 0; i--) {
+                    int l = position(clique, subsets[t][i]);
+                    tables[l][count[l]] = t;
+                    steps[l][count[l]++] = step;
+                    step *= snapshot.card[subsets[t][i]];
+                }
+            }
+        }
+
+        /**
+         * move to the next entry of the clique
+         */
+        void next() {
+            for (int l = card.length - 1; l >= 0; l--) {
+                int[] affected = tables[l];
+                int[] step = steps[l];
+                if (++assignment[l] < card[l]) {
+                    for (int i = 0; i < affected.length; i++) {
+                        index[affected[i]] += step[i];
+                    }
+                    return;
+                }
+                assignment[l] = 0;
+                for (int i = 0; i < affected.length; i++) {
+                    index[affected[i]] -= (card[l] - 1) * step[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A conditional probability table stored as a decision tree over the parents. Every
+ * inner node tests one parent and has one branch per state of that parent; every
+ * leaf holds the distribution of the child for all rows that reach it. Rows that
+ * share a context, such as every row where some parent is off, are stored once, and
+ * parents that are never tested drop out of the table altogether.
+ */
+public final class ContextTree {
+    private final int parent;
+    private final ContextTree[] branches;
+    private final double[] distribution;
+
+    private ContextTree(int parent, ContextTree[] branches, double[] distribution) {
+        this.parent = parent;
+        this.branches = branches;
+        this.distribution = distribution;
+    }
+
+    /**
+     * create a leaf
+     *
+     * @param distribution the distribution over the states of the child
+     * @return the leaf
+     */
+    public static ContextTree leaf(double... distribution) {
+        if (distribution.length == 0) {
+            throw new IllegalArgumentException("A leaf needs at least one state");
+        }
+        for (double p : distribution) {
+            if (!(p >= 0)) {
+                throw new IllegalArgumentException("Probabilities must not be negative");
+            }
+        }
+        return new ContextTree(-1, null, distribution.clone());
+    }
+
+    /**
+     * create an inner node testing one parent
+     *
+     * @param parent   the index of the parent in the parent list of the child
+     * @param branches the subtree for every state of the parent
+     * @return the inner node
+     */
+    public static ContextTree split(int parent, ContextTree... branches) {
+        if (parent < 0) {
+            throw new IllegalArgumentException("Invalid parent index " + parent);
+        }
+        if (branches.length == 0) {
+            throw new IllegalArgumentException("A split needs at least one branch");
+        }
+        for (ContextTree branch : branches) {
+            if (branch == null) {
+                throw new IllegalArgumentException("Branches must not be null");
+            }
+        }
+        return new ContextTree(parent, branches.clone(), null);
+    }
+
+    /**
+     * build the smallest tree this greedy search finds for a full table. At every
+     * node the parent is tested whose branches have the fewest distinct rows left,
+     * and a node becomes a leaf as soon as all of its rows are equal.
+     *
+     * @param table      the table, one row per combination of parent states with the
+     *                   first parent most significant
+     * @param parentCard the number of states of every parent
+     * @return the tree
+     */
+    public static ContextTree compress(double[][] table, int[] parentCard) {
+        MixedRadix radix = new MixedRadix(parentCard);
+        if (table.length != radix.size()) {
+            throw new IllegalArgumentException("The table must have " + radix.size() + " rows");
+        }
+        int[] all = new int[radix.size()];
+        for (int r = 0; r < all.length; r++) {
+            all[r] = r;
+        }
+        return compress(table, radix, all, new boolean[parentCard.length]);
+    }
+
+    private static ContextTree compress(double[][] table, MixedRadix radix, int[] rows, boolean[] tested) {
+        if (distinct(table, rows) == 1) {
+            return leaf(table[rows[0]]);
+        }
+        int best = -1;
+        int bestCount = Integer.MAX_VALUE;
+        for (int p = 0; p < radix.getNumberOfDigits(); p++) {
+            if (tested[p]) {
+                continue;
+            }
+            int count = 0;
+            for (int[] subset : partition(rows, p, radix)) {
+                count += distinct(table, subset);
+            }
+            if (count < bestCount) {
+                best = p;
+                bestCount = count;
+            }
+        }
+        tested[best] = true;
+        int[][] subsets = partition(rows, best, radix);
+        ContextTree[] branches = new ContextTree[subsets.length];
+        for (int s = 0; s < subsets.length; s++) {
+            branches[s] = compress(table, radix, subsets[s], tested);
+        }
+        tested[best] = false;
+        return split(best, branches);
+    }
+
+    private static int[][] partition(int[] rows, int p, MixedRadix radix) {
+        int[][] subsets = new int[radix.getRadix(p)][rows.length];
+        int[] sizes = new int[subsets.length];
+        for (int r : rows) {
+            int s = radix.digit(r, p);
+            subsets[s][sizes[s]++] = r;
+        }
+        for (int s = 0; s < subsets.length; s++) {
+            subsets[s] = Arrays.copyOf(subsets[s], sizes[s]);
+        }
+        return subsets;
+    }
+
+    private static int distinct(double[][] table, int[] rows) {
+        Set<List<Double>> seen = new HashSet<>();
+        for (int r : rows) {
+            List<Double> row = new ArrayList<>();
+            for (double p : table[r]) {
+                row.add(p);
+            }
+            seen.add(row);
+        }
+        return seen.size();
+    }
+
+    /**
+     * check if this is a leaf
+     *
+     * @return true for a leaf, false for an inner node
+     */
+    public boolean isLeaf() {
+        return branches == null;
+    }
+
+    /**
+     * Return the index of the parent tested here
+     *
+     * @return the parent index, or -1 for a leaf
+     */
+    public int getParent() {
+        return parent;
+    }
+
+    /**
+     * Return the number of branches
+     *
+     * @return the number of states of the tested parent, or 0 for a leaf
+     */
+    public int getNumberOfBranches() {
+        return isLeaf() ? 0 : branches.length;
+    }
+
+    /**
+     * Return the subtree for one state of the tested parent
+     *
+     * @param state the state of the parent
+     * @return the subtree
+     */
+    public ContextTree getBranch(int state) {
+        return branches[state];
+    }
+
+    /**
+     * Return the distribution of a leaf
+     *
+     * @return a copy of the distribution over the child states
+     */
+    public double[] getDistribution() {
+        return distribution.clone();
+    }
+
+    /**
+     * Return the number of leaves, which is the number of distributions stored
+     *
+     * @return the number of leaves
+     */
+    public int getNumberOfLeaves() {
+        if (isLeaf()) {
+            return 1;
+        }
+        int leaves = 0;
+        for (ContextTree branch : branches) {
+            leaves += branch.getNumberOfLeaves();
+        }
+        return leaves;
+    }
+
+    /**
+     * find the distribution of the child in one context
+     *
+     * @param parentStates the state of every parent; parents that are not tested on
+     *                     the way to the leaf are ignored
+     * @return the distribution, shared with the tree
+     */
+    double[] lookup(int[] parentStates) {
+        ContextTree tree = this;
+        while (!tree.isLeaf()) {
+            tree = tree.branches[parentStates[tree.parent]];
+        }
+        return tree.distribution;
+    }
+
+    /**
+     * list the parents tested anywhere in the tree
+     *
+     * @param parents the number of parents of the child
+     * @return the tested parent indices, in parent order
+     */
+    int[] testedParents(int parents) {
+        boolean[] tested = new boolean[parents];
+        mark(tested);
+        int count = 0;
+        for (boolean t : tested) {
+            count += t ? 1 : 0;
+        }
+        int[] result = new int[count];
+        for (int p = 0, i = 0; p < parents; p++) {
+            if (tested[p]) {
+                result[i++] = p;
+            }
+        }
+        return result;
+    }
+
+    private void mark(boolean[] tested) {
+        if (!isLeaf()) {
+            tested[parent] = true;
+            for (ContextTree branch : branches) {
+                branch.mark(tested);
+            }
+        }
+    }
+
+    /**
+     * check that the tree fits a node
+     *
+     * @param node the node
+     * @return true if every test is on a parent of the node, with one branch per
+     * parent state, and every leaf has one value per state of the node
+     */
+    boolean fits(Node node) {
+        if (isLeaf()) {
+            return distribution.length == node.getNumberOfStates();
+        }
+        if (parent >= node.getNumberOfParents() || branches.length != node.getParent(parent).getNumberOfStates()) {
+            return false;
+        }
+        for (ContextTree branch : branches) {
+            if (!branch.fits(node)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * expand the tree into a table over some of the parents and the child
+     *
+     * @param scope      the indices of the parents in the table, which must include
+     *                   every tested parent
+     * @param parentCard the number of states of every parent of the child
+     * @param states     the number of states of the child
+     * @return the table, row-major with the child fastest
+     */
+    double[] table(int[] scope, int[] parentCard, int states) {
+        int rows = 1;
+        for (int p : scope) {
+            rows *= parentCard[p];
+        }
+        double[] table = new double[rows * states];
+        int[] parentStates = new int[parentCard.length];
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(lookup(parentStates), 0, table, r * states, states);
+            for (int i = scope.length - 1; i >= 0; i--) {
+                int p = scope[i];
+                if (++parentStates[p] < parentCard[p]) {
+                    break;
+                }
+                parentStates[p] = 0;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * compute the distribution of the child from the distributions of its parents,
+     * assuming the parents are independent. Each leaf is weighted once with the
+     * probability of its context.
+     *
+     * @param parents the distribution of every parent
+     * @return the distribution of the child
+     */
+    double[] marginal(double[][] parents) {
+        double[] result = new double[depthFirstLeaf().distribution.length];
+        accumulate(parents, 1.0, result);
+        return result;
+    }
+
+    private ContextTree depthFirstLeaf() {
+        return isLeaf() ? this : branches[0].depthFirstLeaf();
+    }
+
+    private void accumulate(double[][] parents, double weight, double[] result) {
+        if (isLeaf()) {
+            for (int y = 0; y < result.length; y++) {
+                result[y] += weight * distribution[y];
+            }
+            return;
+        }
+        for (int s = 0; s < branches.length; s++) {
+            double p = parents[parent][s];
+            if (p != 0) {
+                branches[s].accumulate(parents, weight * p, result);
+            }
+        }
+    }
+
+    /**
+     * remove a parent, keeping the branch of its first state wherever it is tested
+     *
+     * @param index the index of the parent
+     * @return the reduced tree
+     */
+    ContextTree withoutParent(int index) {
+        if (isLeaf()) {
+            return this;
+        }
+        if (parent == index) {
+            return branches[0].withoutParent(index);
+        }
+        ContextTree[] reduced = new ContextTree[branches.length];
+        for (int s = 0; s < branches.length; s++) {
+            reduced[s] = branches[s].withoutParent(index);
+        }
+        return new ContextTree(parent > index ? parent - 1 : parent, reduced, null);
+    }
+
+    /**
+     * add a child state with probability zero to every leaf
+     *
+     * @return the extended tree
+     */
+    ContextTree withState() {
+        if (isLeaf()) {
+            return new ContextTree(-1, null, Arrays.copyOf(distribution, distribution.length + 1));
+        }
+        ContextTree[] extended = new ContextTree[branches.length];
+        for (int s = 0; s < branches.length; s++) {
+            extended[s] = branches[s].withState();
+        }
+        return new ContextTree(parent, extended, null);
+    }
+
+    /**
+     * remove a child state from every leaf
+     *
+     * @param state the child state
+     * @return the reduced tree
+     */
+    ContextTree withoutState(int state) {
+        if (isLeaf()) {
+            double[] reduced = new double[distribution.length - 1];
+            for (int y = 0, j = 0; y < distribution.length; y++) {
+                if (y != state) {
+                    reduced[j++] = distribution[y];
+                }
+            }
+            return new ContextTree(-1, null, reduced);
+        }
+        ContextTree[] reduced = new ContextTree[branches.length];
+        for (int s = 0; s < branches.length; s++) {
+            reduced[s] = branches[s].withoutState(state);
+        }
+        return new ContextTree(parent, reduced, null);
+    }
+
+    @Override
+    public String toString() {
+        if (isLeaf()) {
+            return Arrays.toString(distribution);
+        }
+        StringBuilder builder = new StringBuilder("(parent ").append(parent);
+        for (int s = 0; s < branches.length; s++) {
+            builder.append(s == 0 ? ": " : " | ").append(branches[s]);
+        }
+        return builder.append(')').toString();
+    }
+}
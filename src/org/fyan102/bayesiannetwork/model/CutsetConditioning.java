@@ -0,0 +1,497 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exact inference by loop cutset conditioning. A small set of nodes is chosen whose
+ * observation leaves the factor graph of the network without loops; for every joint
+ * state of these nodes, one collect and one distribute pass over the remaining
+ * forest give the exact beliefs together with the probability of the evidence and
+ * that state. The beliefs of all states are averaged with these probabilities as
+ * weights. The states are split between the threads of a fork-join pool, and each
+ * thread only keeps one set of messages, so memory stays linear in the size of the
+ * network while the time grows with the number of cutset states.
+ */
+public class CutsetConditioning {
+    private static final int SEQUENTIAL = 32;
+
+    private final Network network;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * Constructor of CutsetConditioning class
+     *
+     * @param network the network to query
+     */
+    public CutsetConditioning(Network network) {
+        this.network = network;
+    }
+
+    /**
+     * change the pool the cutset states are split over
+     *
+     * @param pool the pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("The pool must not be null");
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * find the loop cutset used when nothing is observed
+     *
+     * @return the nodes to condition on
+     */
+    public List<Node> getCutset() {
+        return getCutset(Map.of());
+    }
+
+    /**
+     * find the loop cutset used for some evidence. Observed nodes already break the
+     * loops through them, so the cutset may be smaller than without evidence.
+     *
+     * @param evidence the observed state index of each observed node
+     * @return the nodes to condition on
+     */
+    public List<Node> getCutset(Map<Node, Integer> evidence) {
+        NetworkSnapshot snapshot = NetworkSnapshot.of(network);
+        FactorGraph graph = new FactorGraph(snapshot);
+        List<Node> cutset = new ArrayList<>();
+        for (int v : cutset(graph, snapshot.evidence(evidence))) {
+            cutset.add(snapshot.nodes[v]);
+        }
+        return cutset;
+    }
+
+    /**
+     * compute the posterior distribution of every node in the network
+     *
+     * @param evidence the observed state index of each observed node
+     * @return the posterior over the states of each node, in network order
+     */
+    public Map<Node, double[]> query(Map<Node, Integer> evidence) {
+        NetworkSnapshot snapshot = NetworkSnapshot.of(network);
+        Sum sum = run(snapshot, evidence);
+        Map<Node, double[]> results = new LinkedHashMap<>();
+        for (int v = 0; v < snapshot.networkSize; v++) {
+            double[] posterior = sum.weighted[v];
+            if (sum.total > 0) {
+                for (int s = 0; s < posterior.length; s++) {
+                    posterior[s] /= sum.total;
+                }
+            }
+            results.put(snapshot.nodes[v], posterior);
+        }
+        return results;
+    }
+
+    /**
+     * compute the posterior distribution of one node
+     *
+     * @param target   the node to query
+     * @param evidence the observed state index of each observed node
+     * @return the posterior over the states of the target
+     */
+    public double[] query(Node target, Map<Node, Integer> evidence) {
+        double[] posterior = query(evidence).get(target);
+        if (posterior == null) {
+            throw new IllegalArgumentException("Node " + target.getName() + " is not in the network");
+        }
+        return posterior;
+    }
+
+    /**
+     * compute the probability of the evidence
+     *
+     * @param evidence the observed state index of each observed node
+     * @return the probability of observing all of the evidence
+     */
+    public double probabilityOfEvidence(Map<Node, Integer> evidence) {
+        Sum sum = run(NetworkSnapshot.of(network), evidence);
+        return sum.total == 0 ? 0 : sum.total * Math.exp(sum.scale);
+    }
+
+    /**
+     * compute the logarithm of the probability of the evidence. The weights of the
+     * cutset states are summed on a log scale, so this stays finite where the
+     * probability itself underflows.
+     *
+     * @param evidence the observed state index of each observed node
+     * @return log P(evidence), or negative infinity if the evidence is impossible
+     */
+    public double logProbabilityOfEvidence(Map<Node, Integer> evidence) {
+        Sum sum = run(NetworkSnapshot.of(network), evidence);
+        return sum.total == 0 ? Double.NEGATIVE_INFINITY : Math.log(sum.total) + sum.scale;
+    }
+
+    private Sum run(NetworkSnapshot snapshot, Map<Node, Integer> evidence) {
+        Plan plan = new Plan(new FactorGraph(snapshot), snapshot.evidence(evidence));
+        return pool.invoke(new Conditioning(plan, 0, plan.instantiations));
+    }
+
+    /**
+     * choose variables until the factor graph without the observed variables has no
+     * loops. Leaves are pruned repeatedly; when none are left, the variable with the
+     * most remaining edges is cut, preferring fewer states. Finally every cut variable
+     * that could be put back without closing a loop is put back.
+     *
+     * @param graph    the factor graph
+     * @param observed the observed state of each variable, or -1
+     * @return the ids of the cutset variables
+     */
+    static int[] cutset(FactorGraph graph, int[] observed) {
+        int n = graph.snapshot.size();
+        int[] degree = new int[2 * n];
+        boolean[] removed = new boolean[2 * n];
+        for (int v = 0; v < n; v++) {
+            if (observed[v] >= 0) {
+                removed[n + v] = true;
+            }
+        }
+        for (int e = 0; e < graph.getNumberOfEdges(); e++) {
+            int v = graph.edgeVar[e];
+            if (!removed[n + v]) {
+                degree[graph.edgeFactor[e]]++;
+                degree[n + v]++;
+            }
+        }
+        ArrayDeque<Integer> leaves = new ArrayDeque<>();
+        for (int x = 0; x < 2 * n; x++) {
+            if (!removed[x] && degree[x] <= 1) {
+                leaves.add(x);
+            }
+        }
+        List<Integer> cut = new ArrayList<>();
+        int left = 0;
+        for (boolean r : removed) {
+            left += r ? 0 : 1;
+        }
+        while (left > 0) {
+            while (!leaves.isEmpty()) {
+                int x = leaves.poll();
+                if (!removed[x]) {
+                    left--;
+                    remove(graph, x, n, degree, removed, leaves);
+                }
+            }
+            int best = -1;
+            for (int v = 0; v < n; v++) {
+                int x = n + v;
+                if (!removed[x] && (best < 0 || degree[x] > degree[n + best]
+                        || degree[x] == degree[n + best] && graph.snapshot.card[v] < graph.snapshot.card[best])) {
+                    best = v;
+                }
+            }
+            if (best >= 0) {
+                cut.add(best);
+                left--;
+                remove(graph, n + best, n, degree, removed, leaves);
+            }
+        }
+
+        boolean[] inCutset = new boolean[n];
+        for (int v : cut) {
+            inCutset[v] = true;
+        }
+        int[] root = new int[2 * n];
+        for (int x = 0; x < root.length; x++) {
+            root[x] = x;
+        }
+        for (int e = 0; e < graph.getNumberOfEdges(); e++) {
+            int v = graph.edgeVar[e];
+            if (observed[v] < 0 && !inCutset[v]) {
+                root[find(root, n + v)] = find(root, graph.edgeFactor[e]);
+            }
+        }
+        for (int i = cut.size() - 1; i >= 0; i--) {
+            int v = cut.get(i);
+            boolean acyclic = true;
+            int[] edges = graph.varEdges[v];
+            for (int a = 0; a < edges.length && acyclic; a++) {
+                for (int b = a + 1; b < edges.length && acyclic; b++) {
+                    acyclic = find(root, graph.edgeFactor[edges[a]]) != find(root, graph.edgeFactor[edges[b]]);
+                }
+            }
+            if (acyclic) {
+                for (int e : edges) {
+                    root[find(root, n + v)] = find(root, graph.edgeFactor[e]);
+                }
+                cut.remove(i);
+            }
+        }
+        return cut.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static void remove(FactorGraph graph, int x, int n, int[] degree, boolean[] removed,
+                               ArrayDeque<Integer> leaves) {
+        removed[x] = true;
+        int[] edges = x < n ? graph.factorEdges[x] : graph.varEdges[x - n];
+        for (int e : edges) {
+            int other = x < n ? n + graph.edgeVar[e] : graph.edgeFactor[e];
+            if (!removed[other] && --degree[other] <= 1) {
+                leaves.add(other);
+            }
+        }
+    }
+
+    private static int find(int[] root, int x) {
+        while (root[x] != x) {
+            root[x] = root[root[x]];
+            x = root[x];
+        }
+        return x;
+    }
+
+    /**
+     * the cutset and the propagation schedule over the forest it leaves, shared by
+     * every task of a query. Factors are numbered 0 to n-1 and variables n to 2n-1;
+     * every component is walked breadth first from a root, so parents come before
+     * their children in the sequence.
+     */
+    private static final class Plan {
+        private final FactorGraph graph;
+        private final int[] observed;
+        private final int[] cutset;
+        private final long instantiations;
+        private final int[] sequence;
+        private final int[] up;
+
+        Plan(FactorGraph graph, int[] observed) {
+            this.graph = graph;
+            this.observed = observed;
+            this.cutset = cutset(graph, observed);
+            NetworkSnapshot snapshot = graph.snapshot;
+            long count = 1;
+            for (int v : cutset) {
+                count *= snapshot.card[v];
+                if (count > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("The loop cutset of the network has more than "
+                            + Integer.MAX_VALUE + " states");
+                }
+            }
+            instantiations = count;
+
+            int n = snapshot.size();
+            boolean[] clamped = new boolean[n];
+            for (int v = 0; v < n; v++) {
+                clamped[v] = observed[v] >= 0;
+            }
+            for (int v : cutset) {
+                clamped[v] = true;
+            }
+            int[] sequence = new int[2 * n];
+            up = new int[2 * n];
+            boolean[] visited = new boolean[2 * n];
+            int size = 0;
+            for (int start = 2 * n - 1; start >= 0; start--) {
+                if (visited[start] || start >= n && clamped[start - n]) {
+                    continue;
+                }
+                visited[start] = true;
+                up[start] = -1;
+                int head = size;
+                sequence[size++] = start;
+                while (head < size) {
+                    int x = sequence[head++];
+                    int[] edges = x < n ? graph.factorEdges[x] : graph.varEdges[x - n];
+                    for (int e : edges) {
+                        int v = graph.edgeVar[e];
+                        int other = x < n ? n + v : graph.edgeFactor[e];
+                        if (!clamped[v] && !visited[other]) {
+                            visited[other] = true;
+                            up[other] = e;
+                            sequence[size++] = other;
+                        }
+                    }
+                }
+            }
+            this.sequence = Arrays.copyOf(sequence, size);
+        }
+    }
+
+    /**
+     * the beliefs of a range of cutset states, each weighted with the probability of
+     * the evidence and that state divided by exp(scale)
+     */
+    private static final class Sum {
+        private final double[][] weighted;
+        private double scale = Double.NEGATIVE_INFINITY;
+        private double total;
+
+        Sum(NetworkSnapshot snapshot) {
+            weighted = new double[snapshot.networkSize][];
+            for (int v = 0; v < weighted.length; v++) {
+                weighted[v] = new double[snapshot.card[v]];
+            }
+        }
+
+        /**
+         * change the scale so that a weight of exp(logWeight) can be added
+         *
+         * @return the weight to add, relative to the new scale
+         */
+        double rescale(double logWeight) {
+            if (logWeight > scale) {
+                double factor = Math.exp(scale - logWeight);
+                for (double[] row : weighted) {
+                    for (int s = 0; s < row.length; s++) {
+                        row[s] *= factor;
+                    }
+                }
+                total *= factor;
+                scale = logWeight;
+            }
+            return Math.exp(logWeight - scale);
+        }
+
+        void add(Sum other) {
+            if (other.total == 0) {
+                return;
+            }
+            double weight = rescale(other.scale);
+            for (int v = 0; v < weighted.length; v++) {
+                for (int s = 0; s < weighted[v].length; s++) {
+                    weighted[v][s] += weight * other.weighted[v][s];
+                }
+            }
+            total += weight * other.total;
+        }
+    }
+
+    /**
+     * condition on a range of cutset states, splitting the range while it is large
+     */
+    private static final class Conditioning extends RecursiveTask<Sum> {
+        private final Plan plan;
+        private final long from;
+        private final long to;
+
+        Conditioning(Plan plan, long from, long to) {
+            this.plan = plan;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Sum compute() {
+            if (to - from > SEQUENTIAL) {
+                long middle = (from + to) >>> 1;
+                Conditioning left = new Conditioning(plan, from, middle);
+                left.fork();
+                Sum sum = new Conditioning(plan, middle, to).compute();
+                sum.add(left.join());
+                return sum;
+            }
+            FactorGraph graph = plan.graph;
+            NetworkSnapshot snapshot = graph.snapshot;
+            int n = snapshot.size();
+            int[] observed = plan.observed.clone();
+            double[][] toVar = graph.uniformMessages();
+            double[][] toFactor = graph.uniformMessages();
+            double[][] beliefs = new double[n][];
+            for (int v = 0; v < n; v++) {
+                beliefs[v] = new double[snapshot.card[v]];
+            }
+            Sum sum = new Sum(snapshot);
+
+            int[] cutset = plan.cutset;
+            long rest = from;
+            for (int i = cutset.length - 1; i >= 0; i--) {
+                int k = snapshot.card[cutset[i]];
+                observed[cutset[i]] = (int) (rest % k);
+                rest /= k;
+            }
+            for (long index = from; index < to; index++) {
+                double logWeight = propagate(observed, toVar, toFactor, beliefs);
+                if (logWeight > Double.NEGATIVE_INFINITY) {
+                    double weight = sum.rescale(logWeight);
+                    for (int v = 0; v < snapshot.networkSize; v++) {
+                        double[] row = sum.weighted[v];
+                        if (observed[v] >= 0) {
+                            row[observed[v]] += weight;
+                        }
+                        else {
+                            for (int s = 0; s < row.length; s++) {
+                                row[s] += weight * beliefs[v][s];
+                            }
+                        }
+                    }
+                    sum.total += weight;
+                }
+                for (int i = cutset.length - 1; i >= 0; i--) {
+                    if (++observed[cutset[i]] < snapshot.card[cutset[i]]) {
+                        break;
+                    }
+                    observed[cutset[i]] = 0;
+                }
+            }
+            return sum;
+        }
+
+        /**
+         * run one collect and one distribute pass over the forest for one cutset state
+         *
+         * @return the logarithm of the probability of the evidence and the cutset state
+         */
+        private double propagate(int[] observed, double[][] toVar, double[][] toFactor, double[][] beliefs) {
+            FactorGraph graph = plan.graph;
+            int n = graph.snapshot.size();
+            int[] sequence = plan.sequence;
+            int[] up = plan.up;
+            for (int e = 0; e < toFactor.length; e++) {
+                int state = observed[graph.edgeVar[e]];
+                if (state >= 0) {
+                    Arrays.fill(toFactor[e], 0);
+                    toFactor[e][state] = 1.0;
+                }
+            }
+
+            double logWeight = 0;
+            for (int i = sequence.length - 1; i >= 0 && logWeight > Double.NEGATIVE_INFINITY; i--) {
+                int x = sequence[i];
+                int e = up[x];
+                double scale;
+                if (e >= 0) {
+                    scale = x < n ? graph.factorMessage(e, toFactor, toVar[e])
+                            : graph.variableMessage(e, observed, toVar, toFactor[e]);
+                }
+                else if (x >= n) {
+                    scale = graph.belief(x - n, observed, toVar, beliefs[x - n]);
+                }
+                else {
+                    e = graph.factorEdges[x][0];
+                    double[] message = new double[graph.snapshot.card[graph.edgeVar[e]]];
+                    scale = graph.factorMessage(e, toFactor, message) * message[observed[graph.edgeVar[e]]];
+                }
+                logWeight += Math.log(scale);
+            }
+            if (logWeight == Double.NEGATIVE_INFINITY) {
+                return logWeight;
+            }
+
+            for (int x : sequence) {
+                int e = up[x];
+                if (e < 0) {
+                    continue;
+                }
+                if (x >= n) {
+                    graph.factorMessage(e, toFactor, toVar[e]);
+                    graph.belief(x - n, observed, toVar, beliefs[x - n]);
+                }
+                else {
+                    graph.variableMessage(e, observed, toVar, toFactor[e]);
+                }
+            }
+            return logWeight;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A greedy criterion for choosing the next variable to eliminate. The variable with
+ * the lowest cost in the current moral graph is eliminated next.
+ */
+public enum EliminationHeuristic {
+    /**
+     * the number of links that eliminating the variable adds between its neighbours
+     */
+    MIN_FILL {
+        @Override
+        double cost(int v, List<Set<Integer>> neighbours, int[] card, double[] logCard) {
+            double fill = 0;
+            for (int a : neighbours.get(v)) {
+                Set<Integer> adjacent = neighbours.get(a);
+                for (int b : neighbours.get(v)) {
+                    if (a < b && !adjacent.contains(b)) {
+                        fill++;
+                    }
+                }
+            }
+            return fill;
+        }
+    },
+    /**
+     * the size of the table over the variable and its neighbours
+     */
+    MIN_WEIGHT {
+        @Override
+        double cost(int v, List<Set<Integer>> neighbours, int[] card, double[] logCard) {
+            double weight = logCard[v];
+            for (int other : neighbours.get(v)) {
+                weight += logCard[other];
+            }
+            return weight;
+        }
+    },
+    /**
+     * the added links, each weighted by the table size over its two ends
+     */
+    WEIGHTED_MIN_FILL {
+        @Override
+        double cost(int v, List<Set<Integer>> neighbours, int[] card, double[] logCard) {
+            double fill = 0;
+            for (int a : neighbours.get(v)) {
+                Set<Integer> adjacent = neighbours.get(a);
+                for (int b : neighbours.get(v)) {
+                    if (a < b && !adjacent.contains(b)) {
+                        fill += (double) card[a] * card[b];
+                    }
+                }
+            }
+            return fill;
+        }
+    };
+
+    /**
+     * get the cost of eliminating a variable next
+     *
+     * @param v          the variable id
+     * @param neighbours the current neighbours of each variable
+     * @param card       the number of states of each variable
+     * @param logCard    the logarithm of the number of states of each variable
+     * @return the cost, lower is better
+     */
+    abstract double cost(int v, List<Set<Integer>> neighbours, int[] card, double[] logCard);
+}
@@ -0,0 +1,255 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Elimination orders over the interaction graph of a set of factor scopes. Two
+ * variables are neighbours when they appear together in some scope, which for the
+ * conditional probability tables of a network is its moral graph. Variables are
+ * chosen greedily by an {@link EliminationHeuristic}.
+ */
+final class EliminationOrder {
+    private static final double TIE = 1e-9;
+
+    private EliminationOrder() {
+    }
+
+    /**
+     * build the interaction graph of a set of scopes
+     *
+     * @param n      the number of variables
+     * @param scopes the variable ids of each factor
+     * @return the neighbours of each variable
+     */
+    static List<Set<Integer>> interactionGraph(int n, List<int[]> scopes) {
+        List<Set<Integer>> neighbours = new ArrayList<>();
+        for (int v = 0; v < n; v++) {
+            neighbours.add(new HashSet<>());
+        }
+        for (int[] scope : scopes) {
+            for (int a : scope) {
+                for (int b : scope) {
+                    if (a != b) {
+                        neighbours.get(a).add(b);
+                    }
+                }
+            }
+        }
+        return neighbours;
+    }
+
+    /**
+     * order the variables greedily, always eliminating the variable whose
+     * neighbourhood has the smallest table next
+     *
+     * @param card      the number of states of each variable
+     * @param scopes    the variable ids of each factor
+     * @param eliminate which variables to order
+     * @return the variables to eliminate, in order
+     */
+    static int[] minWeight(int[] card, List<int[]> scopes, boolean[] eliminate) {
+        return greedy(card, scopes, eliminate, EliminationHeuristic.MIN_WEIGHT, null);
+    }
+
+    /**
+     * order the variables greedily, always eliminating the variable with the lowest
+     * cost next
+     *
+     * @param card      the number of states of each variable
+     * @param scopes    the variable ids of each factor
+     * @param eliminate which variables to order
+     * @param heuristic the cost of eliminating a variable
+     * @param random    breaks ties at random, or null to take the first variable
+     * @return the variables to eliminate, in order
+     */
+    static int[] greedy(int[] card, List<int[]> scopes, boolean[] eliminate, EliminationHeuristic heuristic,
+                        Random random) {
+        int n = card.length;
+        List<Set<Integer>> neighbours = interactionGraph(n, scopes);
+        double[] logCard = new double[n];
+        for (int v = 0; v < n; v++) {
+            logCard[v] = Math.log(Math.max(1, card[v]));
+        }
+
+        Set<Integer> remaining = new LinkedHashSet<>();
+        for (int v = 0; v < n; v++) {
+            if (eliminate[v]) {
+                remaining.add(v);
+            }
+        }
+        int[] order = new int[remaining.size()];
+        for (int step = 0; step < order.length; step++) {
+            int best = -1;
+            double bestCost = Double.POSITIVE_INFINITY;
+            int ties = 0;
+            for (int v : remaining) {
+                double cost = heuristic.cost(v, neighbours, card, logCard);
+                if (cost < bestCost - TIE * Math.abs(bestCost) || best < 0) {
+                    bestCost = cost;
+                    best = v;
+                    ties = 1;
+                }
+                else if (random != null && cost <= bestCost + TIE * Math.abs(bestCost)
+                        && random.nextInt(++ties) == 0) {
+                    best = v;
+                }
+            }
+            remaining.remove(best);
+            order[step] = best;
+            connect(neighbours, best);
+        }
+        return order;
+    }
+
+    /**
+     * search for a good elimination order of a whole network. Every heuristic runs
+     * once with deterministic tie-breaking and then with randomized tie-breaking; the
+     * restarts run in parallel and the order with the smallest total table size wins.
+     *
+     * @param snapshot   the network
+     * @param heuristics the heuristics to try
+     * @param restarts   the number of randomized runs of each heuristic
+     * @param seed       the seed of the first randomized run
+     * @return the best order found
+     */
+    static EliminationOrdering search(NetworkSnapshot snapshot, List<EliminationHeuristic> heuristics,
+                                      int restarts, long seed) {
+        int n = snapshot.size();
+        List<int[]> scopes = snapshot.scopes();
+        boolean[] all = new boolean[n];
+        Arrays.fill(all, true);
+        int runs = restarts + 1;
+        return IntStream.range(0, heuristics.size() * runs).parallel()
+                .mapToObj(run -> {
+                    EliminationHeuristic heuristic = heuristics.get(run / runs);
+                    int restart = run % runs;
+                    Random random = restart == 0 ? null : new Random(seed + run);
+                    int[] order = greedy(snapshot.card, scopes, all, heuristic, random);
+                    return evaluate(snapshot, scopes, order, heuristic);
+                })
+                .min(Comparator.comparingDouble(EliminationOrdering::getTotalTableSize)
+                        .thenComparingDouble(EliminationOrdering::getMaxCliqueSize))
+                .orElseGet(() -> new EliminationOrdering(new ArrayList<>(), heuristics.isEmpty()
+                        ? EliminationHeuristic.MIN_WEIGHT : heuristics.get(0), 0, 0, 0));
+    }
+
+    /**
+     * measure the cliques an elimination order creates
+     */
+    private static EliminationOrdering evaluate(NetworkSnapshot snapshot, List<int[]> scopes, int[] order,
+                                                EliminationHeuristic heuristic) {
+        int width = 0;
+        double largest = 0;
+        double total = 0;
+        for (int[] clique : cliques(snapshot.size(), scopes, order)) {
+            double entries = 1;
+            for (int var : clique) {
+                entries *= snapshot.card[var];
+            }
+            width = Math.max(width, clique.length);
+            largest = Math.max(largest, entries);
+            total += entries;
+        }
+        List<Node> nodes = new ArrayList<>();
+        for (int v : order) {
+            nodes.add(snapshot.nodes[v]);
+        }
+        return new EliminationOrdering(nodes, heuristic, width, largest, total);
+    }
+
+    /**
+     * simulate the elimination of every variable in order
+     *
+     * @param n      the number of variables
+     * @param scopes the variable ids of each factor
+     * @param order  the elimination order, covering every variable
+     * @return the clique created at each step, the eliminated variable first
+     */
+    static List<int[]> cliques(int n, List<int[]> scopes, int[] order) {
+        List<Set<Integer>> neighbours = interactionGraph(n, scopes);
+        List<int[]> cliques = new ArrayList<>();
+        for (int v : order) {
+            Set<Integer> adjacent = neighbours.get(v);
+            int[] clique = new int[adjacent.size() + 1];
+            clique[0] = v;
+            int i = 1;
+            for (int other : adjacent) {
+                clique[i++] = other;
+            }
+            cliques.add(clique);
+            connect(neighbours, v);
+        }
+        return cliques;
+    }
+
+    /**
+     * drop the cliques of an elimination that are contained in an earlier one. A
+     * clique created later can only be contained in an earlier clique that holds its
+     * eliminated variable.
+     *
+     * @param n       the number of variables
+     * @param cliques the cliques in elimination order, the eliminated variable first
+     * @return the maximal cliques, in elimination order
+     */
+    static List<int[]> maximalCliques(int n, List<int[]> cliques) {
+        List<int[]> maximal = new ArrayList<>();
+        List<List<Integer>> containing = new ArrayList<>();
+        for (int v = 0; v < n; v++) {
+            containing.add(new ArrayList<>());
+        }
+        boolean[] mark = new boolean[n];
+        for (int[] clique : cliques) {
+            for (int var : clique) {
+                mark[var] = true;
+            }
+            boolean subsumed = false;
+            for (int k : containing.get(clique[0])) {
+                int shared = 0;
+                for (int var : maximal.get(k)) {
+                    if (mark[var]) {
+                        shared++;
+                    }
+                }
+                if (shared == clique.length) {
+                    subsumed = true;
+                    break;
+                }
+            }
+            for (int var : clique) {
+                mark[var] = false;
+            }
+            if (!subsumed) {
+                for (int var : clique) {
+                    containing.get(var).add(maximal.size());
+                }
+                maximal.add(clique);
+            }
+        }
+        return maximal;
+    }
+
+    /**
+     * remove a variable from the graph, connecting all of its neighbours
+     */
+    private static void connect(List<Set<Integer>> neighbours, int v) {
+        Set<Integer> adjacent = neighbours.get(v);
+        for (int a : adjacent) {
+            Set<Integer> others = neighbours.get(a);
+            others.remove(v);
+            for (int b : adjacent) {
+                if (a != b) {
+                    others.add(b);
+                }
+            }
+        }
+        neighbours.set(v, new HashSet<>());
+    }
+}
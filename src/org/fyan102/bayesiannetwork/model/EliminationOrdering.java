@@ -0,0 +1,117 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An elimination order of the nodes of a network, with the size of the tables that
+ * exact inference along it creates
+ */
+public class EliminationOrdering {
+    private final List<Node> order;
+    private final EliminationHeuristic heuristic;
+    private final int width;
+    private final double maxCliqueSize;
+    private final double totalTableSize;
+
+    /**
+     * Constructor of EliminationOrdering class
+     *
+     * @param order          the nodes in elimination order
+     * @param heuristic      the heuristic that found the order
+     * @param width          the number of nodes in the largest clique
+     * @param maxCliqueSize  the number of entries in the largest clique table
+     * @param totalTableSize the number of entries in all clique tables together
+     */
+    EliminationOrdering(List<Node> order, EliminationHeuristic heuristic, int width, double maxCliqueSize,
+                        double totalTableSize) {
+        this.order = Collections.unmodifiableList(order);
+        this.heuristic = heuristic;
+        this.width = width;
+        this.maxCliqueSize = maxCliqueSize;
+        this.totalTableSize = totalTableSize;
+    }
+
+    /**
+     * Return the nodes in elimination order, including parents outside the network
+     * and the auxiliary nodes of noisy-MAX distributions in chain form
+     *
+     * @return the elimination order
+     */
+    public List<Node> getOrder() {
+        return order;
+    }
+
+    /**
+     * Return the heuristic that found the order
+     *
+     * @return the heuristic
+     */
+    public EliminationHeuristic getHeuristic() {
+        return heuristic;
+    }
+
+    /**
+     * Return the number of nodes in the largest clique
+     *
+     * @return the size of the largest clique
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Return the number of entries in the largest clique table
+     *
+     * @return the size of the largest table
+     */
+    public double getMaxCliqueSize() {
+        return maxCliqueSize;
+    }
+
+    /**
+     * Return the number of entries in all clique tables together, which bounds the
+     * work and memory of one exact propagation
+     *
+     * @return the total table size
+     */
+    public double getTotalTableSize() {
+        return totalTableSize;
+    }
+
+    /**
+     * translate the order to the ids of a snapshot
+     *
+     * @param snapshot the snapshot
+     * @return the ids in elimination order, or null if the order does not cover
+     * exactly the nodes of the snapshot
+     */
+    int[] toIds(NetworkSnapshot snapshot) {
+        if (order.size() != snapshot.size()) {
+            return null;
+        }
+        int[] ids = new int[order.size()];
+        boolean[] seen = new boolean[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            Integer id = snapshot.ids.get(order.get(i));
+            if (id == null || seen[id]) {
+                return null;
+            }
+            seen[id] = true;
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    @Override
+    public String toString() {
+        return "EliminationOrdering{" +
+                "heuristic=" + heuristic +
+                ", width=" + width +
+                ", maxCliqueSize=" + maxCliqueSize +
+                ", totalTableSize=" + totalTableSize +
+                ", order=" + Arrays.toString(order.stream().map(Node::getName).toArray()) +
+                '}';
+    }
+}
@@ -0,0 +1,272 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental inference on a junction tree for toggling findings one at a time.
+ * The session keeps every message of the clique tree. When a finding changes, only
+ * the messages sent away from the clique holding that node are invalidated, and a
+ * later read recomputes just the invalid messages on the path it needs. Edited
+ * probability tables are handled the same way. A session is meant for one thread at
+ * a time.
+ */
+public class EvidenceSession {
+    private final JunctionTree junctionTree;
+    private final Map<Node, Integer> evidence;
+    private CliqueTree tree;
+    private int[] observed;
+    private double[][] potentials;
+    private double[][] up;
+    private double[][] down;
+    private boolean[] upValid;
+    private boolean[] downValid;
+    private long messagesComputed;
+
+    /**
+     * Constructor of EvidenceSession class
+     *
+     * @param junctionTree the compiled network
+     */
+    EvidenceSession(JunctionTree junctionTree) {
+        this.junctionTree = junctionTree;
+        this.evidence = new HashMap<>();
+        reset(junctionTree.current());
+    }
+
+    /**
+     * observe a node in one of its states
+     *
+     * @param node  the observed node
+     * @param state the index of the observed state
+     */
+    public void setEvidence(Node node, int state) {
+        CliqueTree current = refresh();
+        Integer id = current.snapshot.ids.get(node);
+        if (id == null) {
+            throw new IllegalArgumentException("Node " + node.getName() + " is not in the network");
+        }
+        if (state < 0 || state >= current.snapshot.card[id]) {
+            throw new IllegalArgumentException("Invalid state " + state + " for node " + node.getName());
+        }
+        if (observed[id] == state) {
+            return;
+        }
+        evidence.put(node, state);
+        observed[id] = state;
+        changed(tree.home[id]);
+    }
+
+    /**
+     * retract the finding on a node
+     *
+     * @param node the node
+     */
+    public void clearEvidence(Node node) {
+        refresh();
+        if (evidence.remove(node) == null) {
+            return;
+        }
+        int id = tree.snapshot.ids.get(node);
+        observed[id] = -1;
+        changed(tree.home[id]);
+    }
+
+    /**
+     * get the current findings
+     *
+     * @return the observed state index of each observed node
+     */
+    public Map<Node, Integer> getEvidence() {
+        return new HashMap<>(evidence);
+    }
+
+    /**
+     * compute the posterior distribution of one node, recomputing only the messages
+     * invalidated since the last read
+     *
+     * @param node the node to query
+     * @return the posterior over the states of the node
+     */
+    public double[] getBelief(Node node) {
+        refresh();
+        Integer id = tree.snapshot.ids.get(node);
+        if (id == null) {
+            throw new IllegalArgumentException("Node " + node.getName() + " is not in the network");
+        }
+        return marginal(id);
+    }
+
+    /**
+     * compute the posterior distribution of every node in the network
+     *
+     * @return the posterior over the states of each node, in network order
+     */
+    public Map<Node, double[]> getBeliefs() {
+        refresh();
+        Map<Node, double[]> results = new LinkedHashMap<>();
+        for (Node node : junctionTree.getNetwork().getNodes()) {
+            results.put(node, marginal(tree.snapshot.ids.get(node)));
+        }
+        return results;
+    }
+
+    /**
+     * Return the number of clique messages computed by this session so far
+     *
+     * @return the number of messages computed
+     */
+    public long getMessagesComputed() {
+        return messagesComputed;
+    }
+
+    /**
+     * follow the current compiled tree if the network has changed. After a change of
+     * parameters only the messages that depend on the changed cliques are
+     * invalidated; after a change of structure the session starts again.
+     */
+    private CliqueTree refresh() {
+        CliqueTree current = junctionTree.current();
+        if (current == tree) {
+            return current;
+        }
+        current.buildMaps();
+        if (current.vars != tree.vars) {
+            reset(current);
+            return current;
+        }
+        CliqueTree previous = tree;
+        tree = current;
+        for (int c = 0; c < current.getNumberOfCliques(); c++) {
+            if (!current.sharesPotential(previous, c)) {
+                changed(c);
+            }
+        }
+        return current;
+    }
+
+    private void reset(CliqueTree current) {
+        current.buildMaps();
+        tree = current;
+        observed = current.snapshot.evidence(evidence);
+        int m = current.getNumberOfCliques();
+        potentials = new double[m][];
+        for (int c = 0; c < m; c++) {
+            potentials[c] = conditioned(c);
+        }
+        up = new double[m][];
+        down = new double[m][];
+        upValid = new boolean[m];
+        downValid = new boolean[m];
+    }
+
+    /**
+     * the potential of a clique with the findings on the nodes it is home to
+     */
+    private double[] conditioned(int c) {
+        double[] potential = tree.potential(c);
+        for (int v = 0; v < observed.length; v++) {
+            if (observed[v] >= 0 && tree.home[v] == c) {
+                tree.applyEvidence(potential, c, v, observed[v]);
+            }
+        }
+        return potential;
+    }
+
+    /**
+     * reload the potential of a clique and invalidate the messages that depend on it:
+     * the upward messages on its path to the root and every downward message that
+     * does not lead towards it
+     */
+    private void changed(int c) {
+        potentials[c] = conditioned(c);
+        boolean[] onPath = new boolean[upValid.length];
+        for (int x = c; x >= 0; x = tree.parent[x]) {
+            upValid[x] = false;
+            onPath[x] = true;
+        }
+        for (int x = 0; x < downValid.length; x++) {
+            if (!onPath[x]) {
+                downValid[x] = false;
+            }
+        }
+    }
+
+    private double[] marginal(int v) {
+        int c = tree.home[v];
+        for (int k : tree.children[c]) {
+            ensureUp(k);
+        }
+        if (tree.parent[c] >= 0) {
+            ensureDown(c);
+        }
+        double[] belief = tree.belief(c, potentials[c], up, tree.parent[c] >= 0 ? down[c] : null);
+        return tree.marginal(c, belief, v);
+    }
+
+    /**
+     * make the upward message of a clique valid, recomputing the invalid messages of
+     * its subtree children first
+     */
+    private void ensureUp(int c) {
+        if (upValid[c]) {
+            return;
+        }
+        List<Integer> preorder = new ArrayList<>();
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        stack.push(c);
+        while (!stack.isEmpty()) {
+            int x = stack.pop();
+            preorder.add(x);
+            for (int k : tree.children[x]) {
+                if (!upValid[k]) {
+                    stack.push(k);
+                }
+            }
+        }
+        for (int i = preorder.size() - 1; i >= 0; i--) {
+            int x = preorder.get(i);
+            tree.collect(x, potentials[x], up);
+            upValid[x] = true;
+            messagesComputed++;
+        }
+    }
+
+    /**
+     * make the downward message into a clique valid, recomputing the invalid messages
+     * on its path from the root first
+     */
+    private void ensureDown(int c) {
+        List<Integer> path = new ArrayList<>();
+        for (int x = c; tree.parent[x] >= 0 && !downValid[x]; x = tree.parent[x]) {
+            path.add(x);
+        }
+        for (int i = path.size() - 1; i >= 0; i--) {
+            int x = path.get(i);
+            int p = tree.parent[x];
+            double[] work = potentials[p].clone();
+            if (tree.parent[p] >= 0) {
+                CliqueTree.multiply(work, down[p], tree.childMap[p]);
+            }
+            for (int k : tree.children[p]) {
+                if (k != x) {
+                    ensureUp(k);
+                    CliqueTree.multiply(work, up[k], tree.parentMap[k]);
+                }
+            }
+            double[] message = new double[tree.separatorSize[x]];
+            int[] map = tree.parentMap[x];
+            for (int e = 0; e < work.length; e++) {
+                message[map[e]] += work[e];
+            }
+            CliqueTree.normalize(message);
+            down[x] = message;
+            downValid[x] = true;
+            messagesComputed++;
+        }
+    }
+}
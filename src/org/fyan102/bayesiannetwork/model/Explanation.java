@@ -0,0 +1,65 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.Map;
+
+/**
+ * The most probable joint assignment of a set of nodes given evidence
+ */
+public class Explanation {
+    private final Map<Node, Integer> assignment;
+    private final double probability;
+    private final double logProbability;
+
+    /**
+     * Constructor of Explanation class
+     *
+     * @param assignment     the state index of each explained node
+     * @param probability    the joint probability of the assignment and the evidence
+     * @param logProbability the logarithm of the joint probability
+     */
+    Explanation(Map<Node, Integer> assignment, double probability, double logProbability) {
+        this.assignment = assignment;
+        this.probability = probability;
+        this.logProbability = logProbability;
+    }
+
+    /**
+     * Return the most probable state of every explained node
+     *
+     * @return the state index of each node
+     */
+    public Map<Node, Integer> getAssignment() {
+        return assignment;
+    }
+
+    /**
+     * get the most probable state of one node
+     *
+     * @param node the node
+     * @return the state index, or null if the node is not explained
+     */
+    public Integer getState(Node node) {
+        return assignment.get(node);
+    }
+
+    /**
+     * Return the joint probability of the assignment together with the evidence.
+     * Divide by the probability of the evidence for the posterior of the assignment.
+     *
+     * @return P(assignment, evidence), or 0 if the evidence is impossible
+     */
+    public double getProbability() {
+        return probability;
+    }
+
+    /**
+     * Return the logarithm of the joint probability of the assignment together with
+     * the evidence, which stays finite where the probability itself underflows
+     *
+     * @return log P(assignment, evidence), or negative infinity if the evidence is
+     * impossible
+     */
+    public double getLogProbability() {
+        return logProbability;
+    }
+}
@@ -0,0 +1,493 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of non-negative values over a set of discrete variables. Variables are
+ * identified by integer ids and the values are stored row-major, so the last
+ * variable of the scope varies fastest. The inner loops of the operations run over
+ * contiguous runs of the tables with {@link FactorKernels}.
+ */
+final class Factor {
+    private static final FactorKernels KERNELS = FactorKernels.INSTANCE;
+
+    private final int[] vars;
+    private final int[] card;
+    private final double[] values;
+
+    /**
+     * Constructor of Factor class
+     *
+     * @param vars   the ids of the variables in the scope
+     * @param card   the number of states of each variable
+     * @param values the table, row-major over the scope
+     */
+    Factor(int[] vars, int[] card, double[] values) {
+        this.vars = vars;
+        this.card = card;
+        this.values = values;
+    }
+
+    /**
+     * create a factor with an empty scope
+     *
+     * @param value the single value of the factor
+     * @return a constant factor
+     */
+    static Factor constant(double value) {
+        return new Factor(new int[0], new int[0], new double[]{value});
+    }
+
+    /**
+     * create the conditional probability factor of a node. The scope is the parents
+     * of the node followed by the node itself, which matches the row order of the
+     * probability table. Nodes without parents use their beliefs as the prior. A
+     * noisy-MAX node in chain form or a node with a context tree is scoped over its
+     * factor parents instead.
+     *
+     * @param node the node
+     * @param ids  the ids of the node and its factor parents
+     * @return the factor P(node | parents)
+     */
+    static Factor of(Node node, Map<Node, Integer> ids) {
+        List<Node> factorParents = node.getFactorParents();
+        int parents = factorParents.size();
+        int[] vars = new int[parents + 1];
+        int[] card = new int[parents + 1];
+        int rows = 1;
+        for (int i = 0; i < parents; i++) {
+            Node parent = factorParents.get(i);
+            vars[i] = ids.get(parent);
+            card[i] = parent.getNumberOfStates();
+            rows *= card[i];
+        }
+        int states = node.getNumberOfStates();
+        vars[parents] = ids.get(node);
+        card[parents] = states;
+
+        double[] parametric = node.factorTable();
+        if (parametric != null) {
+            return new Factor(vars, card, parametric);
+        }
+        // the flat table of the node has the same layout; rows it lacks stay 0
+        double[] table = node.plainTable();
+        double[] values = new double[rows * states];
+        System.arraycopy(table, 0, values, 0, Math.min(values.length, table.length));
+        return new Factor(vars, card, values);
+    }
+
+    /**
+     * create an indicator over one variable
+     *
+     * @param var   the variable id
+     * @param card  the number of states of the variable
+     * @param state the state that has the value 1
+     * @return the indicator factor
+     */
+    static Factor indicator(int var, int card, int state) {
+        double[] values = new double[card];
+        values[state] = 1.0;
+        return new Factor(new int[]{var}, new int[]{card}, values);
+    }
+
+    int[] getVars() {
+        return vars;
+    }
+
+    int[] getCard() {
+        return card;
+    }
+
+    double[] getValues() {
+        return values;
+    }
+
+    /**
+     * find the position of a variable in the scope
+     *
+     * @param var the variable id
+     * @return the position, or -1 if the variable is not in the scope
+     */
+    int indexOf(int var) {
+        for (int i = 0; i < vars.length; i++) {
+            if (vars[i] == var) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * multiply two factors. The scope of the result is the scope of this factor
+     * followed by the variables that only occur in the other factor.
+     *
+     * @param other the other factor
+     * @return the product
+     */
+    Factor product(Factor other) {
+        return combine(other, false);
+    }
+
+    /**
+     * multiply two factors that hold logarithms, by adding their values. The scope
+     * is laid out as in product(Factor).
+     *
+     * @param other the other factor, also in log space
+     * @return the product, in log space
+     */
+    Factor logProduct(Factor other) {
+        return combine(other, true);
+    }
+
+    private Factor combine(Factor other, boolean log) {
+        int extra = 0;
+        for (int var : other.vars) {
+            if (indexOf(var) < 0) {
+                extra++;
+            }
+        }
+        int m = vars.length + extra;
+        int[] resultVars = new int[m];
+        int[] resultCard = new int[m];
+        System.arraycopy(vars, 0, resultVars, 0, vars.length);
+        System.arraycopy(card, 0, resultCard, 0, card.length);
+        int next = vars.length;
+        for (int i = 0; i < other.vars.length; i++) {
+            if (indexOf(other.vars[i]) < 0) {
+                resultVars[next] = other.vars[i];
+                resultCard[next] = other.card[i];
+                next++;
+            }
+        }
+
+        int[] strideA = strides(resultVars);
+        int[] strideB = other.strides(resultVars);
+        int size = 1;
+        for (int c : resultCard) {
+            size *= c;
+        }
+
+        // the trailing variables that each table walks contiguously, or not at all,
+        // form one run that a kernel multiplies at once
+        int split = m;
+        int run = 1;
+        int kindA = -1;
+        int kindB = -1;
+        while (split > 0 && size > 0) {
+            int ka = kind(strideA[split - 1], run);
+            int kb = kind(strideB[split - 1], run);
+            if (ka < 0 || kb < 0 || (kindA >= 0 && ka != kindA) || (kindB >= 0 && kb != kindB)) {
+                break;
+            }
+            kindA = ka;
+            kindB = kb;
+            run *= resultCard[--split];
+        }
+
+        double[] result = new double[size];
+        int[] assignment = new int[split];
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < size; i += run) {
+            if (kindA == 1 && kindB == 1) {
+                if (log) {
+                    KERNELS.addPairs(values, a, other.values, b, result, i, run);
+                }
+                else {
+                    KERNELS.multiply(values, a, other.values, b, result, i, run);
+                }
+            }
+            else if (kindA == 1 || kindB == 1) {
+                double[] source = kindA == 1 ? values : other.values;
+                int at = kindA == 1 ? a : b;
+                double constant = kindA == 1 ? other.values[b] : values[a];
+                if (log) {
+                    KERNELS.shift(source, at, constant, result, i, run);
+                }
+                else {
+                    KERNELS.scale(source, at, constant, result, i, run);
+                }
+            }
+            else {
+                Arrays.fill(result, i, i + run, log ? values[a] + other.values[b] : values[a] * other.values[b]);
+            }
+            for (int l = split - 1; l >= 0; l--) {
+                if (++assignment[l] < resultCard[l]) {
+                    a += strideA[l];
+                    b += strideB[l];
+                    break;
+                }
+                assignment[l] = 0;
+                a -= (resultCard[l] - 1) * strideA[l];
+                b -= (resultCard[l] - 1) * strideB[l];
+            }
+        }
+        return new Factor(resultVars, resultCard, result);
+    }
+
+    /**
+     * classify the stride of a variable at the start of a run
+     *
+     * @return 1 if the table walks the run contiguously, 0 if it stays put, -1 otherwise
+     */
+    private static int kind(int stride, int run) {
+        return stride == 0 ? 0 : stride == run ? 1 : -1;
+    }
+
+    /**
+     * sum a variable out of the factor
+     *
+     * @param var the variable id
+     * @return the marginal over the remaining variables
+     */
+    Factor sumOut(int var) {
+        int p = indexOf(var);
+        if (p < 0) {
+            return this;
+        }
+        int outer = 1;
+        for (int i = 0; i < p; i++) {
+            outer *= card[i];
+        }
+        int inner = 1;
+        for (int i = p + 1; i < card.length; i++) {
+            inner *= card[i];
+        }
+        int c = card[p];
+
+        double[] result = new double[outer * inner];
+        for (int o = 0; o < outer; o++) {
+            if (inner == 1) {
+                result[o] = KERNELS.sum(values, o * c, c);
+                continue;
+            }
+            for (int s = 0; s < c; s++) {
+                KERNELS.add(values, (o * c + s) * inner, result, o * inner, inner);
+            }
+        }
+        return new Factor(remove(vars, p), remove(card, p), result);
+    }
+
+    /**
+     * sum a variable out of a factor that holds logarithms, with the log-sum-exp of
+     * every group of entries taken relative to its maximum so that nothing underflows
+     *
+     * @param var the variable id
+     * @return the marginal over the remaining variables, in log space
+     */
+    Factor logSumOut(int var) {
+        int p = indexOf(var);
+        if (p < 0) {
+            return this;
+        }
+        Factor max = maxOut(var, null);
+        double[] result = max.values;
+        int inner = 1;
+        for (int i = p + 1; i < card.length; i++) {
+            inner *= card[i];
+        }
+        int c = card[p];
+        double[] sums = new double[result.length];
+        for (int o = 0; o < result.length / Math.max(1, inner); o++) {
+            for (int s = 0; s < c; s++) {
+                int from = (o * c + s) * inner;
+                int to = o * inner;
+                for (int i = 0; i < inner; i++) {
+                    double top = result[to + i];
+                    if (top > Double.NEGATIVE_INFINITY) {
+                        sums[to + i] += Math.exp(values[from + i] - top);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < result.length; i++) {
+            if (result[i] > Double.NEGATIVE_INFINITY && result[i] < Double.POSITIVE_INFINITY) {
+                result[i] += Math.log(sums[i]);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * maximize a variable out of the factor
+     *
+     * @param var    the variable id
+     * @param argMax receives, for every entry of the result, the state of the variable
+     *               that attains the maximum, or null if not needed
+     * @return the maximum over the remaining variables
+     */
+    Factor maxOut(int var, int[] argMax) {
+        int p = indexOf(var);
+        if (p < 0) {
+            return this;
+        }
+        int outer = 1;
+        for (int i = 0; i < p; i++) {
+            outer *= card[i];
+        }
+        int inner = 1;
+        for (int i = p + 1; i < card.length; i++) {
+            inner *= card[i];
+        }
+        int c = card[p];
+
+        double[] result = new double[outer * inner];
+        Arrays.fill(result, Double.NEGATIVE_INFINITY);
+        for (int o = 0; o < outer; o++) {
+            for (int s = 0; s < c; s++) {
+                int from = (o * c + s) * inner;
+                int to = o * inner;
+                if (argMax == null) {
+                    KERNELS.max(values, from, result, to, inner);
+                    continue;
+                }
+                for (int i = 0; i < inner; i++) {
+                    if (values[from + i] > result[to + i]) {
+                        result[to + i] = values[from + i];
+                        argMax[to + i] = s;
+                    }
+                }
+            }
+        }
+        if (c == 0) {
+            Arrays.fill(result, 0);
+        }
+        return new Factor(remove(vars, p), remove(card, p), result);
+    }
+
+    /**
+     * fix a variable to an observed state and drop it from the scope
+     *
+     * @param var   the variable id
+     * @param state the observed state
+     * @return the reduced factor
+     */
+    Factor reduce(int var, int state) {
+        int p = indexOf(var);
+        if (p < 0) {
+            return this;
+        }
+        int outer = 1;
+        for (int i = 0; i < p; i++) {
+            outer *= card[i];
+        }
+        int inner = 1;
+        for (int i = p + 1; i < card.length; i++) {
+            inner *= card[i];
+        }
+        int c = card[p];
+
+        double[] result = new double[outer * inner];
+        for (int o = 0; o < outer; o++) {
+            System.arraycopy(values, (o * c + state) * inner, result, o * inner, inner);
+        }
+        return new Factor(remove(vars, p), remove(card, p), result);
+    }
+
+    /**
+     * scale the values so that they sum to one. An all-zero factor is left unchanged.
+     *
+     * @return the sum before normalization
+     */
+    double normalize() {
+        double sum = KERNELS.sum(values, 0, values.length);
+        if (sum > 0) {
+            KERNELS.scale(values, 0, 1 / sum, values, 0, values.length);
+        }
+        return sum;
+    }
+
+    /**
+     * turn a factor that holds logarithms into one that sums to one, subtracting the
+     * log-sum-exp of its values. An all-zero factor, all values negative infinity, is
+     * left unchanged.
+     *
+     * @return the logarithm of the sum before normalization
+     */
+    double logNormalize() {
+        double top = Double.NEGATIVE_INFINITY;
+        for (double value : values) {
+            top = Math.max(top, value);
+        }
+        if (top == Double.NEGATIVE_INFINITY) {
+            return top;
+        }
+        double sum = 0;
+        for (double value : values) {
+            sum += Math.exp(value - top);
+        }
+        double logSum = top + Math.log(sum);
+        KERNELS.shift(values, 0, -logSum, values, 0, values.length);
+        return logSum;
+    }
+
+    /**
+     * take the logarithm of every value
+     *
+     * @return the factor in log space
+     */
+    Factor log() {
+        double[] result = new double[values.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Math.log(values[i]);
+        }
+        return new Factor(vars, card, result);
+    }
+
+    /**
+     * take the exponential of every value of a factor in log space
+     *
+     * @return the factor in linear space
+     */
+    Factor exp() {
+        double[] result = new double[values.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Math.exp(values[i]);
+        }
+        return new Factor(vars, card, result);
+    }
+
+    /**
+     * find the entry of the table for an assignment of its variables
+     *
+     * @param assignment the state of every variable, indexed by variable id
+     * @return the index into the values
+     */
+    int offset(int[] assignment) {
+        int index = 0;
+        for (int i = 0; i < vars.length; i++) {
+            index = index * card[i] + assignment[vars[i]];
+        }
+        return index;
+    }
+
+    /**
+     * get the strides of this factor's variables laid out along another scope
+     *
+     * @param scope the scope to walk
+     * @return the stride of each scope variable in this table, 0 if absent
+     */
+    private int[] strides(int[] scope) {
+        int[] own = new int[vars.length];
+        int stride = 1;
+        for (int i = vars.length - 1; i >= 0; i--) {
+            own[i] = stride;
+            stride *= card[i];
+        }
+        int[] result = new int[scope.length];
+        for (int i = 0; i < scope.length; i++) {
+            int p = indexOf(scope[i]);
+            result[i] = p >= 0 ? own[p] : 0;
+        }
+        return result;
+    }
+
+    private static int[] remove(int[] array, int index) {
+        int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+}
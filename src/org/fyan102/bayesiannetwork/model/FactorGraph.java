@@ -0,0 +1,209 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.Arrays;
+
+/**
+ * The factor graph of a network snapshot: one factor per node holding its
+ * conditional probability table over its family, and one edge for every variable in
+ * the scope of a factor. Messages are kept per edge in both directions, so the
+ * graph itself holds no state and can be shared between queries.
+ */
+final class FactorGraph {
+    final NetworkSnapshot snapshot;
+    final int[] edgeFactor;
+    final int[] edgeVar;
+    final int[][] factorEdges;
+    final int[][] varEdges;
+
+    FactorGraph(NetworkSnapshot snapshot) {
+        this.snapshot = snapshot;
+        int n = snapshot.size();
+        int edges = 0;
+        for (int f = 0; f < n; f++) {
+            edges += snapshot.parents[f].length + 1;
+        }
+        edgeFactor = new int[edges];
+        edgeVar = new int[edges];
+        factorEdges = new int[n][];
+        int[] degree = new int[n];
+        int e = 0;
+        for (int f = 0; f < n; f++) {
+            int[] family = snapshot.family(f);
+            factorEdges[f] = new int[family.length];
+            for (int i = 0; i < family.length; i++) {
+                edgeFactor[e] = f;
+                edgeVar[e] = family[i];
+                factorEdges[f][i] = e;
+                degree[family[i]]++;
+                e++;
+            }
+        }
+        varEdges = new int[n][];
+        for (int v = 0; v < n; v++) {
+            varEdges[v] = new int[degree[v]];
+            degree[v] = 0;
+        }
+        for (e = 0; e < edges; e++) {
+            int v = edgeVar[e];
+            varEdges[v][degree[v]++] = e;
+        }
+    }
+
+    int getNumberOfEdges() {
+        return edgeVar.length;
+    }
+
+    /**
+     * create the messages of every edge, each uniform over the states of its variable
+     *
+     * @return one message per edge
+     */
+    double[][] uniformMessages() {
+        double[][] messages = new double[edgeVar.length][];
+        for (int e = 0; e < messages.length; e++) {
+            int k = snapshot.card[edgeVar[e]];
+            messages[e] = new double[k];
+            Arrays.fill(messages[e], 1.0 / k);
+        }
+        return messages;
+    }
+
+    /**
+     * compute the normalized message from a factor to one of its variables: the table
+     * of the factor times the incoming messages of its other variables, summed over
+     * everything except the variable
+     *
+     * @param e        the edge
+     * @param incoming the variable-to-factor message of every edge
+     * @param out      receives the message
+     * @return the sum of the message before normalizing
+     */
+    double factorMessage(int e, double[][] incoming, double[] out) {
+        int f = edgeFactor[e];
+        int[] edges = factorEdges[f];
+        int[] card = snapshot.card;
+        double[] table = snapshot.cpt[f];
+        Arrays.fill(out, 0);
+        int m = edges.length;
+        int self = 0;
+        while (edges[self] != e) {
+            self++;
+        }
+        int[] digits = new int[m];
+        for (int idx = 0; idx < table.length; idx++) {
+            double weight = table[idx];
+            for (int j = 0; j < m && weight != 0; j++) {
+                if (j != self) {
+                    weight *= incoming[edges[j]][digits[j]];
+                }
+            }
+            out[digits[self]] += weight;
+            for (int j = m - 1; j >= 0; j--) {
+                if (++digits[j] < card[edgeVar[edges[j]]]) {
+                    break;
+                }
+                digits[j] = 0;
+            }
+        }
+        return normalize(out);
+    }
+
+    /**
+     * compute the normalized message from a variable to one of its factors: its
+     * finding times the messages of its other factors
+     *
+     * @param e        the edge
+     * @param observed the observed state of each variable, or -1
+     * @param incoming the factor-to-variable message of every edge
+     * @param out      receives the message
+     * @return the sum of the message before normalizing
+     */
+    double variableMessage(int e, int[] observed, double[][] incoming, double[] out) {
+        int v = edgeVar[e];
+        finding(v, observed, out);
+        for (int other : varEdges[v]) {
+            if (other != e) {
+                multiply(out, incoming[other]);
+            }
+        }
+        return normalize(out);
+    }
+
+    /**
+     * compute the normalized belief of a variable from its finding and all incoming
+     * factor-to-variable messages
+     *
+     * @param v        the variable
+     * @param observed the observed state of each variable, or -1
+     * @param incoming the factor-to-variable message of every edge
+     * @return the belief
+     */
+    double[] belief(int v, int[] observed, double[][] incoming) {
+        double[] belief = new double[snapshot.card[v]];
+        belief(v, observed, incoming, belief);
+        return belief;
+    }
+
+    /**
+     * compute the normalized belief of a variable into a given array
+     *
+     * @param v        the variable
+     * @param observed the observed state of each variable, or -1
+     * @param incoming the factor-to-variable message of every edge
+     * @param out      receives the belief
+     * @return the sum of the belief before normalizing
+     */
+    double belief(int v, int[] observed, double[][] incoming, double[] out) {
+        finding(v, observed, out);
+        for (int e : varEdges[v]) {
+            multiply(out, incoming[e]);
+        }
+        return normalize(out);
+    }
+
+    private static void finding(int v, int[] observed, double[] out) {
+        if (observed[v] >= 0) {
+            Arrays.fill(out, 0);
+            out[observed[v]] = 1.0;
+        }
+        else {
+            Arrays.fill(out, 1.0);
+        }
+    }
+
+    private static void multiply(double[] target, double[] message) {
+        for (int s = 0; s < target.length; s++) {
+            target[s] *= message[s];
+        }
+    }
+
+    /**
+     * scale a message to sum to one, leaving an all-zero message unchanged
+     *
+     * @param message the message
+     * @return the sum before scaling
+     */
+    static double normalize(double[] message) {
+        double sum = 0;
+        for (double value : message) {
+            sum += value;
+        }
+        if (sum > 0) {
+            for (int s = 0; s < message.length; s++) {
+                message[s] /= sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * the largest absolute difference between two messages
+     */
+    static double distance(double[] a, double[] b) {
+        double result = 0;
+        for (int s = 0; s < a.length; s++) {
+            result = Math.max(result, Math.abs(a[s] - b[s]));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,128 @@
+package org.fyan102.bayesiannetwork.model;
+
+/**
+ * The inner loops of the factor operations, over contiguous runs of a table. The
+ * kernels of the JDK Vector API are used when the jdk.incubator.vector module is
+ * present (run with --add-modules jdk.incubator.vector); otherwise, or when the
+ * system property bayesiannetwork.vector is false, plain loops are used.
+ */
+abstract class FactorKernels {
+    /**
+     * the kernels in use
+     */
+    static final FactorKernels INSTANCE = load();
+
+    private static FactorKernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("bayesiannetwork.vector", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return new Scalar();
+        }
+        try {
+            return (FactorKernels) Class.forName(FactorKernels.class.getPackageName() + ".VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            return new Scalar();
+        }
+    }
+
+    /**
+     * get the plain loops, whatever kernels are in use
+     *
+     * @return the scalar kernels
+     */
+    static FactorKernels scalar() {
+        return new Scalar();
+    }
+
+    /**
+     * out[o + i] = a[ai + i] * b[bi + i] for i below n
+     */
+    abstract void multiply(double[] a, int ai, double[] b, int bi, double[] out, int o, int n);
+
+    /**
+     * out[o + i] = a[ai + i] * factor for i below n
+     */
+    abstract void scale(double[] a, int ai, double factor, double[] out, int o, int n);
+
+    /**
+     * out[o + i] = a[ai + i] + b[bi + i] for i below n
+     */
+    abstract void addPairs(double[] a, int ai, double[] b, int bi, double[] out, int o, int n);
+
+    /**
+     * out[o + i] = a[ai + i] + constant for i below n
+     */
+    abstract void shift(double[] a, int ai, double constant, double[] out, int o, int n);
+
+    /**
+     * out[o + i] += a[ai + i] for i below n
+     */
+    abstract void add(double[] a, int ai, double[] out, int o, int n);
+
+    /**
+     * out[o + i] = max(out[o + i], a[ai + i]) for i below n
+     */
+    abstract void max(double[] a, int ai, double[] out, int o, int n);
+
+    /**
+     * sum of a[ai + i] for i below n
+     */
+    abstract double sum(double[] a, int ai, int n);
+
+    /**
+     * the plain loops
+     */
+    private static final class Scalar extends FactorKernels {
+        @Override
+        void multiply(double[] a, int ai, double[] b, int bi, double[] out, int o, int n) {
+            for (int i = 0; i < n; i++) {
+                out[o + i] = a[ai + i] * b[bi + i];
+            }
+        }
+
+        @Override
+        void scale(double[] a, int ai, double factor, double[] out, int o, int n) {
+            for (int i = 0; i < n; i++) {
+                out[o + i] = a[ai + i] * factor;
+            }
+        }
+
+        @Override
+        void addPairs(double[] a, int ai, double[] b, int bi, double[] out, int o, int n) {
+            for (int i = 0; i < n; i++) {
+                out[o + i] = a[ai + i] + b[bi + i];
+            }
+        }
+
+        @Override
+        void shift(double[] a, int ai, double constant, double[] out, int o, int n) {
+            for (int i = 0; i < n; i++) {
+                out[o + i] = a[ai + i] + constant;
+            }
+        }
+
+        @Override
+        void add(double[] a, int ai, double[] out, int o, int n) {
+            for (int i = 0; i < n; i++) {
+                out[o + i] += a[ai + i];
+            }
+        }
+
+        @Override
+        void max(double[] a, int ai, double[] out, int o, int n) {
+            for (int i = 0; i < n; i++) {
+                out[o + i] = Math.max(out[o + i], a[ai + i]);
+            }
+        }
+
+        @Override
+        double sum(double[] a, int ai, int n) {
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += a[ai + i];
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable copy of a network, compiled for exact inference. Freezing copies the
+ * names, states, parents and tables of every node into primitive arrays and compiles
+ * them into a junction tree; nothing of the network is read again afterwards, so the
+ * network may be edited while the frozen copy is queried. Every field is final and
+ * never changes once frozen, so any number of threads may query a frozen network at
+ * once without locks, and a frozen network handed to another thread through a
+ * volatile field or a concurrent collection is seen complete.
+ * <p>
+ * Nodes are numbered by their position in the network at the time it was frozen. The
+ * numbers after them belong to parents that were never added to the network and to
+ * the auxiliary nodes of noisy-MAX distributions in chain form, which have names,
+ * states and tables like any other node but are never queried.
+ * <p>
+ * {@link Network#publish()} freezes a network after a batch of edits and makes the
+ * result the one {@link Network#getPublished()} returns, so readers always see either
+ * the old or the new model and never one in between.
+ */
+public final class FrozenNetwork {
+    private final CliqueTree tree;
+    private final NetworkSnapshot snapshot;
+    private final int[] topologicalOrder;
+    private final SymbolTable names;
+    private final SymbolTable[] states;
+
+    private FrozenNetwork(CliqueTree tree) {
+        this.tree = tree;
+        snapshot = tree.snapshot;
+        int[] order = snapshot.topologicalOrder();
+        int[] networkOrder = new int[snapshot.networkSize];
+        int next = 0;
+        for (int v : order) {
+            if (v < snapshot.networkSize) {
+                networkOrder[next++] = v;
+            }
+        }
+        topologicalOrder = networkOrder;
+        List<String> list = new ArrayList<>(snapshot.size());
+        states = new SymbolTable[snapshot.size()];
+        for (int v = 0; v < states.length; v++) {
+            list.add(snapshot.nodes[v].getName());
+            states[v] = new SymbolTable(snapshot.nodes[v].getStates());
+        }
+        names = new SymbolTable(list);
+    }
+
+    /**
+     * freeze a network. The network must not be edited while it is being frozen.
+     *
+     * @param network the network
+     * @return the frozen network
+     */
+    public static FrozenNetwork of(Network network) {
+        return of(network, null);
+    }
+
+    /**
+     * freeze a network, reusing the cliques of an earlier frozen copy of the same
+     * network if only parameters changed since. Clique potentials whose tables did not
+     * change are shared with the earlier copy, which stays valid.
+     *
+     * @param network  the network
+     * @param previous an earlier frozen copy of the network, may be null
+     * @return the frozen network
+     */
+    static FrozenNetwork of(Network network, FrozenNetwork previous) {
+        NetworkSnapshot snapshot = NetworkSnapshot.of(network);
+        TableStorage storage = network.getStorage();
+        if (previous != null && previous.snapshot.hasSameStructure(network)) {
+            return new FrozenNetwork(previous.tree.withParameters(snapshot, storage));
+        }
+        return new FrozenNetwork(new CliqueTree(snapshot,
+                network.getEliminationOrdering().toIds(snapshot), storage));
+    }
+
+    /**
+     * Return the number of nodes of the network
+     *
+     * @return the number of nodes
+     */
+    public int getNumberOfNodes() {
+        return snapshot.networkSize;
+    }
+
+    /**
+     * Return the number of nodes including the parents outside the network and the
+     * auxiliary nodes
+     *
+     * @return the number of node ids
+     */
+    public int size() {
+        return snapshot.size();
+    }
+
+    /**
+     * find the id of a node by its name
+     *
+     * @param name the name
+     * @return the id of the first node with that name, or -1 if there is none
+     */
+    public int indexOf(String name) {
+        return names.indexOf(name);
+    }
+
+    /**
+     * find the id of a node of the network it was frozen from
+     *
+     * @param node the node
+     * @return the id of the node, or -1 if it was not in the network
+     */
+    public int indexOf(Node node) {
+        Integer id = snapshot.ids.get(node);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Return the name of a node when it was frozen
+     *
+     * @param v the node id
+     * @return the name
+     */
+    public String getName(int v) {
+        return names.get(v);
+    }
+
+    /**
+     * Return the number of states of a node
+     *
+     * @param v the node id
+     * @return the number of states
+     */
+    public int getNumberOfStates(int v) {
+        return snapshot.card[v];
+    }
+
+    /**
+     * Return the label of a state
+     *
+     * @param v     the node id
+     * @param state the state index
+     * @return the label
+     */
+    public String getState(int v, int state) {
+        return states[v].get(state);
+    }
+
+    /**
+     * find the index of a state by its label
+     *
+     * @param v     the node id
+     * @param state the label
+     * @return the state index, or -1 if the node has no such state
+     */
+    public int getStateIndex(int v, String state) {
+        return states[v].indexOf(state);
+    }
+
+    /**
+     * get the parents the table of a node is conditioned on. A node with a context
+     * tree only has the parents the tree tests, and a noisy-MAX node in chain form
+     * the last auxiliary node of its chain and its last parent.
+     *
+     * @param v the node id
+     * @return a copy of the ids of the parents
+     */
+    public int[] getParents(int v) {
+        return snapshot.parents[v].clone();
+    }
+
+    /**
+     * get the table of a node, one row per combination of the states of its parents
+     * as returned by getParents(int), with the first parent most significant, and one
+     * column per state. A node without parents has its prior as its only row.
+     *
+     * @param v the node id
+     * @return a copy of the table
+     */
+    public double[] getTable(int v) {
+        return snapshot.cpt[v].clone();
+    }
+
+    /**
+     * get the nodes of the network ordered so that every node comes after its parents
+     *
+     * @return a copy of the node ids in topological order
+     */
+    public int[] getTopologicalOrder() {
+        return topologicalOrder.clone();
+    }
+
+    /**
+     * compute the posterior distribution of every node of the network
+     *
+     * @param evidence the observed state index of each node of the network, by id, or
+     *                 -1 where the node is not observed
+     * @return the posterior over the states of each node, by id
+     */
+    public double[][] query(int[] evidence) {
+        return tree.query(observed(evidence), networkNodes(), null);
+    }
+
+    /**
+     * compute the posterior distribution of one node
+     *
+     * @param v        the id of the node to query
+     * @param evidence the observed state index of each node of the network, by id, or
+     *                 -1 where the node is not observed
+     * @return the posterior over the states of the node
+     */
+    public double[] query(int v, int[] evidence) {
+        if (v < 0 || v >= snapshot.networkSize) {
+            throw new IllegalArgumentException("Invalid node id " + v);
+        }
+        return tree.query(observed(evidence), new int[]{v}, null)[0];
+    }
+
+    /**
+     * compute the posterior distribution of every node of the network, for evidence
+     * on the nodes the network had when it was frozen
+     *
+     * @param evidence the observed state index of each observed node
+     * @return the posterior over the states of each node, in network order
+     */
+    public Map<Node, double[]> query(Map<Node, Integer> evidence) {
+        double[][] marginals = tree.query(snapshot.evidence(evidence), networkNodes(), null);
+        Map<Node, double[]> results = new LinkedHashMap<>();
+        for (int v = 0; v < snapshot.networkSize; v++) {
+            results.put(snapshot.nodes[v], marginals[v]);
+        }
+        return results;
+    }
+
+    /**
+     * compute the probability of the evidence
+     *
+     * @param evidence the observed state index of each node of the network, by id, or
+     *                 -1 where the node is not observed
+     * @return P(evidence)
+     */
+    public double probabilityOfEvidence(int[] evidence) {
+        return Math.exp(logProbabilityOfEvidence(evidence));
+    }
+
+    /**
+     * compute the logarithm of the probability of the evidence
+     *
+     * @param evidence the observed state index of each node of the network, by id, or
+     *                 -1 where the node is not observed
+     * @return log P(evidence), or negative infinity if the evidence is impossible
+     */
+    public double logProbabilityOfEvidence(int[] evidence) {
+        double[] logZ = new double[1];
+        tree.query(observed(evidence), new int[0], logZ);
+        return logZ[0];
+    }
+
+    /**
+     * get the memory the compiled clique potentials take, on or off the heap
+     *
+     * @return the size of the potentials in bytes
+     */
+    public long getPotentialBytes() {
+        return tree.getPotentialBytes();
+    }
+
+    private int[] observed(int[] evidence) {
+        if (evidence.length != snapshot.networkSize) {
+            throw new IllegalArgumentException("The evidence must have one entry per node, "
+                    + snapshot.networkSize + " in all");
+        }
+        int[] observed = Arrays.copyOf(evidence, snapshot.size());
+        Arrays.fill(observed, evidence.length, observed.length, -1);
+        for (int v = 0; v < evidence.length; v++) {
+            if (evidence[v] < -1 || evidence[v] >= snapshot.card[v]) {
+                throw new IllegalArgumentException("Invalid state " + evidence[v] + " for node " + names.get(v));
+            }
+        }
+        return observed;
+    }
+
+    private int[] networkNodes() {
+        int[] nodes = new int[snapshot.networkSize];
+        for (int v = 0; v < nodes.length; v++) {
+            nodes[v] = v;
+        }
+        return nodes;
+    }
+}
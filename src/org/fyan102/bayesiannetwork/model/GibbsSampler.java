@@ -0,0 +1,499 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Approximate inference by Gibbs sampling. Several independent chains run in
+ * parallel, one thread each. Every sweep resamples each unobserved node from its
+ * distribution given its Markov blanket, which is precomputed once per query as flat
+ * arrays of children and strides. Chains run in rounds; after every round their
+ * counts are merged into the potential scale reduction (R-hat) and the batch-means
+ * effective sample size of each estimate, so a query can stop as soon as the chains
+ * agree.
+ */
+public class GibbsSampler {
+    private static final int ROUND = 512;
+    private static final int BATCH = 64;
+    private static final double Z = 1.96;
+
+    private final Network network;
+    private long maxSamples = 100000;
+    private long burnIn = 1000;
+    private long timeBudgetMillis = 0;
+    private double targetRHat = 0;
+    private double minEffectiveSampleSize = 0;
+    private int chains = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private Long seed = null;
+
+    /**
+     * Constructor of GibbsSampler class
+     *
+     * @param network the network to query
+     */
+    public GibbsSampler(Network network) {
+        this.network = network;
+    }
+
+    /**
+     * change the number of samples, summed over all chains, after which sampling stops
+     *
+     * @param maxSamples the sample limit
+     */
+    public void setMaxSamples(long maxSamples) {
+        if (maxSamples <= 0) {
+            throw new IllegalArgumentException("The sample limit must be positive");
+        }
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * change the number of sweeps each chain discards before it starts counting
+     *
+     * @param burnIn the number of discarded sweeps per chain
+     */
+    public void setBurnIn(long burnIn) {
+        if (burnIn < 0) {
+            throw new IllegalArgumentException("The burn-in must not be negative");
+        }
+        this.burnIn = burnIn;
+    }
+
+    /**
+     * change the wall-clock budget of a query
+     *
+     * @param timeBudgetMillis the budget in milliseconds, or 0 for no budget
+     */
+    public void setTimeBudget(long timeBudgetMillis) {
+        if (timeBudgetMillis < 0) {
+            throw new IllegalArgumentException("The time budget must not be negative");
+        }
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * stop once the R-hat of every state probability is at most this value
+     *
+     * @param targetRHat the target R-hat, for example 1.01, or 0 to ignore R-hat
+     */
+    public void setTargetRHat(double targetRHat) {
+        if (targetRHat != 0 && !(targetRHat >= 1)) {
+            throw new IllegalArgumentException("The target R-hat must be 0 or at least 1");
+        }
+        this.targetRHat = targetRHat;
+    }
+
+    /**
+     * stop once the effective sample size of every state probability is at least this
+     * value. A chain that has always or never been in a state adds nothing to the
+     * effective sample size of its probability, since it shows nothing of how well the
+     * chain mixes over that state.
+     *
+     * @param minEffectiveSampleSize the target effective sample size, or 0 to ignore it
+     */
+    public void setMinEffectiveSampleSize(double minEffectiveSampleSize) {
+        if (!(minEffectiveSampleSize >= 0)) {
+            throw new IllegalArgumentException("The effective sample size must not be negative");
+        }
+        this.minEffectiveSampleSize = minEffectiveSampleSize;
+    }
+
+    /**
+     * change the number of chains, each of which runs on its own thread
+     *
+     * @param chains the number of chains
+     */
+    public void setChains(int chains) {
+        if (chains < 2) {
+            throw new IllegalArgumentException("At least two chains are needed to compute R-hat");
+        }
+        this.chains = chains;
+    }
+
+    /**
+     * fix the seed of the random generators, making runs with the same number of
+     * chains repeatable
+     *
+     * @param seed the seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * estimate the posterior distribution of every node
+     *
+     * @param evidence the observed state index of each observed node
+     * @return the estimates, with the effective sample size and R-hat of each
+     */
+    public SamplingResult query(Map<Node, Integer> evidence) {
+        NetworkSnapshot snapshot = NetworkSnapshot.of(network);
+        int[] observed = snapshot.evidence(evidence);
+        Blanket blanket = new Blanket(snapshot);
+        int n = snapshot.size();
+        int[] offset = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            offset[v + 1] = offset[v] + snapshot.card[v];
+        }
+
+        SplittableRandom master = seed == null ? new SplittableRandom() : new SplittableRandom(seed);
+        List<Chain> workers = new ArrayList<>();
+        for (int c = 0; c < chains; c++) {
+            workers.add(new Chain(snapshot, blanket, observed, offset, burnIn, master.split()));
+        }
+
+        long start = System.nanoTime();
+        long perChain = (maxSamples + chains - 1) / chains;
+        double[] rHat = new double[offset[n]];
+        double[] ess = new double[offset[n]];
+        double[] marginal = new double[offset[n]];
+        long samples = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(chains, runnable -> {
+            Thread thread = new Thread(runnable, "gibbs-chain");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            while (workers.get(0).samples < perChain) {
+                int sweeps = (int) Math.min(ROUND, perChain - workers.get(0).samples);
+                for (Chain chain : workers) {
+                    chain.sweeps = sweeps;
+                }
+                for (Future<Void> future : pool.invokeAll(workers)) {
+                    future.get();
+                }
+                samples = diagnose(workers, observed, offset, marginal, rHat, ess);
+                if (timeBudgetMillis > 0 && System.nanoTime() - start >= timeBudgetMillis * 1000000L) {
+                    break;
+                }
+                if ((targetRHat > 0 || minEffectiveSampleSize > 0)
+                        && converged(observed, offset, rHat, ess)) {
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Sampling was interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("Sampling failed", e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        Map<Node, double[]> marginals = new LinkedHashMap<>();
+        Map<Node, Double> effective = new LinkedHashMap<>();
+        Map<Node, Double> reductions = new LinkedHashMap<>();
+        double width = 0;
+        for (int v = 0; v < snapshot.networkSize; v++) {
+            double[] result = new double[snapshot.card[v]];
+            double nodeEss = samples;
+            double nodeRHat = 1.0;
+            if (observed[v] >= 0) {
+                result[observed[v]] = 1.0;
+            }
+            else {
+                for (int s = 0; s < result.length; s++) {
+                    int i = offset[v] + s;
+                    result[s] = marginal[i];
+                    nodeEss = Math.min(nodeEss, ess[i]);
+                    nodeRHat = Math.max(nodeRHat, rHat[i]);
+                    double p = (marginal[i] * ess[i] + 2) / (ess[i] + 4);
+                    width = Math.max(width, Z * Math.sqrt(p * (1 - p) / (ess[i] + 4)));
+                }
+            }
+            marginals.put(snapshot.nodes[v], result);
+            effective.put(snapshot.nodes[v], nodeEss);
+            reductions.put(snapshot.nodes[v], nodeRHat);
+        }
+        return new SamplingResult(marginals, effective, reductions, samples, System.nanoTime() - start, width,
+                chains);
+    }
+
+    /**
+     * merge the counts of all chains into the pooled estimates, the Gelman-Rubin
+     * R-hat and the batch-means effective sample size of each state probability
+     *
+     * @return the number of samples over all chains
+     */
+    private static long diagnose(List<Chain> workers, int[] observed, int[] offset,
+                                 double[] marginal, double[] rHat, double[] ess) {
+        int m = workers.size();
+        long n = workers.get(0).samples;
+        for (int v = 0; v < observed.length; v++) {
+            if (observed[v] >= 0) {
+                continue;
+            }
+            for (int i = offset[v]; i < offset[v + 1]; i++) {
+                double mean = 0;
+                for (Chain chain : workers) {
+                    mean += (double) chain.counts[i] / n;
+                }
+                mean /= m;
+                double between = 0;
+                double within = 0;
+                double effective = 0;
+                for (Chain chain : workers) {
+                    double p = (double) chain.counts[i] / n;
+                    between += (p - mean) * (p - mean);
+                    within += n > 1 ? p * (1 - p) * n / (n - 1) : 0;
+                    effective += chain.effectiveSampleSize(i, p);
+                }
+                between *= (double) n / (m - 1);
+                within /= m;
+                marginal[i] = mean;
+                ess[i] = effective;
+                if (within > 0) {
+                    double pooled = (n - 1.0) / n * within + between / n;
+                    rHat[i] = Math.sqrt(pooled / within);
+                }
+                else {
+                    rHat[i] = between > 0 ? Double.POSITIVE_INFINITY : 1.0;
+                }
+            }
+        }
+        return n * m;
+    }
+
+    private boolean converged(int[] observed, int[] offset, double[] rHat, double[] ess) {
+        for (int v = 0; v < observed.length; v++) {
+            if (observed[v] >= 0) {
+                continue;
+            }
+            for (int i = offset[v]; i < offset[v + 1]; i++) {
+                if (targetRHat > 0 && !(rHat[i] <= targetRHat)) {
+                    return false;
+                }
+                if (ess[i] < minEffectiveSampleSize) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * the Markov blanket of every node: the row strides of its parents, and for each
+     * distinct child the stride of the node in the rows of that child
+     */
+    private static final class Blanket {
+        private final int[][] strides;
+        private final int[][] children;
+        private final int[][] childStrides;
+
+        Blanket(NetworkSnapshot snapshot) {
+            int n = snapshot.size();
+            strides = new int[n][];
+            for (int v = 0; v < n; v++) {
+                strides[v] = snapshot.rowStrides(v);
+            }
+            children = new int[n][];
+            childStrides = new int[n][];
+            for (int v = 0; v < n; v++) {
+                int[] distinct = Arrays.stream(snapshot.children[v]).distinct().toArray();
+                children[v] = distinct;
+                childStrides[v] = new int[distinct.length];
+                for (int j = 0; j < distinct.length; j++) {
+                    int[] parent = snapshot.parents[distinct[j]];
+                    for (int i = 0; i < parent.length; i++) {
+                        if (parent[i] == v) {
+                            childStrides[v][j] += strides[distinct[j]][i];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * the state and counts of one chain
+     */
+    private static final class Chain implements Callable<Void> {
+        private final NetworkSnapshot snapshot;
+        private final Blanket blanket;
+        private final int[] observed;
+        private final int[] offset;
+        private final SplittableRandom random;
+        private final int[] states;
+        private final double[] weights;
+        private final long[] counts;
+        private final int[] batchCounts;
+        private final double[] batchSum;
+        private final double[] batchSumSquares;
+        private long burnIn;
+        private int batchFill;
+        private long batches;
+        private int sweeps;
+        private long samples;
+
+        Chain(NetworkSnapshot snapshot, Blanket blanket, int[] observed, int[] offset, long burnIn,
+              SplittableRandom random) {
+            this.snapshot = snapshot;
+            this.blanket = blanket;
+            this.observed = observed;
+            this.offset = offset;
+            this.burnIn = burnIn;
+            this.random = random;
+            int size = offset[offset.length - 1];
+            this.states = new int[observed.length];
+            this.weights = new double[Arrays.stream(snapshot.card).max().orElse(0)];
+            this.counts = new long[size];
+            this.batchCounts = new int[size];
+            this.batchSum = new double[size];
+            this.batchSumSquares = new double[size];
+            initialize();
+        }
+
+        /**
+         * start from a forward sample with the evidence clamped
+         */
+        private void initialize() {
+            int[] card = snapshot.card;
+            for (int v : snapshot.topologicalOrder()) {
+                if (observed[v] >= 0) {
+                    states[v] = observed[v];
+                    continue;
+                }
+                if (card[v] == 0 || snapshot.cpt[v].length == 0) {
+                    continue;
+                }
+                int base = row(v) * card[v];
+                double u = random.nextDouble();
+                int state = card[v] - 1;
+                for (int k = 0; k < card[v]; k++) {
+                    u -= snapshot.cpt[v][base + k];
+                    if (u < 0) {
+                        state = k;
+                        break;
+                    }
+                }
+                states[v] = state;
+            }
+        }
+
+        @Override
+        public Void call() {
+            for (; burnIn > 0; burnIn--) {
+                sweep();
+            }
+            for (int s = 0; s < sweeps; s++) {
+                sweep();
+                record();
+            }
+            return null;
+        }
+
+        private int row(int v) {
+            int row = 0;
+            int[] parent = snapshot.parents[v];
+            int[] stride = blanket.strides[v];
+            for (int i = 0; i < parent.length; i++) {
+                row += states[parent[i]] * stride[i];
+            }
+            return row;
+        }
+
+        /**
+         * resample every unobserved node from its distribution given its Markov blanket
+         */
+        private void sweep() {
+            int[] card = snapshot.card;
+            double[][] cpt = snapshot.cpt;
+            for (int v = 0; v < states.length; v++) {
+                int k = card[v];
+                if (observed[v] >= 0 || k == 0 || cpt[v].length == 0) {
+                    continue;
+                }
+                int base = row(v) * k;
+                for (int s = 0; s < k; s++) {
+                    weights[s] = cpt[v][base + s];
+                }
+                int[] children = blanket.children[v];
+                int[] childStrides = blanket.childStrides[v];
+                for (int j = 0; j < children.length; j++) {
+                    int c = children[j];
+                    int kc = card[c];
+                    if (kc == 0 || cpt[c].length == 0) {
+                        continue;
+                    }
+                    int rest = row(c) - states[v] * childStrides[j];
+                    double[] table = cpt[c];
+                    for (int s = 0; s < k; s++) {
+                        weights[s] *= table[(rest + s * childStrides[j]) * kc + states[c]];
+                    }
+                }
+                double total = 0;
+                for (int s = 0; s < k; s++) {
+                    total += weights[s];
+                }
+                if (!(total > 0)) {
+                    continue;
+                }
+                double u = random.nextDouble() * total;
+                int state = k - 1;
+                for (int s = 0; s < k; s++) {
+                    u -= weights[s];
+                    if (u < 0) {
+                        state = s;
+                        break;
+                    }
+                }
+                states[v] = state;
+            }
+        }
+
+        private void record() {
+            int[] card = snapshot.card;
+            for (int v = 0; v < states.length; v++) {
+                if (observed[v] < 0 && card[v] > 0) {
+                    counts[offset[v] + states[v]]++;
+                    batchCounts[offset[v] + states[v]]++;
+                }
+            }
+            samples++;
+            if (++batchFill == BATCH) {
+                for (int i = 0; i < batchCounts.length; i++) {
+                    double mean = (double) batchCounts[i] / BATCH;
+                    batchSum[i] += mean;
+                    batchSumSquares[i] += mean * mean;
+                }
+                Arrays.fill(batchCounts, 0);
+                batchFill = 0;
+                batches++;
+            }
+        }
+
+        /**
+         * estimate the effective sample size of one state probability from the
+         * variance of its batch means
+         *
+         * @param i the index of the state
+         * @param p the estimate of this chain
+         * @return the effective sample size, 0 before two batches are complete or if
+         * the chain has always or never been in the state
+         */
+        private double effectiveSampleSize(int i, double p) {
+            double variance = p * (1 - p);
+            if (batches < 2 || variance == 0) {
+                return 0;
+            }
+            double mean = batchSum[i] / batches;
+            double batchVariance = (batchSumSquares[i] - batches * mean * mean) / (batches - 1) * BATCH;
+            if (!(batchVariance > 0)) {
+                return samples;
+            }
+            return Math.min(samples, samples * variance / batchVariance);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.fyan102.bayesiannetwork.model;
+
+/**
+ * The estimated cost of answering a query with one inference engine. Sizes are counted
+ * in table entries and may exceed the range of a long, so they are doubles.
+ */
+public class InferenceCost {
+    private final InferenceEngine engine;
+    private final double largestTable;
+    private final double largestArray;
+    private final double peakBytes;
+    private final double flops;
+
+    /**
+     * Constructor of InferenceCost class
+     *
+     * @param engine       the engine
+     * @param largestTable the number of entries in the largest table the engine builds
+     * @param peakBytes    the memory the engine holds at its peak, on and off the heap
+     * @param flops        the number of floating-point operations of one query
+     */
+    InferenceCost(InferenceEngine engine, double largestTable, double peakBytes, double flops) {
+        this(engine, largestTable, largestTable, peakBytes, flops);
+    }
+
+    /**
+     * Constructor of InferenceCost class, for an engine that keeps its largest tables
+     * off the heap
+     *
+     * @param engine       the engine
+     * @param largestTable the number of entries in the largest table the engine builds
+     * @param largestArray the number of entries in the largest table it keeps in an array
+     * @param peakBytes    the memory the engine holds at its peak, on and off the heap
+     * @param flops        the number of floating-point operations of one query
+     */
+    InferenceCost(InferenceEngine engine, double largestTable, double largestArray, double peakBytes, double flops) {
+        this.engine = engine;
+        this.largestTable = largestTable;
+        this.largestArray = largestArray;
+        this.peakBytes = peakBytes;
+        this.flops = flops;
+    }
+
+    /**
+     * Return the engine
+     *
+     * @return the engine
+     */
+    public InferenceEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Return the number of entries in the largest table the engine builds
+     *
+     * @return the size of the largest table
+     */
+    public double getLargestTable() {
+        return largestTable;
+    }
+
+    /**
+     * Return the memory the engine holds at its peak, including the tables it copies
+     * from the network but not the network itself
+     *
+     * @return the peak memory in bytes
+     */
+    public double getPeakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * Return the number of floating-point operations of one query
+     *
+     * @return the work of one query
+     */
+    public double getFlops() {
+        return flops;
+    }
+
+    /**
+     * check if every table the engine builds can be allocated, in a Java array or off
+     * the heap
+     *
+     * @return true if the engine can run at all
+     */
+    public boolean isFeasible() {
+        return largestArray <= Integer.MAX_VALUE && largestTable <= Long.MAX_VALUE / Double.BYTES;
+    }
+
+    /**
+     * check if the engine can run within a memory budget
+     *
+     * @param budgetBytes the memory available, in bytes
+     * @return true if the engine is feasible and its peak memory is within the budget
+     */
+    public boolean fits(long budgetBytes) {
+        return isFeasible() && peakBytes <= budgetBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "InferenceCost{" +
+                "engine=" + engine +
+                ", largestTable=" + largestTable +
+                ", largestArray=" + largestArray +
+                ", peakBytes=" + peakBytes +
+                ", flops=" + flops +
+                '}';
+    }
+}
@@ -0,0 +1,46 @@
+package org.fyan102.bayesiannetwork.model;
+
+/**
+ * The inference engines whose cost {@link InferencePlanner} estimates
+ */
+public enum InferenceEngine {
+    /**
+     * {@link VariableElimination}, one elimination per query
+     */
+    VARIABLE_ELIMINATION(true),
+    /**
+     * {@link JunctionTree}, compiled once and propagated per query
+     */
+    JUNCTION_TREE(true),
+    /**
+     * {@link CutsetConditioning}, one forest propagation per joint state of the cutset
+     */
+    CUTSET_CONDITIONING(true),
+    /**
+     * {@link LoopyBeliefPropagation}, one sweep over all messages per iteration
+     */
+    LOOPY_BELIEF_PROPAGATION(false),
+    /**
+     * {@link LikelihoodWeighting}, one pass over the nodes per sample
+     */
+    LIKELIHOOD_WEIGHTING(false),
+    /**
+     * {@link GibbsSampler}, one pass over the Markov blankets per sample
+     */
+    GIBBS_SAMPLING(false);
+
+    private final boolean exact;
+
+    InferenceEngine(boolean exact) {
+        this.exact = exact;
+    }
+
+    /**
+     * check if the engine computes exact posteriors
+     *
+     * @return true for an exact engine, false for an approximate one
+     */
+    public boolean isExact() {
+        return exact;
+    }
+}
@@ -0,0 +1,334 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the memory and work of every inference engine on a network before any
+ * engine runs. Only the structure is read: the number of states of every node and its
+ * parents, the cliques of the elimination order cached on the network and the loop
+ * cutset. No table is copied, so the planner is cheap even for a network whose tables
+ * would not fit in memory. The estimates count the tables the engines build and copy
+ * from the network, not the network itself; they are meant to rank the engines and to
+ * reject hopeless queries, not to predict run times.
+ */
+public class InferencePlanner {
+    private final Network network;
+    private final NetworkSnapshot snapshot;
+    private final double tableSize;
+    private final double largestFamily;
+    private final double messageSize;
+    private final double sweepFlops;
+    private int iterations = 100;
+    private long samples = 100000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Constructor of InferencePlanner class
+     *
+     * @param network the network to plan for
+     */
+    public InferencePlanner(Network network) {
+        this.network = network;
+        snapshot = NetworkSnapshot.structureOf(network);
+        int n = snapshot.size();
+        double tables = 0;
+        double largest = 0;
+        double messages = 0;
+        double sweep = 0;
+        for (int v = 0; v < n; v++) {
+            double size = snapshot.card[v];
+            for (int p : snapshot.parents[v]) {
+                size *= snapshot.card[p];
+                messages += snapshot.card[p];
+            }
+            messages += snapshot.card[v];
+            tables += size;
+            largest = Math.max(largest, size);
+            // every message out of a factor sweeps its table once
+            sweep += 2 * size * (snapshot.parents[v].length + 1);
+        }
+        tableSize = tables;
+        largestFamily = largest;
+        messageSize = messages;
+        sweepFlops = sweep;
+    }
+
+    /**
+     * change the number of iterations assumed for loopy belief propagation
+     *
+     * @param iterations the number of iterations
+     */
+    public void setIterations(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("At least one iteration is required");
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * change the number of samples assumed for the sampling engines
+     *
+     * @param samples the number of samples
+     */
+    public void setSamples(long samples) {
+        if (samples < 1) {
+            throw new IllegalArgumentException("At least one sample is required");
+        }
+        this.samples = samples;
+    }
+
+    /**
+     * change the number of threads assumed to run at once, each with its own working
+     * memory
+     *
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * estimate the cost of one engine
+     *
+     * @param engine the engine
+     * @return the estimate
+     */
+    public InferenceCost estimate(InferenceEngine engine) {
+        if (engine == InferenceEngine.VARIABLE_ELIMINATION) {
+            return variableElimination();
+        }
+        if (engine == InferenceEngine.JUNCTION_TREE) {
+            return junctionTree();
+        }
+        if (engine == InferenceEngine.CUTSET_CONDITIONING) {
+            return cutsetConditioning();
+        }
+        if (engine == InferenceEngine.LOOPY_BELIEF_PROPAGATION) {
+            // the messages of the last sweep are kept next to the current ones
+            return new InferenceCost(engine, largestFamily, bytes(tableSize + 4 * messageSize),
+                    iterations * sweepFlops);
+        }
+        if (engine == InferenceEngine.LIKELIHOOD_WEIGHTING) {
+            double work = 0;
+            double counts = 0;
+            for (int v = 0; v < snapshot.size(); v++) {
+                work += snapshot.card[v] + snapshot.parents[v].length;
+                counts += snapshot.card[v];
+            }
+            return new InferenceCost(engine, largestFamily, bytes(tableSize + threads * counts), samples * work);
+        }
+        // Gibbs sampling weighs every state of a node by the tables of its children
+        double work = 0;
+        double counts = 0;
+        for (int v = 0; v < snapshot.size(); v++) {
+            work += (double) snapshot.card[v] * (snapshot.children[v].length + 1);
+            counts += snapshot.card[v];
+        }
+        return new InferenceCost(engine, largestFamily, bytes(tableSize + threads * counts), samples * work);
+    }
+
+    /**
+     * estimate the cost of every engine
+     *
+     * @return one estimate per engine, in the order of {@link InferenceEngine}
+     */
+    public List<InferenceCost> estimateAll() {
+        List<InferenceCost> costs = new ArrayList<>();
+        for (InferenceEngine engine : InferenceEngine.values()) {
+            costs.add(estimate(engine));
+        }
+        return costs;
+    }
+
+    /**
+     * choose the engine with the least work among those within a memory and a work
+     * budget, preferring exact engines to approximate ones
+     *
+     * @param budgetBytes the memory available, in bytes
+     * @param maxFlops    the most floating-point operations a query may take
+     * @return the estimate of the chosen engine, or null if no engine fits
+     */
+    public InferenceCost choose(long budgetBytes, double maxFlops) {
+        InferenceCost best = null;
+        for (InferenceCost cost : estimateAll()) {
+            if (!cost.fits(budgetBytes) || cost.getFlops() > maxFlops) {
+                continue;
+            }
+            if (best == null || cost.getEngine().isExact() && !best.getEngine().isExact()
+                    || cost.getEngine().isExact() == best.getEngine().isExact() && cost.getFlops() < best.getFlops()) {
+                best = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * reject an engine that does not fit a memory budget, before it allocates anything
+     *
+     * @param engine      the engine
+     * @param budgetBytes the memory available, in bytes
+     * @return the estimate of the engine
+     */
+    public InferenceCost requireWithin(InferenceEngine engine, long budgetBytes) {
+        InferenceCost cost = estimate(engine);
+        if (!cost.isFeasible()) {
+            throw new IllegalStateException(engine + " would build a table of " + cost.getLargestTable()
+                    + " entries, more than an array can hold");
+        }
+        if (!cost.fits(budgetBytes)) {
+            throw new IllegalStateException(engine + " needs about " + (long) cost.getPeakBytes()
+                    + " bytes, more than the budget of " + budgetBytes);
+        }
+        return cost;
+    }
+
+    /**
+     * eliminate along the cached order, keeping track of the tables alive at once.
+     * Every table that holds the variable is multiplied into one product, which is
+     * then summed over the variable.
+     */
+    private InferenceCost variableElimination() {
+        int n = snapshot.size();
+        List<int[]> factors = new ArrayList<>(snapshot.scopes());
+        List<Boolean> intermediate = new ArrayList<>(Collections.nCopies(n, false));
+        double live = 0;
+        double peak = 0;
+        double largest = largestFamily;
+        double flops = 0;
+        for (int[] clique : EliminationOrder.cliques(n, snapshot.scopes(), order())) {
+            int v = clique[0];
+            int merged = 0;
+            for (int f = factors.size() - 1; f >= 0; f--) {
+                if (contains(factors.get(f), v)) {
+                    if (intermediate.get(f)) {
+                        live -= size(factors.get(f));
+                    }
+                    factors.remove(f);
+                    intermediate.remove(f);
+                    merged++;
+                }
+            }
+            double product = size(clique);
+            int[] rest = Arrays.copyOfRange(clique, 1, clique.length);
+            double summed = size(rest);
+            peak = Math.max(peak, live + product + summed);
+            largest = Math.max(largest, product);
+            flops += product * Math.max(merged, 1);
+            factors.add(rest);
+            intermediate.add(true);
+            live += summed;
+        }
+        return new InferenceCost(InferenceEngine.VARIABLE_ELIMINATION, largest, bytes(tableSize + peak), flops);
+    }
+
+    /**
+     * the compiled potentials in the storage of the network, plus for every query
+     * running at once a working copy of the potentials, the clique beliefs and the
+     * messages, which are at most as large again. Off the heap the queries stream the
+     * potentials and only hold two messages per separator, and only the separators
+     * have to fit in an array. Every separator is the intersection of two cliques, so
+     * the largest intersection of a clique with any other bounds its separator.
+     */
+    private InferenceCost junctionTree() {
+        double total = 0;
+        double largest = 0;
+        int n = snapshot.size();
+        List<int[]> cliques = EliminationOrder.maximalCliques(n, EliminationOrder.cliques(n, snapshot.scopes(), order()));
+        List<List<Integer>> containing = new ArrayList<>();
+        for (int v = 0; v < n; v++) {
+            containing.add(new ArrayList<>());
+        }
+        for (int k = 0; k < cliques.size(); k++) {
+            double size = size(cliques.get(k));
+            total += size;
+            largest = Math.max(largest, size);
+            for (int v : cliques.get(k)) {
+                containing.get(v).add(k);
+            }
+        }
+        long m = cliques.size();
+        Map<Long, Double> shared = new HashMap<>();
+        for (int v = 0; v < n; v++) {
+            List<Integer> list = containing.get(v);
+            for (int i = 0; i < list.size(); i++) {
+                for (int j = i + 1; j < list.size(); j++) {
+                    shared.merge(list.get(i) * m + list.get(j), (double) snapshot.card[v], (x, y) -> x * y);
+                }
+            }
+        }
+        double[] separator = new double[cliques.size()];
+        for (Map.Entry<Long, Double> entry : shared.entrySet()) {
+            int a = (int) (entry.getKey() / m);
+            int b = (int) (entry.getKey() % m);
+            separator[a] = Math.max(separator[a], entry.getValue());
+            separator[b] = Math.max(separator[b], entry.getValue());
+        }
+        double separators = 0;
+        double largestSeparator = 0;
+        for (double size : separator) {
+            separators += size;
+            largestSeparator = Math.max(largestSeparator, size);
+        }
+        double compiled = total * (network.getStorage() == TableStorage.SINGLE ? Float.BYTES : Double.BYTES);
+        if (network.getStorage() == TableStorage.OFF_HEAP) {
+            return new InferenceCost(InferenceEngine.JUNCTION_TREE, largest, largestSeparator,
+                    bytes(tableSize + threads * 2 * separators) + compiled, 2 * total);
+        }
+        return new InferenceCost(InferenceEngine.JUNCTION_TREE, largest,
+                bytes(tableSize + threads * 3 * total) + compiled, 6 * total);
+    }
+
+    /**
+     * one sweep of the forest in both directions for every joint state of the cutset,
+     * each thread keeping one set of messages
+     */
+    private InferenceCost cutsetConditioning() {
+        int[] observed = new int[snapshot.size()];
+        Arrays.fill(observed, -1);
+        double states = 1;
+        for (int v : CutsetConditioning.cutset(new FactorGraph(snapshot), observed)) {
+            states *= snapshot.card[v];
+        }
+        return new InferenceCost(InferenceEngine.CUTSET_CONDITIONING, largestFamily,
+                bytes(tableSize + threads * 2 * messageSize), states * sweepFlops);
+    }
+
+    private int[] order() {
+        int[] order = network.getEliminationOrdering().toIds(snapshot);
+        if (order == null) {
+            boolean[] all = new boolean[snapshot.size()];
+            Arrays.fill(all, true);
+            order = EliminationOrder.minWeight(snapshot.card, snapshot.scopes(), all);
+        }
+        return order;
+    }
+
+    private double size(int[] scope) {
+        double size = 1;
+        for (int v : scope) {
+            size *= snapshot.card[v];
+        }
+        return size;
+    }
+
+    private static boolean contains(int[] scope, int v) {
+        for (int var : scope) {
+            if (var == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double bytes(double entries) {
+        return entries * Double.BYTES;
+    }
+}
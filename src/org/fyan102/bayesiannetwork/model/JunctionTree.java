@@ -0,0 +1,235 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exact inference on a network compiled into a junction tree. Compiling moralizes
+ * and triangulates the network, builds the clique tree and allocates the clique
+ * potentials once; each query then only loads the evidence and runs one collect and
+ * one distribute pass. The compiled tree is checked against the network on every
+ * query and rebuilt when a node's parents, states or probabilities have changed.
+ * Queries may run concurrently, as each one works on its own copy of the potentials.
+ * When the network keeps its tables off the heap, so do the compiled potentials, which
+ * may then exceed 2^31 entries per clique; queries stream them instead of copying
+ * them, and close() releases them.
+ */
+public class JunctionTree implements AutoCloseable {
+    private final Network network;
+    private volatile CliqueTree tree;
+
+    private JunctionTree(Network network) {
+        this.network = network;
+        this.tree = build(NetworkSnapshot.of(network));
+    }
+
+    /**
+     * compile a network
+     *
+     * @param network the network
+     * @return the junction tree of the network
+     */
+    public static JunctionTree compile(Network network) {
+        return new JunctionTree(network);
+    }
+
+    /**
+     * compute the posterior distribution of every node in the network
+     *
+     * @param evidence the observed state index of each observed node
+     * @return the posterior over the states of each node, in network order
+     */
+    public Map<Node, double[]> query(Map<Node, Integer> evidence) {
+        CliqueTree tree = current();
+        List<Node> nodes = new ArrayList<>(network.getNodes());
+        double[][] marginals = tree.query(tree.snapshot.evidence(evidence), ids(tree, nodes), null);
+        Map<Node, double[]> results = new LinkedHashMap<>();
+        for (int i = 0; i < marginals.length; i++) {
+            results.put(nodes.get(i), marginals[i]);
+        }
+        return results;
+    }
+
+    /**
+     * compute the posterior distribution of one node
+     *
+     * @param target   the node to query
+     * @param evidence the observed state index of each observed node
+     * @return the posterior over the states of the target
+     */
+    public double[] query(Node target, Map<Node, Integer> evidence) {
+        CliqueTree tree = current();
+        Integer id = tree.snapshot.ids.get(target);
+        if (id == null) {
+            throw new IllegalArgumentException("Node " + target.getName() + " is not in the network");
+        }
+        return tree.query(tree.snapshot.evidence(evidence), new int[]{id}, null)[0];
+    }
+
+    /**
+     * compute the posterior distributions of some nodes for many evidence cases in
+     * one pass. Each message is computed once per distinct pattern of the findings it
+     * depends on, and every case with that pattern shares it, which is much faster
+     * than one query per case when the cases repeat findings. The potentials are
+     * propagated as arrays, so off the heap every clique must fit in one.
+     *
+     * @param columns  the node observed in each column of the evidence
+     * @param evidence one row per case with the observed state index of each column,
+     *                 or -1 where the node is not observed
+     * @param targets  the nodes to query
+     * @return for each target, one posterior row per case
+     */
+    public Map<Node, double[][]> query(List<Node> columns, int[][] evidence, Collection<Node> targets) {
+        CliqueTree tree = current();
+        int[] columnIds = ids(tree, columns);
+        int[] targetIds = ids(tree, new ArrayList<>(targets));
+        for (int[] row : evidence) {
+            if (row.length != columnIds.length) {
+                throw new IllegalArgumentException("Every evidence row must have " + columnIds.length + " columns");
+            }
+            for (int j = 0; j < row.length; j++) {
+                if (row[j] < -1 || row[j] >= tree.snapshot.card[columnIds[j]]) {
+                    throw new IllegalArgumentException("Invalid state " + row[j] + " for node "
+                            + columns.get(j).getName());
+                }
+            }
+        }
+        double[][][] posteriors = new BatchPropagation(tree, columnIds, targetIds).run(evidence);
+        Map<Node, double[][]> results = new LinkedHashMap<>();
+        int t = 0;
+        for (Node target : targets) {
+            results.put(target, posteriors[t++]);
+        }
+        return results;
+    }
+
+    /**
+     * compute the probability of the evidence
+     *
+     * @param evidence the observed state index of each observed node
+     * @return P(evidence)
+     */
+    public double probabilityOfEvidence(Map<Node, Integer> evidence) {
+        return Math.exp(logProbabilityOfEvidence(evidence));
+    }
+
+    /**
+     * compute the logarithm of the probability of the evidence. Messages are
+     * normalized during propagation, so this stays finite where the probability itself
+     * underflows.
+     *
+     * @param evidence the observed state index of each observed node
+     * @return log P(evidence), or negative infinity if the evidence is impossible
+     */
+    public double logProbabilityOfEvidence(Map<Node, Integer> evidence) {
+        CliqueTree tree = current();
+        double[] logZ = new double[1];
+        tree.query(tree.snapshot.evidence(evidence), new int[0], logZ);
+        return logZ[0];
+    }
+
+    /**
+     * start a session for incremental queries. Toggling a finding in the session only
+     * recomputes the messages that depend on it.
+     *
+     * @return a new session without evidence
+     */
+    public EvidenceSession openSession() {
+        return new EvidenceSession(this);
+    }
+
+    /**
+     * Return the number of cliques
+     *
+     * @return the number of cliques
+     */
+    public int getNumberOfCliques() {
+        return current().getNumberOfCliques();
+    }
+
+    /**
+     * Return the number of entries in the largest clique potential, which may exceed
+     * the size of an array when the tables are kept off the heap
+     *
+     * @return the size of the largest clique table
+     */
+    public long getLargestCliqueSize() {
+        long largest = 0;
+        for (long size : current().size) {
+            largest = Math.max(largest, size);
+        }
+        return largest;
+    }
+
+    /**
+     * get the memory the compiled clique potentials take, on or off the heap. Single
+     * precision halves it.
+     *
+     * @return the size of the potentials in bytes
+     */
+    public long getPotentialBytes() {
+        return current().getPotentialBytes();
+    }
+
+    /**
+     * release the clique potentials kept off the heap at once, instead of when the
+     * compiled tree is collected. Queries still running on other threads may fail; the
+     * next query compiles the tree again.
+     */
+    @Override
+    public synchronized void close() {
+        tree.close();
+    }
+
+    Network getNetwork() {
+        return network;
+    }
+
+    /**
+     * get the compiled tree, recompiling it if the network has changed. A change of
+     * parameters only reloads the potentials; a change of structure recompiles.
+     */
+    CliqueTree current() {
+        CliqueTree tree = this.tree;
+        if (isCurrent(tree)) {
+            return tree;
+        }
+        synchronized (this) {
+            tree = this.tree;
+            if (!isCurrent(tree)) {
+                NetworkSnapshot snapshot = NetworkSnapshot.of(network);
+                tree = tree.snapshot.hasSameStructure(network)
+                        ? tree.withParameters(snapshot, network.getStorage()) : build(snapshot);
+                this.tree = tree;
+            }
+            return tree;
+        }
+    }
+
+    private boolean isCurrent(CliqueTree tree) {
+        return tree.snapshot.isCurrent(network) && tree.getStorage() == network.getStorage() && !tree.isClosed();
+    }
+
+    /**
+     * build the clique tree along the elimination order cached on the network
+     */
+    private CliqueTree build(NetworkSnapshot snapshot) {
+        return new CliqueTree(snapshot, network.getEliminationOrdering().toIds(snapshot),
+                network.getStorage());
+    }
+
+    private static int[] ids(CliqueTree tree, List<Node> nodes) {
+        int[] ids = new int[nodes.size()];
+        for (int i = 0; i < ids.length; i++) {
+            Integer id = tree.snapshot.ids.get(nodes.get(i));
+            if (id == null) {
+                throw new IllegalArgumentException("Node " + nodes.get(i).getName() + " is not in the network");
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,307 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Approximate inference by likelihood weighting. Unobserved nodes are sampled in
+ * topological order from their conditional probabilities and every sample is
+ * weighted by the likelihood of the evidence. Samples are drawn in rounds on all
+ * cores; each thread has its own random generator and counts, which are merged after
+ * every round, so the threads never contend. Sampling stops at the sample limit, at
+ * the time budget or once every estimate is within the requested confidence width.
+ */
+public class LikelihoodWeighting {
+    private static final int BATCH = 4096;
+    private static final double Z = 1.96;
+
+    private final Network network;
+    private long maxSamples = 100000;
+    private long timeBudgetMillis = 0;
+    private double halfWidth = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Long seed = null;
+
+    /**
+     * Constructor of LikelihoodWeighting class
+     *
+     * @param network the network to query
+     */
+    public LikelihoodWeighting(Network network) {
+        this.network = network;
+    }
+
+    /**
+     * change the number of samples after which sampling stops
+     *
+     * @param maxSamples the sample limit
+     */
+    public void setMaxSamples(long maxSamples) {
+        if (maxSamples <= 0) {
+            throw new IllegalArgumentException("The sample limit must be positive");
+        }
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * change the wall-clock budget of a query
+     *
+     * @param timeBudgetMillis the budget in milliseconds, or 0 for no budget
+     */
+    public void setTimeBudget(long timeBudgetMillis) {
+        if (timeBudgetMillis < 0) {
+            throw new IllegalArgumentException("The time budget must not be negative");
+        }
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * stop once the 95% confidence interval of every state probability is narrower
+     * than this half-width
+     *
+     * @param halfWidth the target half-width, or 0 to always run to the sample limit
+     */
+    public void setConfidenceHalfWidth(double halfWidth) {
+        if (halfWidth < 0) {
+            throw new IllegalArgumentException("The half-width must not be negative");
+        }
+        this.halfWidth = halfWidth;
+    }
+
+    /**
+     * change the number of sampling threads
+     *
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("The number of threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * fix the seed of the random generators, making runs with the same number of
+     * threads repeatable
+     *
+     * @param seed the seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * estimate the posterior distribution of every node
+     *
+     * @param evidence the observed state index of each observed node
+     * @return the estimates, with the effective sample size of each
+     */
+    public SamplingResult query(Map<Node, Integer> evidence) {
+        NetworkSnapshot snapshot = NetworkSnapshot.of(network);
+        int[] observed = snapshot.evidence(evidence);
+        int[] order = snapshot.topologicalOrder();
+        int n = snapshot.size();
+        int[][] strides = new int[n][];
+        int[] offset = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            strides[v] = snapshot.rowStrides(v);
+            offset[v + 1] = offset[v] + snapshot.card[v];
+        }
+
+        SplittableRandom master = seed == null ? new SplittableRandom() : new SplittableRandom(seed);
+        List<Worker> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Worker(snapshot, observed, order, strides, offset, master.split()));
+        }
+
+        long start = System.nanoTime();
+        long samples = 0;
+        double[] sums = new double[offset[n]];
+        double weight = 0;
+        double weight2 = 0;
+        double width = Double.POSITIVE_INFINITY;
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "likelihood-weighting");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            while (samples < maxSamples) {
+                long remaining = maxSamples - samples;
+                long share = Math.min(BATCH, (remaining + threads - 1) / threads);
+                for (Worker worker : workers) {
+                    worker.count = (int) Math.min(share, remaining);
+                    remaining -= worker.count;
+                }
+                for (Future<Void> future : pool.invokeAll(workers)) {
+                    future.get();
+                }
+
+                samples = 0;
+                weight = 0;
+                weight2 = 0;
+                Arrays.fill(sums, 0);
+                for (Worker worker : workers) {
+                    samples += worker.samples;
+                    weight += worker.weight;
+                    weight2 += worker.weight2;
+                    for (int i = 0; i < sums.length; i++) {
+                        sums[i] += worker.sums[i];
+                    }
+                }
+                width = halfWidth(sums, weight, weight * weight / weight2, observed, offset);
+                if (timeBudgetMillis > 0 && System.nanoTime() - start >= timeBudgetMillis * 1000000L) {
+                    break;
+                }
+                if (halfWidth > 0 && width <= halfWidth) {
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Sampling was interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("Sampling failed", e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        double ess = weight2 > 0 ? weight * weight / weight2 : 0;
+        Map<Node, double[]> marginals = new LinkedHashMap<>();
+        Map<Node, Double> effective = new LinkedHashMap<>();
+        for (int v = 0; v < snapshot.networkSize; v++) {
+            double[] marginal = new double[snapshot.card[v]];
+            if (observed[v] >= 0) {
+                marginal[observed[v]] = 1.0;
+            }
+            else if (weight > 0) {
+                for (int s = 0; s < marginal.length; s++) {
+                    marginal[s] = sums[offset[v] + s] / weight;
+                }
+            }
+            marginals.put(snapshot.nodes[v], marginal);
+            effective.put(snapshot.nodes[v], ess);
+        }
+        return new SamplingResult(marginals, effective, null, samples, System.nanoTime() - start, width, threads);
+    }
+
+    /**
+     * get the largest 95% confidence half-width of any state probability, using the
+     * Agresti-Coull adjustment so that estimates near 0 or 1 are not overconfident
+     */
+    private static double halfWidth(double[] sums, double weight, double ess, int[] observed, int[] offset) {
+        if (!(weight > 0) || !(ess > 0)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double widest = 0;
+        for (int v = 0; v < observed.length; v++) {
+            if (observed[v] >= 0) {
+                continue;
+            }
+            for (int i = offset[v]; i < offset[v + 1]; i++) {
+                double p = (sums[i] / weight * ess + 2) / (ess + 4);
+                widest = Math.max(widest, Z * Math.sqrt(p * (1 - p) / (ess + 4)));
+            }
+        }
+        return widest;
+    }
+
+    /**
+     * the samples and counts of one thread
+     */
+    private static final class Worker implements Callable<Void> {
+        private final NetworkSnapshot snapshot;
+        private final int[] observed;
+        private final int[] order;
+        private final int[][] strides;
+        private final int[] offset;
+        private final SplittableRandom random;
+        private final double[] sums;
+        private final int[] states;
+        private int count;
+        private long samples;
+        private double weight;
+        private double weight2;
+
+        Worker(NetworkSnapshot snapshot, int[] observed, int[] order, int[][] strides, int[] offset,
+               SplittableRandom random) {
+            this.snapshot = snapshot;
+            this.observed = observed;
+            this.order = order;
+            this.strides = strides;
+            this.offset = offset;
+            this.random = random;
+            this.sums = new double[offset[offset.length - 1]];
+            this.states = new int[observed.length];
+        }
+
+        @Override
+        public Void call() {
+            int[] card = snapshot.card;
+            int[][] parents = snapshot.parents;
+            double[][] cpt = snapshot.cpt;
+            for (int s = 0; s < count; s++) {
+                double w = 1.0;
+                for (int v : order) {
+                    if (card[v] == 0) {
+                        continue;
+                    }
+                    double[] table = cpt[v];
+                    if (table.length == 0) {
+                        w = 0;
+                        break;
+                    }
+                    int row = 0;
+                    int[] parent = parents[v];
+                    int[] stride = strides[v];
+                    for (int i = 0; i < parent.length; i++) {
+                        row += states[parent[i]] * stride[i];
+                    }
+                    int base = row * card[v];
+                    if (observed[v] >= 0) {
+                        states[v] = observed[v];
+                        w *= table[base + observed[v]];
+                        if (w == 0) {
+                            break;
+                        }
+                    }
+                    else {
+                        double u = random.nextDouble();
+                        int state = card[v] - 1;
+                        for (int k = 0; k < card[v]; k++) {
+                            u -= table[base + k];
+                            if (u < 0) {
+                                state = k;
+                                break;
+                            }
+                        }
+                        states[v] = state;
+                    }
+                }
+                samples++;
+                if (w > 0) {
+                    weight += w;
+                    weight2 += w * w;
+                    for (int v = 0; v < states.length; v++) {
+                        if (observed[v] < 0 && card[v] > 0) {
+                            sums[offset[v] + states[v]] += w;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Approximate inference by loopy belief propagation on the factor graph of a
+ * network. Messages are either all recomputed in every iteration (flooding) or
+ * updated one at a time in order of their residual, the change that an update would
+ * make, so that the parts of the graph that are still moving get the work. Damping
+ * mixes every new message with the previous one to help oscillating graphs settle.
+ * Propagation stops once no message would change by more than the tolerance, or at
+ * the iteration limit.
+ */
+public class LoopyBeliefPropagation {
+    /**
+     * The order in which messages are updated
+     */
+    public enum Schedule {
+        /**
+         * recompute every message from the messages of the previous iteration
+         */
+        FLOODING,
+        /**
+         * always update the message with the largest residual first
+         */
+        RESIDUAL
+    }
+
+    private final Network network;
+    private Schedule schedule = Schedule.RESIDUAL;
+    private double damping = 0;
+    private int maxIterations = 100;
+    private double tolerance = 1e-6;
+
+    /**
+     * Constructor of LoopyBeliefPropagation class
+     *
+     * @param network the network to query
+     */
+    public LoopyBeliefPropagation(Network network) {
+        this.network = network;
+    }
+
+    /**
+     * change the message schedule
+     *
+     * @param schedule the schedule
+     */
+    public void setSchedule(Schedule schedule) {
+        if (schedule == null) {
+            throw new IllegalArgumentException("The schedule must not be null");
+        }
+        this.schedule = schedule;
+    }
+
+    /**
+     * change the weight of the previous message when a message is updated
+     *
+     * @param damping the weight, from 0 for no damping up to but excluding 1
+     */
+    public void setDamping(double damping) {
+        if (!(damping >= 0 && damping < 1)) {
+            throw new IllegalArgumentException("The damping must be in [0, 1)");
+        }
+        this.damping = damping;
+    }
+
+    /**
+     * change the number of iterations after which propagation stops. With the
+     * residual schedule one iteration is as many single updates as there are edges.
+     *
+     * @param maxIterations the iteration limit
+     */
+    public void setMaxIterations(int maxIterations) {
+        if (maxIterations <= 0) {
+            throw new IllegalArgumentException("The iteration limit must be positive");
+        }
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * change the residual below which the messages count as converged
+     *
+     * @param tolerance the tolerance
+     */
+    public void setTolerance(double tolerance) {
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("The tolerance must be positive");
+        }
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * approximate the posterior distribution of every node
+     *
+     * @param evidence the observed state index of each observed node
+     * @return the beliefs with the residual and time of every iteration
+     */
+    public BeliefPropagationResult query(Map<Node, Integer> evidence) {
+        NetworkSnapshot snapshot = NetworkSnapshot.of(network);
+        FactorGraph graph = new FactorGraph(snapshot);
+        int[] observed = snapshot.evidence(evidence);
+        double[][] toVar = graph.uniformMessages();
+        double[][] toFactor = graph.uniformMessages();
+        for (int e = 0; e < toFactor.length; e++) {
+            graph.variableMessage(e, observed, toVar, toFactor[e]);
+        }
+
+        double[] residuals = new double[maxIterations];
+        long[] nanos = new long[maxIterations];
+        int iterations = schedule == Schedule.FLOODING
+                ? flooding(graph, observed, toVar, toFactor, residuals, nanos)
+                : residual(graph, observed, toVar, toFactor, residuals, nanos);
+
+        Map<Node, double[]> marginals = new LinkedHashMap<>();
+        for (int v = 0; v < snapshot.networkSize; v++) {
+            marginals.put(snapshot.nodes[v], graph.belief(v, observed, toVar));
+        }
+        boolean converged = iterations > 0 && residuals[iterations - 1] < tolerance;
+        return new BeliefPropagationResult(marginals, converged, Arrays.copyOf(residuals, iterations),
+                Arrays.copyOf(nanos, iterations));
+    }
+
+    /**
+     * update all factor-to-variable messages at once, then all variable-to-factor
+     * messages
+     *
+     * @return the number of iterations run
+     */
+    private int flooding(FactorGraph graph, int[] observed, double[][] toVar, double[][] toFactor,
+                         double[] residuals, long[] nanos) {
+        int edges = graph.getNumberOfEdges();
+        double[][] next = graph.uniformMessages();
+        for (int i = 0; i < maxIterations; i++) {
+            long start = System.nanoTime();
+            double residual = 0;
+            for (int e = 0; e < edges; e++) {
+                graph.factorMessage(e, toFactor, next[e]);
+                damp(next[e], toVar[e]);
+                residual = Math.max(residual, FactorGraph.distance(next[e], toVar[e]));
+            }
+            for (int e = 0; e < edges; e++) {
+                System.arraycopy(next[e], 0, toVar[e], 0, next[e].length);
+            }
+            for (int e = 0; e < edges; e++) {
+                graph.variableMessage(e, observed, toVar, toFactor[e]);
+            }
+            residuals[i] = residual;
+            nanos[i] = System.nanoTime() - start;
+            if (residual < tolerance) {
+                return i + 1;
+            }
+        }
+        return maxIterations;
+    }
+
+    /**
+     * update the factor-to-variable message with the largest residual, then refresh
+     * the pending messages that read it
+     *
+     * @return the number of iterations run
+     */
+    private int residual(FactorGraph graph, int[] observed, double[][] toVar, double[][] toFactor,
+                         double[] residuals, long[] nanos) {
+        int edges = graph.getNumberOfEdges();
+        double[][] pending = graph.uniformMessages();
+        int[] version = new int[edges];
+        PriorityQueue<Update> queue = new PriorityQueue<>();
+        for (int e = 0; e < edges; e++) {
+            graph.factorMessage(e, toFactor, pending[e]);
+            queue.add(new Update(e, FactorGraph.distance(pending[e], toVar[e]), 0));
+        }
+        for (int i = 0; i < maxIterations; i++) {
+            long start = System.nanoTime();
+            for (int u = 0; u < edges; u++) {
+                Update top = poll(queue, version);
+                if (top == null || top.residual < tolerance) {
+                    if (top != null) {
+                        queue.add(top);
+                    }
+                    break;
+                }
+                int e = top.edge;
+                double[] message = pending[e].clone();
+                damp(message, toVar[e]);
+                toVar[e] = message;
+                reschedule(e, pending, toVar, version, queue);
+
+                int v = graph.edgeVar[e];
+                for (int out : graph.varEdges[v]) {
+                    if (out == e) {
+                        continue;
+                    }
+                    graph.variableMessage(out, observed, toVar, toFactor[out]);
+                    for (int target : graph.factorEdges[graph.edgeFactor[out]]) {
+                        if (target != out) {
+                            graph.factorMessage(target, toFactor, pending[target]);
+                            reschedule(target, pending, toVar, version, queue);
+                        }
+                    }
+                }
+            }
+            Update top = poll(queue, version);
+            if (top != null) {
+                queue.add(top);
+            }
+            residuals[i] = top == null ? 0 : top.residual;
+            nanos[i] = System.nanoTime() - start;
+            if (residuals[i] < tolerance) {
+                return i + 1;
+            }
+        }
+        return maxIterations;
+    }
+
+    private static void reschedule(int e, double[][] pending, double[][] toVar, int[] version,
+                                   PriorityQueue<Update> queue) {
+        version[e]++;
+        queue.add(new Update(e, FactorGraph.distance(pending[e], toVar[e]), version[e]));
+    }
+
+    /**
+     * remove the largest current update, skipping entries superseded by a later
+     * residual of the same edge
+     */
+    private static Update poll(PriorityQueue<Update> queue, int[] version) {
+        while (!queue.isEmpty()) {
+            Update top = queue.poll();
+            if (top.version == version[top.edge]) {
+                return top;
+            }
+        }
+        return null;
+    }
+
+    private void damp(double[] message, double[] previous) {
+        if (damping > 0) {
+            for (int s = 0; s < message.length; s++) {
+                message[s] = (1 - damping) * message[s] + damping * previous[s];
+            }
+        }
+    }
+
+    /**
+     * a scheduled update of one message
+     */
+    private static final class Update implements Comparable<Update> {
+        private final int edge;
+        private final double residual;
+        private final int version;
+
+        Update(int edge, double residual, int version) {
+            this.edge = edge;
+            this.residual = residual;
+            this.version = version;
+        }
+
+        @Override
+        public int compareTo(Update other) {
+            return Double.compare(other.residual, residual);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Most probable explanations by max-product variable elimination. Variables are
+ * maximized out instead of summed out, and every step keeps a back-pointer table
+ * with the best state of the eliminated variable for each assignment of the
+ * variables left in its factor. Once all variables are gone, the back-pointers are
+ * followed in reverse order to read off the assignment. For a MAP query over some of
+ * the nodes, the other nodes are summed out first. The cost is bounded by the
+ * largest intermediate factor, as in variable elimination. In log space the factors
+ * hold logarithms, as in {@link VariableElimination}; maximizing is unchanged.
+ */
+public class MaxProductElimination {
+    private final Network network;
+    private boolean logSpace;
+
+    /**
+     * Constructor of MaxProductElimination class
+     *
+     * @param network the network to query
+     */
+    public MaxProductElimination(Network network) {
+        this.network = network;
+        logSpace = network.isLogSpace();
+    }
+
+    /**
+     * check if the factors hold logarithms
+     *
+     * @return true in log space
+     */
+    public boolean isLogSpace() {
+        return logSpace;
+    }
+
+    /**
+     * choose between linear and log-space arithmetic. The default is the setting of
+     * the network.
+     *
+     * @param logSpace true to eliminate with logarithms
+     */
+    public void setLogSpace(boolean logSpace) {
+        this.logSpace = logSpace;
+    }
+
+    /**
+     * find the most probable joint assignment of every unobserved node in the network
+     *
+     * @param evidence the observed state index of each observed node
+     * @return the assignment and its joint probability with the evidence
+     */
+    public Explanation mostProbableExplanation(Map<Node, Integer> evidence) {
+        return maximumAPosteriori(network.getNodes(), evidence);
+    }
+
+    /**
+     * find the most probable joint assignment of some nodes, summing over all other
+     * unobserved nodes
+     *
+     * @param targets  the nodes to explain
+     * @param evidence the observed state index of each observed node
+     * @return the assignment of the unobserved targets and its joint probability with
+     * the evidence
+     */
+    public Explanation maximumAPosteriori(Collection<Node> targets, Map<Node, Integer> evidence) {
+        for (Node target : targets) {
+            if (!network.getNodes().contains(target)) {
+                throw new IllegalArgumentException("Node " + target.getName() + " is not in the network");
+            }
+        }
+        VariableElimination.validate(evidence);
+        Set<Node> relevant = new LinkedHashSet<>(targets);
+        relevant.addAll(evidence.keySet());
+        relevant = Relevance.ancestral(relevant);
+        Map<Node, Integer> ids = new IdentityHashMap<>();
+        List<Node> variables = VariableElimination.index(relevant, ids);
+        List<Factor> factors = VariableElimination.reducedFactors(relevant, ids, evidence);
+
+        int[] card = new int[variables.size()];
+        boolean[] sum = new boolean[card.length];
+        boolean[] max = new boolean[card.length];
+        for (int v = 0; v < card.length; v++) {
+            Node node = variables.get(v);
+            card[v] = node.getNumberOfStates();
+            sum[v] = !evidence.containsKey(node);
+        }
+        for (Node target : targets) {
+            int v = ids.get(target);
+            max[v] = !evidence.containsKey(target);
+            sum[v] = false;
+        }
+
+        List<Factor> pool = new ArrayList<>();
+        for (Factor factor : factors) {
+            pool.add(logSpace ? factor.log() : factor);
+        }
+        for (int var : EliminationOrder.minWeight(card, scopes(pool), sum)) {
+            pool = eliminate(pool, var, false, null);
+        }
+        int[] order = EliminationOrder.minWeight(card, scopes(pool), max);
+        List<Step> steps = new ArrayList<>();
+        for (int var : order) {
+            pool = eliminate(pool, var, true, steps);
+        }
+        double probability = logSpace ? 0.0 : 1.0;
+        for (Factor factor : pool) {
+            if (logSpace) {
+                probability += factor.getValues()[0];
+            }
+            else {
+                probability *= factor.getValues()[0];
+            }
+        }
+
+        int[] assignment = new int[card.length];
+        for (int i = steps.size() - 1; i >= 0; i--) {
+            Step step = steps.get(i);
+            if (step.argMax.length > 0) {
+                assignment[step.var] = step.argMax[step.result.offset(assignment)];
+            }
+        }
+        Map<Node, Integer> result = new LinkedHashMap<>();
+        for (Node target : targets) {
+            int v = ids.get(target);
+            if (max[v]) {
+                result.put(target, assignment[v]);
+            }
+        }
+        return logSpace ? new Explanation(result, Math.exp(probability), probability)
+                : new Explanation(result, probability, Math.log(probability));
+    }
+
+    private static List<int[]> scopes(List<Factor> factors) {
+        List<int[]> scopes = new ArrayList<>();
+        for (Factor factor : factors) {
+            scopes.add(factor.getVars());
+        }
+        return scopes;
+    }
+
+    /**
+     * multiply the factors that mention a variable and sum or maximize it out
+     *
+     * @param steps receives the back-pointers of the step when maximizing
+     * @return the factors after the step
+     */
+    private List<Factor> eliminate(List<Factor> pool, int var, boolean maximize, List<Step> steps) {
+        Factor product = null;
+        List<Factor> rest = new ArrayList<>();
+        for (Factor factor : pool) {
+            if (factor.indexOf(var) >= 0) {
+                product = product == null ? factor : logSpace ? product.logProduct(factor) : product.product(factor);
+            }
+            else {
+                rest.add(factor);
+            }
+        }
+        if (product == null) {
+            return rest;
+        }
+        if (!maximize) {
+            rest.add(logSpace ? product.logSumOut(var) : product.sumOut(var));
+            return rest;
+        }
+        int states = product.getCard()[product.indexOf(var)];
+        int[] argMax = new int[states == 0 ? 0 : product.getValues().length / states];
+        Factor result = product.maxOut(var, argMax);
+        steps.add(new Step(var, result, argMax));
+        rest.add(result);
+        return rest;
+    }
+
+    /**
+     * the back-pointers of one maximization: the best state of the variable for each
+     * entry of the factor that replaced it
+     */
+    private static final class Step {
+        private final int var;
+        private final Factor result;
+        private final int[] argMax;
+
+        Step(int var, Factor result, int[] argMax) {
+            this.var = var;
+            this.result = result;
+            this.argMax = argMax;
+        }
+    }
+}
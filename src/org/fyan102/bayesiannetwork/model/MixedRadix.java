@@ -0,0 +1,187 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index arithmetic over combinations of states. Every digit counts the states of one
+ * variable, the first digit most significant, which is the order of the rows of a
+ * conditional probability table. Besides translating between an index and its digits,
+ * the class works as an odometer: next() steps through all combinations in index order
+ * without allocating anything.
+ */
+public final class MixedRadix {
+    private final int[] radix;
+    private final int[] strides;
+    private final int size;
+    private final int[] digits;
+    private int index;
+
+    /**
+     * Constructor of MixedRadix class
+     *
+     * @param radix the number of states of every digit
+     */
+    public MixedRadix(int... radix) {
+        this.radix = radix.clone();
+        strides = new int[radix.length];
+        long size = 1;
+        for (int i = radix.length - 1; i >= 0; i--) {
+            if (radix[i] < 0) {
+                throw new IllegalArgumentException("Invalid number of states " + radix[i]);
+            }
+            strides[i] = (int) size;
+            size *= radix[i];
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many combinations of states");
+            }
+        }
+        this.size = (int) size;
+        digits = new int[radix.length];
+    }
+
+    /**
+     * create the index arithmetic of the rows of the conditional probability table of
+     * a node, with one digit per parent
+     *
+     * @param node the node
+     * @return the index arithmetic
+     */
+    public static MixedRadix ofParents(Node node) {
+        return of(node.getParents());
+    }
+
+    /**
+     * create the index arithmetic over the states of some nodes
+     *
+     * @param nodes the nodes, the first one most significant
+     * @return the index arithmetic
+     */
+    public static MixedRadix of(List<Node> nodes) {
+        int[] radix = new int[nodes.size()];
+        for (int i = 0; i < radix.length; i++) {
+            radix[i] = nodes.get(i).getNumberOfStates();
+        }
+        return new MixedRadix(radix);
+    }
+
+    /**
+     * Return the number of digits
+     *
+     * @return the number of digits
+     */
+    public int getNumberOfDigits() {
+        return radix.length;
+    }
+
+    /**
+     * Return the number of states of a digit
+     *
+     * @param digit the digit
+     * @return the number of states
+     */
+    public int getRadix(int digit) {
+        return radix[digit];
+    }
+
+    /**
+     * Return the distance between two consecutive states of a digit
+     *
+     * @param digit the digit
+     * @return the stride
+     */
+    public int getStride(int digit) {
+        return strides[digit];
+    }
+
+    /**
+     * Return the number of combinations
+     *
+     * @return the product of all radices
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * compute the index of a combination
+     *
+     * @param digits the state of every digit
+     * @return the index
+     */
+    public int index(int[] digits) {
+        int index = 0;
+        for (int i = 0; i < strides.length; i++) {
+            index += digits[i] * strides[i];
+        }
+        return index;
+    }
+
+    /**
+     * compute one digit of an index
+     *
+     * @param index the index
+     * @param digit the digit
+     * @return the state of the digit
+     */
+    public int digit(int index, int digit) {
+        return index / strides[digit] % radix[digit];
+    }
+
+    /**
+     * compute all digits of an index
+     *
+     * @param index  the index
+     * @param digits receives the state of every digit
+     */
+    public void digits(int index, int[] digits) {
+        for (int i = 0; i < strides.length; i++) {
+            digits[i] = index / strides[i] % radix[i];
+        }
+    }
+
+    /**
+     * move the odometer back to the first combination
+     */
+    public void reset() {
+        Arrays.fill(digits, 0);
+        index = 0;
+    }
+
+    /**
+     * Return the index of the current combination of the odometer
+     *
+     * @return the index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Return one digit of the current combination of the odometer
+     *
+     * @param digit the digit
+     * @return the state of the digit
+     */
+    public int getDigit(int digit) {
+        return digits[digit];
+    }
+
+    /**
+     * step the odometer to the next combination, the last digit fastest
+     *
+     * @return true if there is a next combination, false if the odometer wrapped
+     * around to the first one
+     */
+    public boolean next() {
+        for (int i = digits.length - 1; i >= 0; i--) {
+            if (++digits[i] < radix[i]) {
+                index++;
+                return true;
+            }
+            digits[i] = 0;
+        }
+        index = 0;
+        return false;
+    }
+}
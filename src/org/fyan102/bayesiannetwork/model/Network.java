@@ -1,49 +1,458 @@
 package org.fyan102.bayesiannetwork.model;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class Network {
+    private static final int ELIMINATION_RESTARTS = 8;
+    private static final long ELIMINATION_SEED = 20160419L;
     private ArrayList<Node> nodes;
+    private JunctionTree junctionTree;
+    private List<Node> order;
+    private Node[] orderNodes;
+    private long[] orderVersions;
+    private boolean polytree;
+    private boolean logSpace;
+    private boolean singlePrecision;
+    private boolean offHeap;
+    private EliminationOrdering elimination;
+    private List<Node> eliminationFor;
+    private EvidenceSession priorSession;
+    private List<Node> calculatedOrder;
+    private final Map<Node, Long> calculatedVersions = new IdentityHashMap<>();
+    private final SymbolTable names = new SymbolTable();
+    private volatile FrozenNetwork published;
 
     public Network() {
         nodes = new ArrayList<>();
     }
 
-    public Network(ArrayList<Node> nodes) {
-        this.nodes = nodes;
+    public Network(List<Node> nodes) {
+        setNodes(nodes);
     }
 
     public Network(Node... nodes) {
+        this.nodes = new ArrayList<>();
         for (Node node : nodes) {
-            this.nodes.add(node);
+            addNode(node);
         }
     }
 
+    /**
+     * add a node to the network. A node whose table is still stored in double
+     * precision on the heap takes the storage of the network; a node stored in single
+     * precision or off the heap keeps its own storage.
+     *
+     * @param node the node to add
+     */
     public void addNode(Node node) {
+        if (node.getStorage() == TableStorage.DOUBLE) {
+            applyStorage(node);
+        }
         nodes.add(node);
+        names.add(node.getName());
     }
 
+    /**
+     * Compute the exact beliefs of every node with parents. Nodes without parents
+     * keep their beliefs as the prior distribution. Only the nodes whose tables
+     * changed since the last calculation, and their descendants, are recomputed. A
+     * polytree is propagated in topological order; other networks read the changed
+     * beliefs from a junction tree that keeps every message that is still valid.
+     *
+     * @return true once the beliefs are up to date
+     */
     public boolean calculate() {
-        int i = 0;
-        String lastResult = "";
-        boolean changed = true;
-        
-        while (changed && i < nodes.size() + 1) {
-            changed = false;
-            for (Node node : nodes) {
-                node.updateBelieves();
+        List<Node> order = getTopologicalOrder();
+        Set<Node> dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Node node : order) {
+            boolean changed = order != calculatedOrder || isChanged(node);
+            for (Node parent : node.getParents()) {
+                if (changed) {
+                    break;
+                }
+                changed = dirty.contains(parent) || isChanged(parent);
             }
-            String result = toString();
-            if (!lastResult.equals(result)) {
-                lastResult = result;
-                changed = true;
+            if (changed) {
+                dirty.add(node);
             }
-            i++;
         }
-        
-        return i <= nodes.size();
+        if (isPolytree()) {
+            for (Node node : order) {
+                if (dirty.contains(node)) {
+                    node.updateBelieves(logSpace);
+                }
+            }
+        }
+        else {
+            if (priorSession == null) {
+                priorSession = getJunctionTree().openSession();
+            }
+            for (Node node : order) {
+                if (dirty.contains(node) && !node.getParents().isEmpty()) {
+                    node.assignBeliefs(priorSession.getBelief(node));
+                }
+            }
+        }
+        calculatedOrder = order;
+        calculatedVersions.clear();
+        for (Node node : order) {
+            calculatedVersions.put(node, node.getParameterVersion());
+            for (Node parent : node.getParents()) {
+                calculatedVersions.put(parent, parent.getParameterVersion());
+            }
+        }
+        return true;
+    }
+
+    private boolean isChanged(Node node) {
+        Long version = calculatedVersions.get(node);
+        return version == null || version != node.getParameterVersion();
+    }
+
+    /**
+     * Update the beliefs of every node with parents from the beliefs of its parents,
+     * in one pass over the topological order. The result is exact when the network
+     * is a polytree; otherwise parents are treated as independent.
+     */
+    public void propagatePriors() {
+        for (Node node : getTopologicalOrder()) {
+            node.updateBelieves(logSpace);
+        }
+    }
+
+    /**
+     * Check if inference on this network works with logarithms
+     *
+     * @return true in log space
+     */
+    public boolean isLogSpace() {
+        return logSpace;
+    }
+
+    /**
+     * Choose between linear and log-space arithmetic for the belief updates and for
+     * the variable elimination and explanation queries. Log space keeps products of
+     * many small probabilities, as on deep chains or with long evidence, from
+     * underflowing to zero. The junction tree and cutset conditioning normalize their
+     * messages and do not need it.
+     *
+     * @param logSpace true to work with logarithms
+     */
+    public void setLogSpace(boolean logSpace) {
+        this.logSpace = logSpace;
+    }
+
+    /**
+     * Check if the network stores its tables in single precision
+     *
+     * @return true if the tables are stored as floats
+     */
+    public boolean isSinglePrecision() {
+        return singlePrecision;
+    }
+
+    /**
+     * Choose between double and single precision for the storage of the conditional
+     * probability tables of all nodes, including nodes added later, and of the clique
+     * potentials of the junction tree. Single precision halves the memory of large
+     * models; products and sums are still taken in double precision, so the
+     * posteriors only carry the rounding of the stored tables, a relative error in
+     * the order of 1e-7. Calling this overrides the storage chosen on each node.
+     *
+     * @param singlePrecision true to store the tables as floats
+     */
+    public void setSinglePrecision(boolean singlePrecision) {
+        this.singlePrecision = singlePrecision;
+        for (Node node : nodes) {
+            applyStorage(node);
+        }
+    }
+
+    /**
+     * Check if the network keeps its tables off the heap
+     *
+     * @return true if the tables are off the heap
+     */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Choose whether the conditional probability tables of all nodes, including nodes
+     * added later, and the clique potentials of the junction tree are kept off the
+     * heap, in double precision. Very large tables then neither fill the heap nor
+     * lengthen garbage collection pauses. Off-heap storage takes precedence over
+     * single precision. Turning it off releases the tables of the nodes at once; the
+     * potentials are released by closing the junction tree. Calling this overrides the
+     * storage chosen on each node.
+     *
+     * @param offHeap true to keep the tables off the heap
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+        for (Node node : nodes) {
+            applyStorage(node);
+        }
+    }
+
+    /**
+     * get where the tables of the network are kept
+     *
+     * @return the storage
+     */
+    TableStorage getStorage() {
+        return offHeap ? TableStorage.OFF_HEAP : singlePrecision ? TableStorage.SINGLE : TableStorage.DOUBLE;
+    }
+
+    private void applyStorage(Node node) {
+        node.setOffHeap(offHeap);
+        if (!offHeap) {
+            node.setSinglePrecision(singlePrecision);
+        }
+    }
+
+    /**
+     * Get the nodes ordered so that every node comes after its parents. The order is
+     * cached and recomputed only after nodes, parents or states change.
+     *
+     * @return the nodes in topological order
+     */
+    public List<Node> getTopologicalOrder() {
+        if (!isOrderCurrent()) {
+            computeOrder();
+        }
+        return order;
+    }
+
+    /**
+     * Check if the network is singly connected, with at most one undirected path
+     * between any two nodes
+     *
+     * @return true if the network is a polytree
+     */
+    public boolean isPolytree() {
+        if (!isOrderCurrent()) {
+            computeOrder();
+        }
+        return polytree;
+    }
+
+    /**
+     * Get a good elimination order of the network, with the clique sizes exact
+     * inference along it creates. Every heuristic is tried with a few randomized
+     * restarts, and the best order is cached until the structure changes.
+     *
+     * @return the best elimination order found
+     */
+    public EliminationOrdering getEliminationOrdering() {
+        List<Node> order = getTopologicalOrder();
+        if (elimination == null || eliminationFor != order) {
+            elimination = getEliminationOrdering(List.of(EliminationHeuristic.values()), ELIMINATION_RESTARTS);
+            eliminationFor = order;
+        }
+        return elimination;
+    }
+
+    /**
+     * Search for an elimination order of the network without caching it
+     *
+     * @param heuristics the heuristics to try
+     * @param restarts   the number of runs of each heuristic with random tie-breaking
+     * @return the best elimination order found
+     */
+    public EliminationOrdering getEliminationOrdering(List<EliminationHeuristic> heuristics, int restarts) {
+        if (heuristics.isEmpty()) {
+            throw new IllegalArgumentException("At least one heuristic is required");
+        }
+        if (restarts < 0) {
+            throw new IllegalArgumentException("The number of restarts must not be negative");
+        }
+        getTopologicalOrder();
+        return EliminationOrder.search(NetworkSnapshot.structureOf(this), heuristics, restarts, ELIMINATION_SEED);
+    }
+
+    private boolean isOrderCurrent() {
+        if (order == null || orderNodes.length != nodes.size()) {
+            return false;
+        }
+        for (int i = 0; i < orderNodes.length; i++) {
+            if (orderNodes[i] != nodes.get(i) || orderVersions[i] != orderNodes[i].getStructureVersion()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * sort the nodes with Kahn's algorithm, counting only parents inside the network,
+     * and check for undirected cycles while walking the links
+     */
+    private void computeOrder() {
+        int n = nodes.size();
+        Map<Node, Integer> ids = new IdentityHashMap<>();
+        for (Node node : nodes) {
+            ids.put(node, ids.size());
+        }
+        int[] pending = new int[n];
+        List<List<Integer>> children = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            children.add(new ArrayList<>());
+        }
+        Map<Node, Node> root = new IdentityHashMap<>();
+        boolean singlyConnected = true;
+        for (int i = 0; i < n; i++) {
+            Node node = nodes.get(i);
+            for (Node parent : node.getParents()) {
+                Integer p = ids.get(parent);
+                if (p != null) {
+                    pending[i]++;
+                    children.get(p).add(i);
+                }
+                Node a = find(root, parent);
+                Node b = find(root, node);
+                if (a == b) {
+                    singlyConnected = false;
+                }
+                else {
+                    root.put(a, b);
+                }
+            }
+        }
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            if (pending[i] == 0) {
+                queue.add(i);
+            }
+        }
+        List<Node> sorted = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            int i = queue.poll();
+            sorted.add(nodes.get(i));
+            for (int c : children.get(i)) {
+                if (--pending[c] == 0) {
+                    queue.add(c);
+                }
+            }
+        }
+        if (sorted.size() < n) {
+            throw new IllegalStateException("The network contains a cycle");
+        }
+        order = Collections.unmodifiableList(sorted);
+        orderNodes = nodes.toArray(new Node[0]);
+        orderVersions = new long[n];
+        for (int i = 0; i < n; i++) {
+            orderVersions[i] = orderNodes[i].getStructureVersion();
+        }
+        polytree = singlyConnected;
+    }
+
+    private static Node find(Map<Node, Node> root, Node node) {
+        Node parent = root.get(node);
+        while (parent != null) {
+            Node next = root.get(parent);
+            if (next != null) {
+                root.put(node, next);
+            }
+            node = parent;
+            parent = next;
+        }
+        return node;
+    }
+
+    /**
+     * Get the junction tree of the network, compiling it on first use. The tree
+     * recompiles itself when the network changes.
+     *
+     * @return the junction tree
+     */
+    public JunctionTree getJunctionTree() {
+        if (junctionTree == null) {
+            junctionTree = JunctionTree.compile(this);
+        }
+        return junctionTree;
+    }
+
+    /**
+     * Freeze the network into an immutable copy that any number of threads may query
+     * without locks, and make it the published one. Call this from the thread that
+     * edits the network, once a batch of edits is complete; readers on other threads
+     * switch to the new copy atomically, at their next call to getPublished(). If only
+     * probabilities changed since the last publication, the cliques of the last copy
+     * are reused.
+     *
+     * @return the frozen network
+     */
+    public FrozenNetwork publish() {
+        FrozenNetwork frozen = FrozenNetwork.of(this, published);
+        published = frozen;
+        return frozen;
+    }
+
+    /**
+     * Get the frozen copy of the network published last. This may be called from any
+     * thread while the network is being edited.
+     *
+     * @return the published copy, or null if the network was never published
+     */
+    public FrozenNetwork getPublished() {
+        return published;
+    }
+
+    /**
+     * Compute the posterior distributions of some nodes given evidence. Only the part
+     * of the network that can influence the targets is evaluated.
+     *
+     * @param targets  the nodes to query
+     * @param evidence the observed state index of each observed node
+     * @return the posterior over the states of each target
+     */
+    public Map<Node, double[]> query(Collection<Node> targets, Map<Node, Integer> evidence) {
+        return new VariableElimination(this).query(targets, evidence);
+    }
+
+    /**
+     * Compute the posterior distributions of some nodes for many evidence cases at
+     * once on the junction tree
+     *
+     * @param columns  the node observed in each column of the evidence
+     * @param evidence one row per case with the observed state index of each column,
+     *                 or -1 where the node is not observed
+     * @param targets  the nodes to query
+     * @return for each target, one posterior row per case
+     */
+    public Map<Node, double[][]> queryBatch(List<Node> columns, int[][] evidence, Collection<Node> targets) {
+        return getJunctionTree().query(columns, evidence, targets);
+    }
+
+    /**
+     * Find the most probable joint assignment of all unobserved nodes given evidence
+     *
+     * @param evidence the observed state index of each observed node
+     * @return the assignment and its joint probability with the evidence
+     */
+    public Explanation mostProbableExplanation(Map<Node, Integer> evidence) {
+        return new MaxProductElimination(this).mostProbableExplanation(evidence);
+    }
+
+    /**
+     * Find the most probable joint assignment of some nodes given evidence, summing
+     * over all other nodes
+     *
+     * @param targets  the nodes to explain
+     * @param evidence the observed state index of each observed node
+     * @return the assignment and its joint probability with the evidence
+     */
+    public Explanation maximumAPosteriori(Collection<Node> targets, Map<Node, Integer> evidence) {
+        return new MaxProductElimination(this).maximumAPosteriori(targets, evidence);
     }
 
     /**
@@ -90,8 +499,60 @@ public class Network {
         return nodes.get(index);
     }
 
-    public ArrayList<Node> getNodes() {
-        return nodes;
+    /**
+     * find a node by its name in constant time. The names are kept in a
+     * {@link SymbolTable} that maps each name to the position of its node, updated
+     * as nodes are added, removed, replaced or renamed through the network. A node
+     * renamed with Node.setName is found under its new name only once the names are
+     * indexed again, which happens when a lookup finds a node that no longer has the
+     * name it is indexed under.
+     *
+     * @param name the name of the node
+     * @return the first node with that name, or null if there is none
+     */
+    public Node getNode(String name) {
+        int index = names.indexOf(name);
+        if (index >= 0 && !name.equals(nodes.get(index).getName())) {
+            indexNames();
+            index = names.indexOf(name);
+        }
+        return index < 0 ? null : nodes.get(index);
+    }
+
+    /**
+     * rename a node of the network and update its entry in the table of names
+     *
+     * @param node the node to rename
+     * @param name the new name
+     */
+    public void renameNode(Node node, String name) {
+        int index = names.indexOf(node.getName());
+        if (index < 0 || nodes.get(index) != node) {
+            index = nodes.indexOf(node);
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException("Node " + node.getName() + " is not in the network");
+        }
+        node.setName(name);
+        names.set(index, name);
+    }
+
+    private void indexNames() {
+        names.clear();
+        for (Node node : nodes) {
+            names.add(node.getName());
+        }
+    }
+
+    /**
+     * Get the nodes of the network. The list is a read-only view; nodes are added,
+     * removed, replaced and renamed through the network, which keeps its table of
+     * names in step.
+     *
+     * @return the nodes in the order they were added
+     */
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(nodes);
     }
 
     public int getNumberOfNodes() {
@@ -99,19 +560,25 @@ public class Network {
     }
 
     public void removeNode(Node node) {
-        nodes.remove(node);
+        int index = nodes.indexOf(node);
+        if (index >= 0) {
+            removeNode(index);
+        }
     }
 
     public void removeNode(int index) {
         nodes.remove(index);
+        names.remove(index);
     }
 
     public void setNode(int index, Node node) {
         nodes.set(index, node);
+        names.set(index, node.getName());
     }
 
-    public void setNodes(ArrayList<Node> nodes) {
-        this.nodes = nodes;
+    public void setNodes(List<Node> nodes) {
+        this.nodes = new ArrayList<>(nodes);
+        indexNames();
     }
 
     @Override
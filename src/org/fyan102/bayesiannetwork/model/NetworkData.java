@@ -33,6 +33,9 @@ public class NetworkData {
         private List<String> states;
         private double[] beliefs;
         private double[][] conditionalProbabilities;
+        private double[][][] noisyMaxCauses;
+        private double[] noisyMaxLeak;
+        private ContextData contextTree;
         private int x;
         private int y;
         private List<String> parentNames;
@@ -74,6 +77,30 @@ public class NetworkData {
             this.conditionalProbabilities = conditionalProbabilities;
         }
 
+        public double[][][] getNoisyMaxCauses() {
+            return noisyMaxCauses;
+        }
+
+        public void setNoisyMaxCauses(double[][][] noisyMaxCauses) {
+            this.noisyMaxCauses = noisyMaxCauses;
+        }
+
+        public double[] getNoisyMaxLeak() {
+            return noisyMaxLeak;
+        }
+
+        public void setNoisyMaxLeak(double[] noisyMaxLeak) {
+            this.noisyMaxLeak = noisyMaxLeak;
+        }
+
+        public ContextData getContextTree() {
+            return contextTree;
+        }
+
+        public void setContextTree(ContextData contextTree) {
+            this.contextTree = contextTree;
+        }
+
         public int getX() {
             return x;
         }
@@ -99,6 +126,63 @@ public class NetworkData {
         }
     }
 
+    public static class ContextData {
+        private int parent = -1;
+        private List<ContextData> branches;
+        private double[] distribution;
+
+        public ContextData() {
+        }
+
+        public ContextData(ContextTree tree) {
+            if (tree.isLeaf()) {
+                this.distribution = tree.getDistribution();
+            }
+            else {
+                this.parent = tree.getParent();
+                this.branches = new ArrayList<>();
+                for (int s = 0; s < tree.getNumberOfBranches(); s++) {
+                    branches.add(new ContextData(tree.getBranch(s)));
+                }
+            }
+        }
+
+        public ContextTree toContextTree() {
+            if (branches == null) {
+                return ContextTree.leaf(distribution);
+            }
+            ContextTree[] subtrees = new ContextTree[branches.size()];
+            for (int s = 0; s < subtrees.length; s++) {
+                subtrees[s] = branches.get(s).toContextTree();
+            }
+            return ContextTree.split(parent, subtrees);
+        }
+
+        public int getParent() {
+            return parent;
+        }
+
+        public void setParent(int parent) {
+            this.parent = parent;
+        }
+
+        public List<ContextData> getBranches() {
+            return branches;
+        }
+
+        public void setBranches(List<ContextData> branches) {
+            this.branches = branches;
+        }
+
+        public double[] getDistribution() {
+            return distribution;
+        }
+
+        public void setDistribution(double[] distribution) {
+            this.distribution = distribution;
+        }
+    }
+
     public static class LinkData {
         private String fromNode;
         private String toNode;
@@ -0,0 +1,280 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A flat copy of a network for the inference engines. Nodes are numbered by their
+ * position in the network, followed by any parents that were never added to it and
+ * the auxiliary nodes of noisy-MAX distributions in chain form, and every table is
+ * copied into a primitive array. A snapshot of the structure alone copies no tables;
+ * it serves to plan inference before anything large is allocated.
+ */
+final class NetworkSnapshot {
+    final Node[] nodes;
+    final Map<Node, Integer> ids;
+    final int[] card;
+    final int[][] parents;
+    final int[][] children;
+    final double[][] cpt;
+    final int networkSize;
+    private final long[] structureVersions;
+    private final long[] parameterVersions;
+
+    private NetworkSnapshot(List<Node> nodes, Map<Node, Integer> ids, int networkSize, boolean tables) {
+        int n = nodes.size();
+        this.nodes = nodes.toArray(new Node[0]);
+        this.ids = ids;
+        this.networkSize = networkSize;
+        card = new int[n];
+        parents = new int[n][];
+        cpt = new double[n][];
+        structureVersions = new long[n];
+        parameterVersions = new long[n];
+        for (int v = 0; v < n; v++) {
+            Node node = this.nodes[v];
+            card[v] = node.getNumberOfStates();
+            List<Node> factorParents = node.getFactorParents();
+            parents[v] = new int[factorParents.size()];
+            for (int i = 0; i < parents[v].length; i++) {
+                parents[v][i] = ids.get(factorParents.get(i));
+            }
+            cpt[v] = tables ? Factor.of(node, ids).getValues() : null;
+            structureVersions[v] = node.getStructureVersion();
+            parameterVersions[v] = node.getParameterVersion();
+        }
+        children = new int[n][];
+        int[] count = new int[n];
+        for (int v = 0; v < n; v++) {
+            for (int p : parents[v]) {
+                count[p]++;
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            children[v] = new int[count[v]];
+            count[v] = 0;
+        }
+        for (int v = 0; v < n; v++) {
+            for (int p : parents[v]) {
+                children[p][count[p]++] = v;
+            }
+        }
+    }
+
+    /**
+     * copy a network
+     *
+     * @param network the network
+     * @return the snapshot
+     */
+    static NetworkSnapshot of(Network network) {
+        return of(network, true);
+    }
+
+    /**
+     * copy the structure of a network: the nodes, their states and their parents,
+     * without the tables
+     *
+     * @param network the network
+     * @return the snapshot, with null tables
+     */
+    static NetworkSnapshot structureOf(Network network) {
+        return of(network, false);
+    }
+
+    private static NetworkSnapshot of(Network network, boolean tables) {
+        List<Node> nodes = new ArrayList<>(network.getNodes());
+        Map<Node, Integer> ids = new IdentityHashMap<>();
+        for (Node node : nodes) {
+            ids.putIfAbsent(node, ids.size());
+        }
+        if (ids.size() != nodes.size()) {
+            throw new IllegalArgumentException("The network contains the same node twice");
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            for (Node parent : nodes.get(i).getFactorParents()) {
+                if (!ids.containsKey(parent)) {
+                    ids.put(parent, nodes.size());
+                    nodes.add(parent);
+                }
+            }
+        }
+        return new NetworkSnapshot(nodes, ids, network.getNumberOfNodes(), tables);
+    }
+
+    int size() {
+        return nodes.length;
+    }
+
+    /**
+     * get the conditional probability table of a node as a factor over its family
+     *
+     * @param v the node id
+     * @return the factor, sharing the table of this snapshot
+     */
+    Factor factor(int v) {
+        return new Factor(family(v), familyCard(v), cpt[v]);
+    }
+
+    /**
+     * get the parents of a node followed by the node itself
+     *
+     * @param v the node id
+     * @return the family of the node
+     */
+    int[] family(int v) {
+        int[] family = Arrays.copyOf(parents[v], parents[v].length + 1);
+        family[parents[v].length] = v;
+        return family;
+    }
+
+    private int[] familyCard(int v) {
+        int[] family = family(v);
+        int[] result = new int[family.length];
+        for (int i = 0; i < family.length; i++) {
+            result[i] = card[family[i]];
+        }
+        return result;
+    }
+
+    /**
+     * get the families of all nodes
+     *
+     * @return one scope per node
+     */
+    List<int[]> scopes() {
+        List<int[]> scopes = new ArrayList<>();
+        for (int v = 0; v < nodes.length; v++) {
+            scopes.add(family(v));
+        }
+        return scopes;
+    }
+
+    /**
+     * get the strides of the parents of a node in its probability table, counted in
+     * rows. The last parent varies fastest.
+     *
+     * @param v the node id
+     * @return the row stride of each parent
+     */
+    int[] rowStrides(int v) {
+        int[] strides = new int[parents[v].length];
+        int stride = 1;
+        for (int i = strides.length - 1; i >= 0; i--) {
+            strides[i] = stride;
+            stride *= card[parents[v][i]];
+        }
+        return strides;
+    }
+
+    /**
+     * order the nodes so that every node comes after its parents
+     *
+     * @return the node ids in topological order
+     */
+    int[] topologicalOrder() {
+        int n = nodes.length;
+        int[] pending = new int[n];
+        for (int v = 0; v < n; v++) {
+            pending[v] = parents[v].length;
+        }
+        int[] order = new int[n];
+        int head = 0;
+        int tail = 0;
+        for (int v = 0; v < n; v++) {
+            if (pending[v] == 0) {
+                order[tail++] = v;
+            }
+        }
+        while (head < tail) {
+            int v = order[head++];
+            for (int c : children[v]) {
+                if (--pending[c] == 0) {
+                    order[tail++] = c;
+                }
+            }
+        }
+        if (tail < n) {
+            throw new IllegalStateException("The network contains a cycle");
+        }
+        return order;
+    }
+
+    /**
+     * convert evidence to an array indexed by node id
+     *
+     * @param evidence the observed state index of each observed node
+     * @return the observed state of each node, or -1 if it is not observed
+     */
+    int[] evidence(Map<Node, Integer> evidence) {
+        int[] observed = new int[nodes.length];
+        Arrays.fill(observed, -1);
+        for (Map.Entry<Node, Integer> entry : evidence.entrySet()) {
+            Node node = entry.getKey();
+            Integer id = ids.get(node);
+            if (id == null) {
+                throw new IllegalArgumentException("Node " + node.getName() + " is not in the network");
+            }
+            int state = entry.getValue();
+            if (state < 0 || state >= card[id]) {
+                throw new IllegalArgumentException("Invalid state " + state + " for node " + node.getName());
+            }
+            observed[id] = state;
+        }
+        return observed;
+    }
+
+    /**
+     * get the version of the parameters of a node when this snapshot was taken
+     *
+     * @param v the node id
+     * @return the parameter version
+     */
+    long parameterVersion(int v) {
+        return parameterVersions[v];
+    }
+
+    /**
+     * check that the network still has the nodes, parents and states of this snapshot
+     *
+     * @param network the network the snapshot was taken from
+     * @return true if the structure is unchanged
+     */
+    boolean hasSameStructure(Network network) {
+        if (network.getNumberOfNodes() != networkSize) {
+            return false;
+        }
+        for (int v = 0; v < networkSize; v++) {
+            if (network.getNode(v) != nodes[v]) {
+                return false;
+            }
+        }
+        for (int v = 0; v < nodes.length; v++) {
+            if (nodes[v].getStructureVersion() != structureVersions[v]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * check that the network is unchanged since this snapshot was taken
+     *
+     * @param network the network the snapshot was taken from
+     * @return true if neither the structure nor the parameters changed
+     */
+    boolean isCurrent(Network network) {
+        if (!hasSameStructure(network)) {
+            return false;
+        }
+        for (int v = 0; v < nodes.length; v++) {
+            if (nodes[v].getParameterVersion() != parameterVersions[v]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,17 +1,33 @@
 package org.fyan102.bayesiannetwork.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
- * The node class
+ * The node class. The prior beliefs and the conditional probability table are kept in
+ * flat primitive arrays: the table has one row per combination of parent states, with
+ * the first parent most significant, and one column per state of the node. In
+ * single precision the table is stored as floats, which halves its memory; every value
+ * read from it is widened again, so sums over the table are still taken in doubles.
+ * Off the heap it is kept in an {@link OffHeapTable}.
  */
 public class Node {
     private String name;
-    private ArrayList<String> states;
-    private ArrayList<Double> beliefs;
-    private ArrayList<ArrayList<Double>> probs;
+    private SymbolTable states;
+    private double[] beliefs = new double[0];
+    private double[] probs = new double[0];
+    private float[] singleProbs;
+    private OffHeapTable offHeapProbs;
+    private int rows;
     private ArrayList<Node> parents;
     private ArrayList<Node> children;
+    private long structureVersion;
+    private long parameterVersion;
+    private NoisyMax noisyMax;
+    private ContextTree contextTree;
+    private Node[] chain = new Node[0];
+    private NoisyMax chainFor;
 
     /**
      * Constructor of Node class. The default name is "NewNode"
@@ -40,7 +56,8 @@ public class Node {
     }
 
     /**
-     * Add a parent to the node
+     * Add a parent to the node. A parent that would make the conditional probability
+     * table too large for an array is rejected with an IllegalStateException.
      *
      * @param parent a parent node that is to be added to this node
      * @return true if added successfully, false otherwise
@@ -48,8 +65,21 @@ public class Node {
     public boolean addParent(Node parent) {
         if (!parents.contains(parent) && parent != this) {
             parents.add(parent);
+            if (noisyMax != null) {
+                noisyMax = noisyMax.withParent(parent.getNumberOfStates());
+            }
+            else if (contextTree == null) {
+                try {
+                    convertToConditionalProbabilities();
+                }
+                catch (IllegalStateException e) {
+                    // the table would be too large; leave the node as it was
+                    parents.remove(parents.size() - 1);
+                    throw e;
+                }
+            }
             parent.addChild(this);
-            convertToConditionalProbabilities();
+            structureChanged();
             return true;
         }
         else {
@@ -67,10 +97,15 @@ public class Node {
         state = state.trim();
         if (!states.contains(state) && state.length() > 0) {
             states.add(state);
-            beliefs.add(0.0);
-            for (ArrayList<Double> prob : probs) {
-                prob.add(0.0);
+            beliefs = copyColumns(beliefs, 1, states.size() - 1, states.size(), -1);
+            assignProbs(copyColumns(copyProbs(), rows, states.size() - 1, states.size(), -1), rows);
+            if (noisyMax != null) {
+                noisyMax = noisyMax.withState();
+            }
+            if (contextTree != null) {
+                contextTree = contextTree.withState();
             }
+            structureChanged();
             return true;
         }
         else {
@@ -89,7 +124,24 @@ public class Node {
         if (index >= 0) {
             parents.remove(index);
             parent.removeChild(this);
-            convertToSimpleProbabilities();
+            if (noisyMax != null) {
+                noisyMax = noisyMax.withoutParent(index);
+                if (parents.isEmpty()) {
+                    assignProbs(noisyMax.table(), 1);
+                    noisyMax = null;
+                }
+            }
+            else if (contextTree != null) {
+                contextTree = contextTree.withoutParent(index);
+                if (parents.isEmpty()) {
+                    assignProbs(contextTree.lookup(new int[0]).clone(), 1);
+                    contextTree = null;
+                }
+            }
+            else {
+                convertToSimpleProbabilities();
+            }
+            structureChanged();
             return true;
         }
         return false;
@@ -105,10 +157,15 @@ public class Node {
         int index = states.indexOf(state);
         if (index >= 0) {
             states.remove(index);
-            beliefs.remove(index);
-            for (ArrayList<Double> prob : probs) {
-                prob.remove(index);
+            beliefs = copyColumns(beliefs, 1, states.size() + 1, states.size(), index);
+            assignProbs(copyColumns(copyProbs(), rows, states.size() + 1, states.size(), index), rows);
+            if (noisyMax != null) {
+                noisyMax = states.isEmpty() ? null : noisyMax.withoutState(index);
+            }
+            if (contextTree != null) {
+                contextTree = states.isEmpty() ? null : contextTree.withoutState(index);
             }
+            structureChanged();
             return true;
         }
         return false;
@@ -121,7 +178,7 @@ public class Node {
      * @return the value of belief
      */
     public double getBelief(int index) {
-        return beliefs.get(index);
+        return beliefs[index];
     }
 
     /**
@@ -132,16 +189,41 @@ public class Node {
      */
     public double getBelief(String state) {
         int index = states.indexOf(state);
-        return index >= 0 && index < states.size() ? beliefs.get(index) : 0;
+        return index >= 0 && index < beliefs.length ? beliefs[index] : 0;
+    }
+
+    /**
+     * find the index of a state, the id that evidence and the tables use for it. The
+     * states are kept in a {@link SymbolTable}, so the lookup takes constant time.
+     *
+     * @param state the state
+     * @return the index of the state, or -1 if the node has no such state
+     */
+    public int getStateIndex(String state) {
+        return states.indexOf(state);
     }
 
     /**
-     * Accessor method for beliefs
+     * Accessor method for beliefs, copied into a list for callers that need one.
+     * Editing the list has no effect on the node.
      *
-     * @return the value of beliefs
+     * @return a copy of the beliefs
      */
     public ArrayList<Double> getBeliefs() {
-        return beliefs;
+        ArrayList<Double> list = new ArrayList<>(beliefs.length);
+        for (double belief : beliefs) {
+            list.add(belief);
+        }
+        return list;
+    }
+
+    /**
+     * get the beliefs, one per state
+     *
+     * @return a copy of the beliefs
+     */
+    public double[] getBeliefArray() {
+        return beliefs.clone();
     }
 
     /**
@@ -191,46 +273,592 @@ public class Node {
     }
 
     /**
-     * get a permutation
+     * get all conditional probabilities, copied into one list per row for callers that
+     * need lists. For a node with a noisy-MAX distribution or a context tree the table
+     * is expanded on every call. Editing the lists has no effect on the node.
+     *
+     * @return all conditional probabilities
+     */
+    public ArrayList<ArrayList<Double>> getProbs() {
+        if (noisyMax != null || contextTree != null) {
+            double[] table = getProbArray();
+            return rows(table, states.isEmpty() ? 0 : table.length / states.size(), states.size());
+        }
+        return rows(copyProbs(), rows, states.size());
+    }
+
+    /**
+     * get all conditional probabilities as one flat array, row-major with the state of
+     * the node fastest. For a node with a noisy-MAX distribution or a context tree the
+     * table is expanded on every call.
+     *
+     * @return a copy of the table
+     */
+    public double[] getProbArray() {
+        if (noisyMax != null) {
+            return noisyTable(false);
+        }
+        if (contextTree != null) {
+            return treeTable(allParents());
+        }
+        return copyProbs();
+    }
+
+    /**
+     * get the strides of the flat table: the distance between two consecutive states
+     * of each parent. The states of the node itself have stride 1.
+     *
+     * @return the stride of every parent, in parent order
+     */
+    public int[] getProbStrides() {
+        int[] strides = new int[parents.size()];
+        int stride = states.size();
+        for (int i = strides.length - 1; i >= 0; i--) {
+            strides[i] = stride;
+            stride *= parents.get(i).getNumberOfStates();
+        }
+        return strides;
+    }
+
+    /**
+     * get the table the inference engines read for a node without a noisy-MAX
+     * distribution or a context tree: the beliefs of a root node, the conditional
+     * probabilities otherwise. The array is shared with the node and must not be
+     * modified, except for a table in single precision or off the heap, which is
+     * copied.
+     *
+     * @return the flat table
+     */
+    double[] plainTable() {
+        return parents.isEmpty() ? beliefs : probs != null ? probs : copyProbs();
+    }
+
+    /**
+     * get the number of rows of the conditional probability table, one per
+     * combination of parent states, without expanding a noisy-MAX distribution or a
+     * context tree
      *
-     * @param n the level of permutation
-     * @return a permutation
+     * @return the number of rows
      */
-    private ArrayList<ArrayList<Integer>> getPermutation(int n) {
-        if (n == 0) {
-            return new ArrayList<>();
+    public int getNumberOfRows() {
+        if (noisyMax == null && contextTree == null) {
+            return rows;
         }
-        else if (n == 1) {
-            ArrayList<ArrayList<Integer>> results = new ArrayList<>();
+        return countRows(1);
+    }
 
-            for (int i = 0; i < parents.get(n - 1).getStates().size(); i++) {
-                ArrayList<Integer> states = new ArrayList<Integer>();
-                states.add(i);
-                results.add(states);
+    /**
+     * get one conditional probability, without expanding a noisy-MAX distribution or
+     * a context tree. Rows are numbered as in getProbs(), with the first parent most
+     * significant.
+     *
+     * @param row    the row
+     * @param column the state of the node
+     * @return the probability
+     */
+    public double getProb(int row, int column) {
+        if (noisyMax == null && contextTree == null) {
+            if (row < 0 || row >= rows) {
+                throw new IndexOutOfBoundsException("Row " + row + " out of bounds for node " + name);
             }
-            return results;
+            return column < states.size() ? prob(row * states.size() + column) : 0;
+        }
+        int[] parentStates = new int[parents.size()];
+        MixedRadix.ofParents(this).digits(row, parentStates);
+        if (noisyMax != null) {
+            checkNoisyMax();
+            return noisyMax.row(parentStates)[column];
+        }
+        checkContextTree();
+        return contextTree.lookup(parentStates)[column];
+    }
+
+    /**
+     * get the context tree of the node
+     *
+     * @return the tree, or null if the node has no context tree
+     */
+    public ContextTree getContextTree() {
+        return contextTree;
+    }
+
+    /**
+     * replace the conditional probability table by a context tree, which stores every
+     * distinct context once. Parents the tree never tests are left out of the tables
+     * of the inference engines. Setting null turns the current tree back into a table.
+     *
+     * @param contextTree the tree, testing parents by their index in the parent list
+     */
+    public void setContextTree(ContextTree contextTree) {
+        if (contextTree != null && !contextTree.fits(this)) {
+            throw new IllegalArgumentException("The context tree does not match the parents and states of node "
+                    + name);
+        }
+        if (contextTree != null && parents.isEmpty()) {
+            throw new IllegalArgumentException("Node " + name + " needs a parent for a context tree");
+        }
+        if (this.contextTree != null && contextTree == null) {
+            assignProbs(treeTable(allParents()), getNumberOfRows());
+        }
+        boolean scopeChanged = noisyMax != null || contextTree == null || this.contextTree == null
+                || !Arrays.equals(contextTree.testedParents(parents.size()),
+                this.contextTree.testedParents(parents.size()));
+        this.contextTree = contextTree;
+        if (contextTree != null) {
+            noisyMax = null;
+            assignProbs(new double[0], 0);
+        }
+        if (scopeChanged) {
+            structureChanged();
+        }
+        else {
+            parametersChanged();
+        }
+    }
+
+    /**
+     * replace the parents and the conditional probability table by a context tree at
+     * once. Unlike adding the parents one at a time, this never expands a table over
+     * the parents, so the tree of a node with many parents can be restored as it is.
+     *
+     * @param parents     the new parents
+     * @param contextTree the tree, testing parents by their index in the new list
+     */
+    public void setContextTree(List<Node> parents, ContextTree contextTree) {
+        if (contextTree == null) {
+            throw new IllegalArgumentException("Node " + name + " needs a context tree");
+        }
+        ArrayList<Node> previous = replaceParents(parents);
+        if (parents.isEmpty() || !contextTree.fits(this)) {
+            this.parents = previous;
+            throw new IllegalArgumentException("The context tree does not match the parents and states of node "
+                    + name);
+        }
+        linkParents(previous);
+        this.contextTree = contextTree;
+        noisyMax = null;
+        assignProbs(new double[0], 0);
+        structureChanged();
+    }
+
+    /**
+     * replace the conditional probability table by the smallest context tree found for
+     * it, if that tree stores fewer rows than the table
+     *
+     * @return true if the table was replaced
+     */
+    public boolean compressProbs() {
+        if (parents.isEmpty() || noisyMax != null || contextTree != null) {
+            return false;
+        }
+        int[] parentCard = new int[parents.size()];
+        for (int i = 0; i < parentCard.length; i++) {
+            parentCard[i] = parents.get(i).getNumberOfStates();
+        }
+        int width = states.size();
+        double[] flat = copyProbs();
+        double[][] table = new double[rows][];
+        for (int r = 0; r < rows; r++) {
+            table[r] = Arrays.copyOfRange(flat, r * width, (r + 1) * width);
+        }
+        ContextTree tree = ContextTree.compress(table, parentCard);
+        if (tree.getNumberOfLeaves() >= table.length) {
+            return false;
+        }
+        setContextTree(tree);
+        return true;
+    }
+
+    private int[] allParents() {
+        int[] all = new int[parents.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        return all;
+    }
+
+    private double[] treeTable(int[] scope) {
+        checkContextTree();
+        int[] parentCard = new int[parents.size()];
+        for (int i = 0; i < parentCard.length; i++) {
+            parentCard[i] = parents.get(i).getNumberOfStates();
+        }
+        return contextTree.table(scope, parentCard, states.size());
+    }
+
+    private void checkContextTree() {
+        if (!contextTree.fits(this)) {
+            throw new IllegalStateException("The context tree of node " + name
+                    + " does not match its parents and states");
+        }
+    }
+
+    /**
+     * get the noisy-MAX distribution of the node
+     *
+     * @return the distribution, or null if the node has a conditional probability table
+     */
+    public NoisyMax getNoisyMax() {
+        return noisyMax;
+    }
+
+    /**
+     * replace the conditional probability table by a noisy-MAX distribution, which
+     * stores one row per parent state instead of one row per combination of parent
+     * states. Setting null turns the current distribution back into a table. Parents
+     * added later get a cause that never raises the node, so a node with many parents
+     * can be built up without its table ever being expanded.
+     *
+     * @param noisyMax the distribution, with one cause per parent in parent order
+     */
+    public void setNoisyMax(NoisyMax noisyMax) {
+        if (noisyMax != null && parents.isEmpty()) {
+            throw new IllegalArgumentException("Node " + name + " needs a parent for a noisy-MAX distribution");
+        }
+        if (noisyMax != null && !noisyMax.fits(this)) {
+            throw new IllegalArgumentException("The noisy-MAX distribution does not match the parents and states of node "
+                    + name);
+        }
+        if (noisyMax == null && this.noisyMax != null) {
+            assignProbs(noisyTable(false), getNumberOfRows());
+        }
+        boolean representationChanged = (noisyMax == null) != (this.noisyMax == null) || contextTree != null;
+        this.noisyMax = noisyMax;
+        if (noisyMax != null) {
+            contextTree = null;
+            assignProbs(new double[0], 0);
+        }
+        if (representationChanged) {
+            structureChanged();
         }
         else {
-            ArrayList<ArrayList<Integer>> lastResult = getPermutation(n - 1);
-            ArrayList<ArrayList<Integer>> results = new ArrayList<>();
-            for (ArrayList<Integer> integers : lastResult) {
-                for (int j = 0; j < parents.get(n - 1).states.size(); j++) {
-                    ArrayList<Integer> newStates = new ArrayList<>(integers);
-                    newStates.add(j);
-                    results.add(newStates);
+            parametersChanged();
+        }
+    }
+
+    /**
+     * replace the parents and the conditional probability table by a noisy-MAX
+     * distribution at once. Unlike adding the parents one at a time, this never
+     * expands a table over the parents, so a node with dozens of parents can be
+     * restored from its parameters.
+     *
+     * @param parents  the new parents
+     * @param noisyMax the distribution, with one cause per parent in parent order
+     */
+    public void setNoisyMax(List<Node> parents, NoisyMax noisyMax) {
+        if (noisyMax == null) {
+            throw new IllegalArgumentException("Node " + name + " needs a noisy-MAX distribution");
+        }
+        ArrayList<Node> previous = replaceParents(parents);
+        if (parents.isEmpty() || !noisyMax.fits(this)) {
+            this.parents = previous;
+            throw new IllegalArgumentException("The noisy-MAX distribution does not match the parents and states of node "
+                    + name);
+        }
+        linkParents(previous);
+        this.noisyMax = noisyMax;
+        contextTree = null;
+        assignProbs(new double[0], 0);
+        structureChanged();
+    }
+
+    /**
+     * put a new parent list in place, leaving the children of the parents unchanged
+     *
+     * @return the old parent list
+     */
+    private ArrayList<Node> replaceParents(List<Node> parents) {
+        for (int i = 0; i < parents.size(); i++) {
+            if (parents.get(i) == this || parents.subList(0, i).contains(parents.get(i))) {
+                throw new IllegalArgumentException("Invalid parent " + parents.get(i).getName() + " for node " + name);
+            }
+        }
+        ArrayList<Node> previous = this.parents;
+        this.parents = new ArrayList<>(parents);
+        return previous;
+    }
+
+    /**
+     * move this node from the children of its old parents to those of its new ones
+     */
+    private void linkParents(List<Node> previous) {
+        for (Node parent : previous) {
+            parent.removeChild(this);
+        }
+        for (Node parent : parents) {
+            parent.addChild(this);
+        }
+    }
+
+    /**
+     * get the parents of the node in the form the inference engines use. A noisy-MAX
+     * node in chain form depends on the last auxiliary node of its chain and on its
+     * last parent, and a node with a context tree only on the parents the tree tests.
+     *
+     * @return the parents of the table of the node
+     */
+    List<Node> getFactorParents() {
+        if (contextTree != null) {
+            List<Node> tested = new ArrayList<>();
+            for (int p : contextTree.testedParents(parents.size())) {
+                tested.add(parents.get(p));
+            }
+            return tested;
+        }
+        Node[] chain = getChain();
+        if (chain.length == 0) {
+            return parents;
+        }
+        return List.of(chain[chain.length - 1], parents.get(parents.size() - 1));
+    }
+
+    /**
+     * get the auxiliary nodes of the chain form of a noisy-MAX distribution. The first
+     * one takes the maximum of the leak and the first parent, and every further one
+     * the maximum of the one before it and the next parent. The chain is only used
+     * when its tables are smaller than the full table.
+     *
+     * @return the auxiliary nodes, empty if the node is not in chain form
+     */
+    Node[] getChain() {
+        if (noisyMax == null) {
+            return new Node[0];
+        }
+        checkNoisyMax();
+        int m = states.size();
+        double full = m;
+        double linked = 0;
+        for (int i = 0; i < parents.size(); i++) {
+            int k = parents.get(i).getNumberOfStates();
+            full *= k;
+            linked += i == 0 ? (double) k * m : (double) m * k * m;
+        }
+        if (linked >= full) {
+            return new Node[0];
+        }
+        if (!isChainCurrent()) {
+            chain = new Node[parents.size() - 1];
+            for (int i = 0; i < chain.length; i++) {
+                Node link = new Node(name + "#" + (i + 1));
+                link.setStates(states.toList());
+                ArrayList<Node> linkParents = new ArrayList<>();
+                if (i > 0) {
+                    linkParents.add(chain[i - 1]);
+                }
+                linkParents.add(parents.get(i));
+                link.setParents(linkParents);
+                chain[i] = link;
+            }
+            chainFor = null;
+        }
+        if (chainFor != noisyMax) {
+            for (int i = 0; i < chain.length; i++) {
+                chain[i].setProbArray(noisyMax.link(i));
+            }
+            chainFor = noisyMax;
+        }
+        return chain;
+    }
+
+    private boolean isChainCurrent() {
+        if (chain.length != parents.size() - 1) {
+            return false;
+        }
+        for (int i = 0; i < chain.length; i++) {
+            List<Node> linkParents = chain[i].parents;
+            if (chain[i].getNumberOfStates() != states.size()
+                    || linkParents.get(linkParents.size() - 1) != parents.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * get the table of the node over its factor parents and itself, row-major, for a
+     * node with a noisy-MAX distribution or a context tree
+     *
+     * @return the table, or null if the node has a plain table
+     */
+    double[] factorTable() {
+        if (contextTree != null) {
+            checkContextTree();
+            return treeTable(contextTree.testedParents(parents.size()));
+        }
+        return noisyMax != null ? noisyTable(true) : null;
+    }
+
+    /**
+     * get the table of a noisy-MAX node, row-major
+     *
+     * @param chained true for the last link of the chain form if the node has one,
+     *                false for the full table
+     * @return the table
+     */
+    private double[] noisyTable(boolean chained) {
+        checkNoisyMax();
+        if (chained && getChain().length > 0) {
+            return noisyMax.link(parents.size() - 1);
+        }
+        return noisyMax.table();
+    }
+
+    private void checkNoisyMax() {
+        if (!noisyMax.fits(this)) {
+            throw new IllegalStateException("The noisy-MAX distribution of node " + name
+                    + " does not match its parents and states");
+        }
+    }
+
+    private static ArrayList<ArrayList<Double>> rows(double[] table, int count, int width) {
+        ArrayList<ArrayList<Double>> rows = new ArrayList<>(count);
+        for (int r = 0; r < count; r++) {
+            ArrayList<Double> row = new ArrayList<>(width);
+            for (int j = 0; j < width; j++) {
+                row.add(table[r * width + j]);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * copy a flat table into a new number of columns, dropping one column or padding
+     * with zeros
+     *
+     * @param table    the table
+     * @param count    the number of rows
+     * @param width    the number of columns of the table
+     * @param newWidth the number of columns of the copy
+     * @param skip     the column to drop, or -1
+     * @return the copy
+     */
+    private static double[] copyColumns(double[] table, int count, int width, int newWidth, int skip) {
+        double[] copy = new double[count * newWidth];
+        for (int r = 0; r < count; r++) {
+            for (int j = 0, k = 0; j < width && k < newWidth; j++) {
+                if (j != skip) {
+                    copy[r * newWidth + k++] = table[r * width + j];
                 }
             }
-            return results;
         }
+        return copy;
+    }
+
+    private void assignProbs(double[] table, int count) {
+        storeProbs(table, getStorage());
+        rows = count;
     }
 
     /**
-     * get all conditional probabilities
+     * replace the stored table, releasing an off-heap table
      *
-     * @return all conditional probabilities
+     * @param table   the table; kept as it is with double storage
+     * @param storage where to keep it
      */
-    public ArrayList<ArrayList<Double>> getProbs() {
-        return probs;
+    private void storeProbs(double[] table, TableStorage storage) {
+        if (offHeapProbs != null) {
+            offHeapProbs.close();
+        }
+        probs = storage == TableStorage.DOUBLE ? table : null;
+        singleProbs = storage == TableStorage.SINGLE ? CliqueTree.narrow(table) : null;
+        offHeapProbs = storage == TableStorage.OFF_HEAP ? OffHeapTable.of(table) : null;
+    }
+
+    private double prob(int index) {
+        if (singleProbs != null) {
+            return singleProbs[index];
+        }
+        return offHeapProbs != null ? offHeapProbs.get(index) : probs[index];
+    }
+
+    private void putProb(int index, double value) {
+        if (singleProbs != null) {
+            singleProbs[index] = (float) value;
+        }
+        else if (offHeapProbs != null) {
+            offHeapProbs.set(index, value);
+        }
+        else {
+            probs[index] = value;
+        }
+    }
+
+    private double[] copyProbs() {
+        if (singleProbs != null) {
+            return CliqueTree.widen(singleProbs);
+        }
+        return offHeapProbs != null ? offHeapProbs.toArray() : probs.clone();
+    }
+
+    /**
+     * get where the conditional probability table is kept
+     *
+     * @return the storage
+     */
+    TableStorage getStorage() {
+        if (singleProbs != null) {
+            return TableStorage.SINGLE;
+        }
+        return offHeapProbs != null ? TableStorage.OFF_HEAP : TableStorage.DOUBLE;
+    }
+
+    /**
+     * check if the conditional probability table is stored as floats
+     *
+     * @return true in single precision
+     */
+    public boolean isSinglePrecision() {
+        return singleProbs != null;
+    }
+
+    /**
+     * choose between double and single precision for the storage of the conditional
+     * probability table. Single precision halves the memory of the table at a
+     * relative error of about 6e-8 per value; switching to it rounds the table and
+     * moves a table kept off the heap back onto it. Noisy-MAX distributions and
+     * context trees are not affected. Adding the node to a network keeps this choice;
+     * a later call of Network.setSinglePrecision or Network.setOffHeap overrides it.
+     *
+     * @param singlePrecision true to store the table as floats
+     */
+    public void setSinglePrecision(boolean singlePrecision) {
+        if (singlePrecision != isSinglePrecision()) {
+            storeProbs(copyProbs(), singlePrecision ? TableStorage.SINGLE : TableStorage.DOUBLE);
+            parametersChanged();
+        }
+    }
+
+    /**
+     * check if the conditional probability table is kept off the heap
+     *
+     * @return true if the table is in an off-heap table
+     */
+    public boolean isOffHeap() {
+        return offHeapProbs != null;
+    }
+
+    /**
+     * choose whether the conditional probability table is kept off the heap, in double
+     * precision. Turning it off moves the table back onto the heap and releases the
+     * off-heap memory at once; so does replacing the table. Adding the node to a network
+     * keeps this choice; a later call of Network.setSinglePrecision or
+     * Network.setOffHeap overrides it.
+     *
+     * @param offHeap true to keep the table off the heap
+     */
+    public void setOffHeap(boolean offHeap) {
+        if (offHeap != isOffHeap()) {
+            storeProbs(copyProbs(), offHeap ? TableStorage.OFF_HEAP : TableStorage.DOUBLE);
+            parametersChanged();
+        }
+    }
+
+    private int cell(int row, int column) {
+        if (row < 0 || row >= rows || column < 0 || column >= states.size()) {
+            throw new IndexOutOfBoundsException("Cell (" + row + ", " + column + ") out of bounds for node " + name);
+        }
+        return row * states.size() + column;
     }
 
     /**
@@ -247,60 +875,61 @@ public class Node {
     }
 
     /**
-     * get all states
+     * get all states, copied into a list. Editing the list has no effect on the node.
      *
-     * @return all states
+     * @return a copy of the states
      */
     public ArrayList<String> getStates() {
-        return states;
+        return states.toList();
     }
 
     /**
      * change the size of conditional probabilities table
      */
     public void resizeProbs() {
-        int size = 1;
-        probs = new ArrayList<ArrayList<Double>>();
-        for (Node parent : parents) {
-            size *= parent.states.size();
-        }
-        for (int i = 0; i < size; i++) {
-            ArrayList<Double> probList = new ArrayList<Double>();
-            for (int j = 0; j < states.size(); j++) {
-                probList.add(0.0);
-            }
-            probs.add(probList);
-        }
+        dropNoisyMax();
+        int size = countRows(states.size());
+        assignProbs(new double[size * states.size()], size);
+        parametersChanged();
     }
 
     /**
-     * mutator of beliefs
+     * mutator of beliefs. The values are copied, one per state; missing values are 0.
      *
      * @param beliefs a new table of beliefs
      */
     public void setBeliefs(ArrayList<Double> beliefs) {
-        this.beliefs = beliefs;
+        double[] values = new double[states.size()];
+        for (int i = 0; i < values.length && i < beliefs.size(); i++) {
+            values[i] = beliefs.get(i);
+        }
+        this.beliefs = values;
+        parametersChanged();
     }
 
     /**
-     * change the value of beliefs using an array
+     * change the value of beliefs using an array. The values are copied, one per
+     * state; states without a value keep their belief.
      *
      * @param beliefs an array of beliefs
      */
     public void setBeliefs(double[] beliefs) {
-        for (int i = 0; i < beliefs.length; i++) {
-            System.out.println("Belief "+i+" is "+beliefs[i]);
-            if (this.beliefs.size() > i) {
-                this.beliefs.set(i, beliefs[i]);
-            }
-            else {
-                this.beliefs.add(beliefs[i]);
-            }
-        }
+        System.arraycopy(beliefs, 0, this.beliefs, 0, Math.min(beliefs.length, this.beliefs.length));
+        parametersChanged();
+    }
+
+    /**
+     * replace the values of beliefs, keeping one belief per state
+     *
+     * @param values the new beliefs
+     */
+    void assignBeliefs(double[] values) {
+        beliefs = Arrays.copyOf(values, states.size());
     }
 
     /**
-     * change the name
+     * change the name. A node of a network is renamed through Network.renameNode, so
+     * that the network finds it under its new name.
      *
      * @param name the new name
      */
@@ -316,6 +945,7 @@ public class Node {
      */
     public void setParent(int index, Node parent) {
         parents.set(index, parent);
+        structureChanged();
     }
 
     /**
@@ -325,6 +955,7 @@ public class Node {
      */
     public void setParents(ArrayList<Node> parents) {
         this.parents = parents;
+        structureChanged();
     }
 
     /**
@@ -335,16 +966,65 @@ public class Node {
      * @param value  the new value
      */
     public void setProb(int row, int column, double value) {
-        probs.get(row).set(column, value);
+        dropNoisyMax();
+        putProb(cell(row, column), value);
+        parametersChanged();
     }
 
     /**
-     * mutator of conditional probabilities
+     * mutator of conditional probabilities. The values are copied, one column per
+     * state; missing values are 0.
      *
      * @param probs new probabilities
      */
     public void setProbs(ArrayList<ArrayList<Double>> probs) {
-        this.probs = probs;
+        int width = states.size();
+        double[] table = new double[probs.size() * width];
+        for (int r = 0; r < probs.size(); r++) {
+            ArrayList<Double> row = probs.get(r);
+            for (int j = 0; j < width && j < row.size(); j++) {
+                table[r * width + j] = row.get(j);
+            }
+        }
+        replaceProbs(table, probs.size());
+    }
+
+    /**
+     * replace the conditional probabilities by a flat table, row-major with the state
+     * of the node fastest. The values are copied.
+     *
+     * @param table the new probabilities, a whole number of rows
+     */
+    public void setProbArray(double[] table) {
+        int width = states.size();
+        if (width == 0 ? table.length != 0 : table.length % width != 0) {
+            throw new IllegalArgumentException("The table of node " + name + " must have " + width
+                    + " values per row");
+        }
+        replaceProbs(table.clone(), width == 0 ? 0 : table.length / width);
+    }
+
+    private void replaceProbs(double[] table, int count) {
+        if (noisyMax != null || contextTree != null) {
+            noisyMax = null;
+            contextTree = null;
+            structureChanged();
+        }
+        assignProbs(table, count);
+        parametersChanged();
+    }
+
+    /**
+     * turn a noisy-MAX distribution or a context tree into its table before the table
+     * is edited
+     */
+    private void dropNoisyMax() {
+        if (noisyMax != null) {
+            setNoisyMax(null);
+        }
+        if (contextTree != null) {
+            setContextTree(null);
+        }
     }
 
     /**
@@ -353,15 +1033,17 @@ public class Node {
      * @param probsArray the new conditional probabilities
      */
     public void setProbs(double[][] probsArray) {
+        dropNoisyMax();
         for (int i = 0; i < probsArray.length; i++) {
             for (int j = 0; j < probsArray[0].length; j++) {
-                setProb(i, j, probsArray[i][j]);
+                putProb(cell(i, j), probsArray[i][j]);
             }
         }
+        parametersChanged();
     }
 
     /**
-     * change the state at index
+     * change the state at index. A state that another index already has is rejected.
      *
      * @param index the position
      * @param state the new state
@@ -369,7 +1051,8 @@ public class Node {
      */
     public boolean setState(int index, String state) {
         state = state.trim();
-        if (index >= 0 && index < states.size() && state.length() > 0) {
+        int other = states.indexOf(state);
+        if (index >= 0 && index < states.size() && state.length() > 0 && (other < 0 || other == index)) {
             states.set(index, state);
             return true;
         }
@@ -377,12 +1060,18 @@ public class Node {
     }
 
     /**
-     * the mutator for states
+     * the mutator for states. The beliefs and the columns of the conditional
+     * probabilities are kept for the first states and padded with zeros. The states
+     * are copied.
      *
      * @param states a list of new states
      */
     public void setStates(ArrayList<String> states) {
-        this.states = states;
+        int width = this.states == null ? 0 : this.states.size();
+        this.states = new SymbolTable(states);
+        beliefs = copyColumns(beliefs, 1, width, states.size(), -1);
+        assignProbs(copyColumns(copyProbs(), rows, width, states.size(), -1), rows);
+        structureChanged();
     }
 
     /**
@@ -400,8 +1089,9 @@ public class Node {
         parentsString.append("]");
         return "Node " + name + " {" +
                 "states=" + states +
-                ", beliefs=" + beliefs +
-                ", probs=" + probs +
+                ", beliefs=" + Arrays.toString(beliefs) +
+                (noisyMax != null ? ", noisyMax=" + noisyMax
+                        : contextTree != null ? ", contextTree=" + contextTree : ", probs=" + getProbs()) +
                 ", parents=" + parentsString +
                 '}';
     }
@@ -410,28 +1100,102 @@ public class Node {
      * update the table of believes
      */
     public void updateBelieves() {
+        updateBelieves(false);
+    }
+
+    /**
+     * update the table of believes. In log space the weight of every combination of
+     * parent states is a sum of logarithms taken relative to the largest weight, and
+     * the result is divided by the total weight, which is one for normalized parent
+     * beliefs; so beliefs far below the smallest double do not turn every weight into
+     * zero.
+     *
+     * @param logSpace true to weigh the combinations of parent states with logarithms
+     */
+    void updateBelieves(boolean logSpace) {
         if (parents.isEmpty()) {
             // For nodes without parents, beliefs are already set
             return;
         }
-
-        ArrayList<ArrayList<Integer>> indices = getPermutation(getParents().size());
-        for (int i = 0; i < states.size(); i++) { // ith state of this node
-            double belief = 0;
-            for (int j = 0; j < indices.size(); j++) { // jth permutation
-                double prob = probs.get(j).get(i);
-                double parentProb = 1.0;
-                
-                for (int k = 0; k < indices.get(j).size(); k++) { // kth parent
-                    Node parent = getParent(k);
-                    int parentStateIndex = indices.get(j).get(k);
-                    parentProb *= parent.getBelief(parentStateIndex);
+        if (noisyMax != null || contextTree != null) {
+            double[][] parentBeliefs = new double[parents.size()][];
+            for (int k = 0; k < parentBeliefs.length; k++) {
+                Node parent = getParent(k);
+                parentBeliefs[k] = new double[parent.getNumberOfStates()];
+                for (int j = 0; j < parentBeliefs[k].length; j++) {
+                    parentBeliefs[k][j] = parent.getBelief(j);
                 }
-                
-                belief += prob * parentProb;
             }
-            beliefs.set(i, belief);
+            double[] result;
+            if (noisyMax != null) {
+                checkNoisyMax();
+                result = noisyMax.marginal(parentBeliefs);
+            }
+            else {
+                // each leaf is weighted once by the probability of its context
+                checkContextTree();
+                result = contextTree.marginal(parentBeliefs);
+            }
+            System.arraycopy(result, 0, beliefs, 0, result.length);
+            return;
+        }
+
+        MixedRadix configurations = MixedRadix.ofParents(this);
+        int width = states.size();
+        double[] result = new double[width];
+        if (logSpace) {
+            beliefs = logMarginal(configurations, result);
+            return;
+        }
+        // every combination of parent states, in row order
+        for (boolean more = configurations.size() > 0; more; more = configurations.next()) {
+            double parentProb = 1.0;
+            for (int k = 0; k < parents.size(); k++) { // kth parent
+                parentProb *= parents.get(k).beliefs[configurations.getDigit(k)];
+            }
+            int offset = configurations.getIndex() * width;
+            for (int i = 0; i < width; i++) { // ith state of this node
+                result[i] += prob(offset + i) * parentProb;
+            }
+        }
+        beliefs = result;
+    }
+
+    private double[] logMarginal(MixedRadix configurations, double[] result) {
+        double[][] logBeliefs = new double[parents.size()][];
+        for (int k = 0; k < logBeliefs.length; k++) {
+            double[] parentBeliefs = parents.get(k).beliefs;
+            logBeliefs[k] = new double[parentBeliefs.length];
+            for (int j = 0; j < parentBeliefs.length; j++) {
+                logBeliefs[k][j] = Math.log(parentBeliefs[j]);
+            }
+        }
+        double[] logWeights = new double[configurations.size()];
+        double top = Double.NEGATIVE_INFINITY;
+        for (boolean more = logWeights.length > 0; more; more = configurations.next()) {
+            double logWeight = 0;
+            for (int k = 0; k < logBeliefs.length; k++) {
+                logWeight += logBeliefs[k][configurations.getDigit(k)];
+            }
+            logWeights[configurations.getIndex()] = logWeight;
+            top = Math.max(top, logWeight);
         }
+        if (top == Double.NEGATIVE_INFINITY) {
+            return result;
+        }
+        int width = result.length;
+        double total = 0;
+        for (int j = 0; j < logWeights.length; j++) {
+            double weight = Math.exp(logWeights[j] - top);
+            total += weight;
+            for (int i = 0; i < width; i++) {
+                result[i] += prob(j * width + i) * weight;
+            }
+        }
+        for (int i = 0; i < width; i++) {
+            result[i] /= total;
+        }
+        return result;
     }
 
     private void convertToConditionalProbabilities() {
@@ -440,31 +1204,41 @@ public class Node {
         }
 
         // Calculate number of combinations
-        int combinations = 1;
-        for (Node parent : parents) {
-            combinations *= parent.getNumberOfStates();
-        }
+        int width = states.size();
+        int combinations = countRows(width);
 
-        // Create new probability table
-        ArrayList<ArrayList<Double>> newProbs = new ArrayList<>();
-        for (int i = 0; i < combinations; i++) {
-            ArrayList<Double> row = new ArrayList<>();
-            for (int j = 0; j < states.size(); j++) {
-                // Initialize with uniform distribution
-                row.add(1.0 / states.size());
-            }
-            newProbs.add(row);
-        }
+        // Create new probability table, initialized with a uniform distribution
+        double[] newProbs = new double[combinations * width];
+        Arrays.fill(newProbs, 1.0 / width);
 
         // If we had simple probabilities, distribute them
-        if (!probs.isEmpty() && probs.get(0).size() == states.size()) {
-            ArrayList<Double> oldProbs = probs.get(0);
+        if (rows > 0) {
+            double[] simpleProbs = copyProbs();
             for (int i = 0; i < combinations; i++) {
-                newProbs.set(i, new ArrayList<>(oldProbs));
+                System.arraycopy(simpleProbs, 0, newProbs, i * width, width);
             }
         }
 
-        probs = newProbs;
+        assignProbs(newProbs, combinations);
+    }
+
+    /**
+     * count the combinations of parent states, rejecting a table of that many rows
+     * that would not fit in an array
+     *
+     * @param width the number of entries in each row
+     * @return the number of rows
+     */
+    private int countRows(int width) {
+        long count = 1;
+        for (Node parent : parents) {
+            count *= parent.getNumberOfStates();
+            if (count > Integer.MAX_VALUE / Math.max(width, 1)) {
+                throw new IllegalStateException("The table of node " + name + " would have more than "
+                        + Integer.MAX_VALUE + " entries");
+            }
+        }
+        return (int) count;
     }
 
     private void convertToSimpleProbabilities() {
@@ -473,17 +1247,17 @@ public class Node {
         }
 
         // Convert to simple probabilities by averaging
-        ArrayList<Double> simpleProbs = new ArrayList<>();
-        for (int i = 0; i < states.size(); i++) {
+        int width = states.size();
+        double[] simpleProbs = new double[width];
+        for (int i = 0; i < width; i++) {
             double sum = 0;
-            for (ArrayList<Double> row : probs) {
-                sum += row.get(i);
+            for (int r = 0; r < rows; r++) {
+                sum += prob(r * width + i);
             }
-            simpleProbs.add(sum / probs.size());
+            simpleProbs[i] = sum / rows;
         }
 
-        probs.clear();
-        probs.add(simpleProbs);
+        assignProbs(simpleProbs, 1);
     }
 
     public void addChild(Node child) {
@@ -504,4 +1278,33 @@ public class Node {
         this.children = children;
     }
 
+    /**
+     * get the structure version. It changes whenever the parents or the states of
+     * the node change, so compiled forms of a network can tell when they are stale.
+     *
+     * @return the structure version
+     */
+    long getStructureVersion() {
+        return structureVersion;
+    }
+
+    /**
+     * get the parameter version. It changes whenever the structure, the conditional
+     * probabilities or the prior beliefs change.
+     *
+     * @return the parameter version
+     */
+    long getParameterVersion() {
+        return parameterVersion;
+    }
+
+    private void structureChanged() {
+        structureVersion++;
+        parameterVersion++;
+    }
+
+    private void parametersChanged() {
+        parameterVersion++;
+    }
+
 }
@@ -0,0 +1,379 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.Arrays;
+
+/**
+ * A noisy-MAX conditional distribution. The states of the child are ordered levels,
+ * the first state meaning absent. Every parent independently pushes the child to
+ * some level, with a distribution that depends only on the state of that parent,
+ * and a leak covers all causes that are not modelled; the child takes the highest
+ * level of all of them. So P(child &lt;= y | parents) is the product of the
+ * cumulative leak and the cumulative distribution of every parent, and the
+ * distribution needs one row per parent state instead of one row per combination of
+ * parent states. Noisy-OR is the case of a binary child.
+ * <p>
+ * Inference engines use the distribution in its chain form: auxiliary variables
+ * take the maximum over the leak and the first parents one parent at a time, so the
+ * tables grow linearly with the number of parents.
+ */
+public final class NoisyMax {
+    private static final double TOLERANCE = 1e-9;
+
+    private final double[][][] causes;
+    private final double[] leak;
+
+    /**
+     * Constructor of NoisyMax class
+     *
+     * @param causes for every parent and every state of that parent, the distribution
+     *               over the child states that the parent causes on its own
+     * @param leak   the distribution over the child states when no parent is active
+     */
+    public NoisyMax(double[][][] causes, double[] leak) {
+        if (leak.length == 0) {
+            throw new IllegalArgumentException("The child must have at least one state");
+        }
+        checkDistribution(leak, leak.length);
+        this.leak = leak.clone();
+        this.causes = new double[causes.length][][];
+        for (int i = 0; i < causes.length; i++) {
+            if (causes[i].length == 0) {
+                throw new IllegalArgumentException("Parent " + i + " must have at least one state");
+            }
+            this.causes[i] = new double[causes[i].length][];
+            for (int x = 0; x < causes[i].length; x++) {
+                checkDistribution(causes[i][x], leak.length);
+                this.causes[i][x] = causes[i][x].clone();
+            }
+        }
+    }
+
+    /**
+     * create a noisy-OR distribution over a binary child and binary parents. A parent
+     * in its second state turns the child on with its own probability; the first
+     * state of every node means off.
+     *
+     * @param probabilities the probability that each parent alone turns the child on
+     * @param leak          the probability that the child is on with all parents off
+     * @return the distribution
+     */
+    public static NoisyMax noisyOr(double[] probabilities, double leak) {
+        double[][][] causes = new double[probabilities.length][][];
+        for (int i = 0; i < causes.length; i++) {
+            causes[i] = new double[][]{{1, 0}, {1 - probabilities[i], probabilities[i]}};
+        }
+        return new NoisyMax(causes, new double[]{1 - leak, leak});
+    }
+
+    private static void checkDistribution(double[] distribution, int states) {
+        if (distribution.length != states) {
+            throw new IllegalArgumentException("Every distribution must have " + states + " states");
+        }
+        double sum = 0;
+        for (double p : distribution) {
+            if (!(p >= 0)) {
+                throw new IllegalArgumentException("Probabilities must not be negative");
+            }
+            sum += p;
+        }
+        if (Math.abs(sum - 1) > TOLERANCE) {
+            throw new IllegalArgumentException("Every distribution must sum to 1");
+        }
+    }
+
+    /**
+     * Return the number of parents
+     *
+     * @return the number of parents
+     */
+    public int getNumberOfParents() {
+        return causes.length;
+    }
+
+    /**
+     * Return the number of states of the child
+     *
+     * @return the number of child states
+     */
+    public int getNumberOfStates() {
+        return leak.length;
+    }
+
+    /**
+     * Return the number of states of a parent
+     *
+     * @param parent the index of the parent
+     * @return the number of parent states
+     */
+    public int getNumberOfParentStates(int parent) {
+        return causes[parent].length;
+    }
+
+    /**
+     * Return the distribution a parent causes in one of its states
+     *
+     * @param parent the index of the parent
+     * @param state  the state of the parent
+     * @return a copy of the distribution over the child states
+     */
+    public double[] getCause(int parent, int state) {
+        return causes[parent][state].clone();
+    }
+
+    /**
+     * Return the leak distribution
+     *
+     * @return a copy of the distribution over the child states
+     */
+    public double[] getLeak() {
+        return leak.clone();
+    }
+
+    /**
+     * add a parent that never raises the child
+     *
+     * @param states the number of states of the new parent
+     * @return the extended distribution
+     */
+    NoisyMax withParent(int states) {
+        double[][][] extended = Arrays.copyOf(causes, causes.length + 1);
+        extended[causes.length] = new double[states][leak.length];
+        for (double[] cause : extended[causes.length]) {
+            cause[0] = 1.0;
+        }
+        return new NoisyMax(extended, leak);
+    }
+
+    /**
+     * remove a parent
+     *
+     * @param parent the index of the parent
+     * @return the reduced distribution
+     */
+    NoisyMax withoutParent(int parent) {
+        double[][][] reduced = new double[causes.length - 1][][];
+        for (int i = 0, j = 0; i < causes.length; i++) {
+            if (i != parent) {
+                reduced[j++] = causes[i];
+            }
+        }
+        return new NoisyMax(reduced, leak);
+    }
+
+    /**
+     * add a highest child state that nothing causes
+     *
+     * @return the extended distribution
+     */
+    NoisyMax withState() {
+        double[][][] extended = new double[causes.length][][];
+        for (int i = 0; i < causes.length; i++) {
+            extended[i] = new double[causes[i].length][];
+            for (int x = 0; x < causes[i].length; x++) {
+                extended[i][x] = Arrays.copyOf(causes[i][x], leak.length + 1);
+            }
+        }
+        return new NoisyMax(extended, Arrays.copyOf(leak, leak.length + 1));
+    }
+
+    /**
+     * remove a child state, moving its probability to the state below it
+     *
+     * @param state the child state
+     * @return the reduced distribution
+     */
+    NoisyMax withoutState(int state) {
+        double[][][] reduced = new double[causes.length][][];
+        for (int i = 0; i < causes.length; i++) {
+            reduced[i] = new double[causes[i].length][];
+            for (int x = 0; x < causes[i].length; x++) {
+                reduced[i][x] = removeState(causes[i][x], state);
+            }
+        }
+        return new NoisyMax(reduced, removeState(leak, state));
+    }
+
+    private static double[] removeState(double[] distribution, int state) {
+        double[] reduced = new double[distribution.length - 1];
+        for (int y = 0, j = 0; y < distribution.length; y++) {
+            if (y != state) {
+                reduced[j++] = distribution[y];
+            }
+        }
+        reduced[Math.max(0, state - 1)] += distribution[state];
+        return reduced;
+    }
+
+    /**
+     * check that the distribution fits a node
+     *
+     * @param node the node
+     * @return true if the node has the same number of states, parents and parent
+     * states as the distribution
+     */
+    boolean fits(Node node) {
+        if (node.getNumberOfStates() != leak.length || node.getNumberOfParents() != causes.length) {
+            return false;
+        }
+        for (int i = 0; i < causes.length; i++) {
+            if (node.getParent(i).getNumberOfStates() != causes[i].length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * expand the distribution into a full table, with the first parent most
+     * significant and the child fastest
+     *
+     * @return the conditional probability table, row-major
+     */
+    double[] table() {
+        int m = leak.length;
+        int[] radix = new int[causes.length];
+        for (int i = 0; i < radix.length; i++) {
+            radix[i] = causes[i].length;
+        }
+        MixedRadix states = new MixedRadix(radix);
+        double[] table = new double[states.size() * m];
+        double[] cumulative = new double[m];
+        do {
+            double below = 0;
+            for (int y = 0; y < m; y++) {
+                below += leak[y];
+                cumulative[y] = below;
+            }
+            for (int i = 0; i < causes.length; i++) {
+                double[] cause = causes[i][states.getDigit(i)];
+                double sum = 0;
+                for (int y = 0; y < m; y++) {
+                    sum += cause[y];
+                    cumulative[y] *= sum;
+                }
+            }
+            difference(cumulative, table, states.getIndex() * m);
+        } while (states.next());
+        return table;
+    }
+
+    /**
+     * compute the distribution of the child for one combination of parent states
+     *
+     * @param parentStates the state of every parent
+     * @return the distribution over the child states
+     */
+    double[] row(int[] parentStates) {
+        int m = leak.length;
+        double[] cumulative = new double[m];
+        double below = 0;
+        for (int y = 0; y < m; y++) {
+            below += leak[y];
+            cumulative[y] = below;
+        }
+        for (int i = 0; i < causes.length; i++) {
+            double[] cause = causes[i][parentStates[i]];
+            double sum = 0;
+            for (int y = 0; y < m; y++) {
+                sum += cause[y];
+                cumulative[y] *= sum;
+            }
+        }
+        double[] row = new double[m];
+        difference(cumulative, row, 0);
+        return row;
+    }
+
+    /**
+     * compute the table of one link of the chain form over the running maximum before
+     * the parent, the parent and the running maximum after it. The first link has no
+     * running maximum before it and folds in the leak instead.
+     *
+     * @param parent the index of the parent
+     * @return the table, row-major
+     */
+    double[] link(int parent) {
+        int m = leak.length;
+        double[][] cause = causes[parent];
+        if (parent == 0) {
+            double[] table = new double[cause.length * m];
+            double[] cumulative = new double[m];
+            for (int x = 0; x < cause.length; x++) {
+                double below = 0;
+                double sum = 0;
+                for (int y = 0; y < m; y++) {
+                    below += leak[y];
+                    sum += cause[x][y];
+                    cumulative[y] = below * sum;
+                }
+                difference(cumulative, table, x * m);
+            }
+            return table;
+        }
+        double[] table = new double[m * cause.length * m];
+        for (int before = 0; before < m; before++) {
+            for (int x = 0; x < cause.length; x++) {
+                int offset = (before * cause.length + x) * m;
+                double below = 0;
+                for (int y = 0; y < before; y++) {
+                    below += cause[x][y];
+                }
+                table[offset + before] = below + cause[x][before];
+                for (int y = before + 1; y < m; y++) {
+                    table[offset + y] = cause[x][y];
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * compute the distribution of the child from the distributions of its parents,
+     * assuming the parents are independent
+     *
+     * @param parents the distribution of every parent
+     * @return the distribution of the child
+     */
+    double[] marginal(double[][] parents) {
+        int m = leak.length;
+        double[] cumulative = new double[m];
+        double below = 0;
+        for (int y = 0; y < m; y++) {
+            below += leak[y];
+            cumulative[y] = below;
+        }
+        double[] weighted = new double[m];
+        for (int i = 0; i < causes.length; i++) {
+            Arrays.fill(weighted, 0);
+            for (int x = 0; x < causes[i].length; x++) {
+                double sum = 0;
+                for (int y = 0; y < m; y++) {
+                    sum += causes[i][x][y];
+                    weighted[y] += parents[i][x] * sum;
+                }
+            }
+            for (int y = 0; y < m; y++) {
+                cumulative[y] *= weighted[y];
+            }
+        }
+        double[] result = new double[m];
+        difference(cumulative, result, 0);
+        return result;
+    }
+
+    private static void difference(double[] cumulative, double[] out, int offset) {
+        double previous = 0;
+        for (int y = 0; y < cumulative.length; y++) {
+            out[offset + y] = Math.max(0, cumulative[y] - previous);
+            previous = cumulative[y];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NoisyMax{" +
+                "causes=" + Arrays.deepToString(causes) +
+                ", leak=" + Arrays.toString(leak) +
+                '}';
+    }
+}
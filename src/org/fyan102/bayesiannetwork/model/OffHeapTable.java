@@ -0,0 +1,256 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * A table of doubles outside the Java heap, indexed by long so it is not limited to
+ * 2^31 entries. Large tables kept off the heap are never copied by the garbage
+ * collector and do not count against the heap size. The memory is released by
+ * close(); a table that is never closed is released once it is no longer reachable.
+ * <p>
+ * The memory segments of the jdk.incubator.foreign module are used when the module is
+ * present (run with --add-modules jdk.incubator.foreign), and their memory is freed at
+ * once on close. Otherwise, or when the system property bayesiannetwork.foreign is
+ * false, direct byte buffers are used, which the JVM frees when they are collected.
+ * Both are limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+ */
+public abstract class OffHeapTable implements AutoCloseable {
+    private static final Constructor<? extends OffHeapTable> SEGMENTS = load();
+
+    private final long size;
+
+    OffHeapTable(long size) {
+        if (size < 0 || size > Long.MAX_VALUE / Double.BYTES) {
+            throw new IllegalArgumentException("Invalid table size " + size);
+        }
+        this.size = size;
+    }
+
+    private static Constructor<? extends OffHeapTable> load() {
+        if (!Boolean.parseBoolean(System.getProperty("bayesiannetwork.foreign", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.foreign").isEmpty()) {
+            return null;
+        }
+        try {
+            return Class.forName(OffHeapTable.class.getPackageName() + ".SegmentTable")
+                    .asSubclass(OffHeapTable.class).getDeclaredConstructor(long.class);
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * allocate a table filled with zeros
+     *
+     * @param size the number of entries
+     * @return the table
+     */
+    public static OffHeapTable allocate(long size) {
+        if (SEGMENTS != null) {
+            try {
+                return SEGMENTS.newInstance(size);
+            }
+            catch (InvocationTargetException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+            }
+            catch (ReflectiveOperationException | LinkageError e) {
+                // fall back to direct buffers
+            }
+        }
+        return new Buffers(size);
+    }
+
+    /**
+     * allocate a table holding a copy of an array
+     *
+     * @param values the values
+     * @return the table
+     */
+    public static OffHeapTable of(double[] values) {
+        OffHeapTable table = allocate(values.length);
+        table.copyFrom(values, 0, 0, values.length);
+        return table;
+    }
+
+    /**
+     * Return the number of entries
+     *
+     * @return the number of entries
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Return one entry
+     *
+     * @param index the index of the entry
+     * @return the value
+     */
+    public abstract double get(long index);
+
+    /**
+     * change one entry
+     *
+     * @param index the index of the entry
+     * @param value the new value
+     */
+    public abstract void set(long index, double value);
+
+    /**
+     * copy values from an array into the table
+     *
+     * @param source the array
+     * @param from   the first index in the array
+     * @param index  the first index in the table
+     * @param length the number of values
+     */
+    public abstract void copyFrom(double[] source, int from, long index, int length);
+
+    /**
+     * copy values from the table into an array
+     *
+     * @param index  the first index in the table
+     * @param target the array
+     * @param to     the first index in the array
+     * @param length the number of values
+     */
+    public abstract void copyTo(long index, double[] target, int to, int length);
+
+    /**
+     * set every entry to one value
+     *
+     * @param value the value
+     */
+    public void fill(double value) {
+        double[] block = new double[(int) Math.min(size, 1 << 16)];
+        Arrays.fill(block, value);
+        for (long index = 0; index < size; index += block.length) {
+            copyFrom(block, 0, index, (int) Math.min(block.length, size - index));
+        }
+    }
+
+    /**
+     * copy the whole table into an array
+     *
+     * @return the values
+     */
+    public double[] toArray() {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("A table of " + size + " entries does not fit in an array");
+        }
+        double[] values = new double[(int) size];
+        copyTo(0, values, 0, values.length);
+        return values;
+    }
+
+    /**
+     * check if the memory of the table has been released
+     *
+     * @return true once closed
+     */
+    public abstract boolean isClosed();
+
+    /**
+     * release the memory of the table. Closing a closed table has no effect; any other
+     * use of a closed table throws an IllegalStateException.
+     */
+    @Override
+    public abstract void close();
+
+    void checkRange(long index, long length) {
+        if (index < 0 || length < 0 || index > size - length) {
+            throw new IndexOutOfBoundsException("Range [" + index + ", " + (index + length)
+                    + ") out of bounds for a table of " + size + " entries");
+        }
+    }
+
+    /**
+     * the table in direct byte buffers of at most 2^27 doubles each
+     */
+    private static final class Buffers extends OffHeapTable {
+        private static final int SHIFT = 27;
+        private static final int MASK = (1 << SHIFT) - 1;
+
+        private DoubleBuffer[] chunks;
+
+        Buffers(long size) {
+            super(size);
+            chunks = new DoubleBuffer[(int) ((size + MASK) >>> SHIFT)];
+            for (int k = 0; k < chunks.length; k++) {
+                int length = (int) Math.min(1L << SHIFT, size - ((long) k << SHIFT));
+                chunks[k] = ByteBuffer.allocateDirect(length * Double.BYTES)
+                        .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+        }
+
+        private DoubleBuffer[] chunks() {
+            DoubleBuffer[] chunks = this.chunks;
+            if (chunks == null) {
+                throw new IllegalStateException("The table is closed");
+            }
+            return chunks;
+        }
+
+        @Override
+        public double get(long index) {
+            checkRange(index, 1);
+            return chunks()[(int) (index >>> SHIFT)].get((int) (index & MASK));
+        }
+
+        @Override
+        public void set(long index, double value) {
+            checkRange(index, 1);
+            chunks()[(int) (index >>> SHIFT)].put((int) (index & MASK), value);
+        }
+
+        @Override
+        public void copyFrom(double[] source, int from, long index, int length) {
+            checkRange(index, length);
+            DoubleBuffer[] chunks = chunks();
+            while (length > 0) {
+                int offset = (int) (index & MASK);
+                int count = Math.min(length, chunks[(int) (index >>> SHIFT)].capacity() - offset);
+                chunks[(int) (index >>> SHIFT)].put(offset, source, from, count);
+                from += count;
+                index += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void copyTo(long index, double[] target, int to, int length) {
+            checkRange(index, length);
+            DoubleBuffer[] chunks = chunks();
+            while (length > 0) {
+                int offset = (int) (index & MASK);
+                int count = Math.min(length, chunks[(int) (index >>> SHIFT)].capacity() - offset);
+                chunks[(int) (index >>> SHIFT)].get(offset, target, to, count);
+                to += count;
+                index += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return chunks == null;
+        }
+
+        @Override
+        public void close() {
+            chunks = null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Structural pruning of queries. Before any numeric work the graph is walked with
+ * the Bayes-ball algorithm to find the nodes whose conditional probabilities can
+ * influence the targets given the evidence. Barren descendants and nodes that are
+ * d-separated from the targets are never visited from below, so their tables are
+ * left out.
+ */
+final class Relevance {
+    private Relevance() {
+    }
+
+    /**
+     * find the requisite nodes of a query
+     *
+     * @param targets  the nodes to query
+     * @param evidence the observed state index of each observed node
+     * @return the nodes whose conditional probabilities are needed
+     */
+    static Set<Node> requisite(Collection<Node> targets, Map<Node, Integer> evidence) {
+        Set<Node> top = new LinkedHashSet<>();
+        Set<Node> bottom = new HashSet<>();
+        ArrayDeque<Node> nodes = new ArrayDeque<>();
+        ArrayDeque<Boolean> fromChild = new ArrayDeque<>();
+        for (Node target : targets) {
+            nodes.add(target);
+            fromChild.add(true);
+        }
+        while (!nodes.isEmpty()) {
+            Node node = nodes.poll();
+            boolean up = fromChild.poll();
+            boolean observed = evidence.containsKey(node);
+            if (up && !observed) {
+                if (top.add(node)) {
+                    schedule(node.getParents(), true, nodes, fromChild);
+                }
+                if (bottom.add(node)) {
+                    schedule(node.getChildren(), false, nodes, fromChild);
+                }
+            }
+            else if (!up) {
+                if (observed) {
+                    if (top.add(node)) {
+                        schedule(node.getParents(), true, nodes, fromChild);
+                    }
+                }
+                else if (bottom.add(node)) {
+                    schedule(node.getChildren(), false, nodes, fromChild);
+                }
+            }
+        }
+        return top;
+    }
+
+    /**
+     * find a set of nodes and all of their ancestors
+     *
+     * @param nodes the nodes to start from
+     * @return the ancestral set
+     */
+    static Set<Node> ancestral(Collection<Node> nodes) {
+        Set<Node> result = new LinkedHashSet<>();
+        ArrayDeque<Node> queue = new ArrayDeque<>(nodes);
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            if (result.add(node)) {
+                queue.addAll(node.getParents());
+            }
+        }
+        return result;
+    }
+
+    private static void schedule(Collection<Node> next, boolean up,
+                                 ArrayDeque<Node> nodes, ArrayDeque<Boolean> fromChild) {
+        for (Node node : next) {
+            nodes.add(node);
+            fromChild.add(up);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.Map;
+
+/**
+ * The estimates of an approximate inference run
+ */
+public class SamplingResult {
+    private final Map<Node, double[]> marginals;
+    private final Map<Node, Double> effectiveSampleSizes;
+    private final Map<Node, Double> rHats;
+    private final long samples;
+    private final long elapsedNanos;
+    private final double halfWidth;
+    private final int threads;
+
+    /**
+     * Constructor of SamplingResult class
+     *
+     * @param marginals            the estimated posterior of each node
+     * @param effectiveSampleSizes the effective sample size behind each estimate
+     * @param rHats                the potential scale reduction of each estimate, or null
+     * @param samples              the number of samples drawn
+     * @param elapsedNanos         the wall-clock time of the run
+     * @param halfWidth            the largest 95% confidence half-width of any estimate
+     * @param threads              the number of threads that drew samples
+     */
+    SamplingResult(Map<Node, double[]> marginals, Map<Node, Double> effectiveSampleSizes,
+                   Map<Node, Double> rHats, long samples, long elapsedNanos, double halfWidth, int threads) {
+        this.marginals = marginals;
+        this.effectiveSampleSizes = effectiveSampleSizes;
+        this.rHats = rHats;
+        this.samples = samples;
+        this.elapsedNanos = elapsedNanos;
+        this.halfWidth = halfWidth;
+        this.threads = threads;
+    }
+
+    /**
+     * get the estimated posterior of a node
+     *
+     * @param node the node
+     * @return the posterior over the states of the node
+     */
+    public double[] getMarginal(Node node) {
+        return marginals.get(node);
+    }
+
+    /**
+     * get the estimated posteriors of all nodes
+     *
+     * @return the posterior over the states of each node, in network order
+     */
+    public Map<Node, double[]> getMarginals() {
+        return marginals;
+    }
+
+    /**
+     * get the effective sample size behind the estimate of a node
+     *
+     * @param node the node
+     * @return the effective sample size
+     */
+    public double getEffectiveSampleSize(Node node) {
+        return effectiveSampleSizes.get(node);
+    }
+
+    /**
+     * get the potential scale reduction factor (R-hat) of the estimate of a node.
+     * Values close to 1 mean that independent chains agree.
+     *
+     * @param node the node
+     * @return the R-hat of the node, or NaN if the method does not run chains
+     */
+    public double getRHat(Node node) {
+        if (rHats == null) {
+            return Double.NaN;
+        }
+        return rHats.get(node);
+    }
+
+    /**
+     * Return the number of samples drawn
+     *
+     * @return the number of samples
+     */
+    public long getNumberOfSamples() {
+        return samples;
+    }
+
+    /**
+     * Return the wall-clock time of the run
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Return the sampling throughput
+     *
+     * @return the samples drawn per second by each thread
+     */
+    public double getSamplesPerSecondPerCore() {
+        return elapsedNanos > 0 ? samples / (elapsedNanos / 1e9) / threads : 0;
+    }
+
+    /**
+     * Return the largest 95% confidence half-width of any state probability
+     *
+     * @return the half-width
+     */
+    public double getHalfWidth() {
+        return halfWidth;
+    }
+}
@@ -0,0 +1,64 @@
+package org.fyan102.bayesiannetwork.model;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.lang.ref.Cleaner;
+
+/**
+ * An off-heap table in a native memory segment of the jdk.incubator.foreign module.
+ * Only loaded by {@link OffHeapTable} when the module is present. The segment lives in
+ * a shared scope, so queries on other threads may read it, and closing the scope frees
+ * the memory at once; a cleaner closes it if the table is collected first.
+ */
+final class SegmentTable extends OffHeapTable {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final ResourceScope scope;
+    private final MemorySegment segment;
+
+    SegmentTable(long size) {
+        super(size);
+        scope = ResourceScope.newSharedScope(CLEANER);
+        // the native allocator rejects empty segments
+        segment = MemorySegment.allocateNative(Math.max(size, 1) * Double.BYTES, Double.BYTES, scope)
+                .asSlice(0, size * Double.BYTES);
+    }
+
+    @Override
+    public double get(long index) {
+        return MemoryAccess.getDoubleAtIndex(segment, index);
+    }
+
+    @Override
+    public void set(long index, double value) {
+        MemoryAccess.setDoubleAtIndex(segment, index, value);
+    }
+
+    @Override
+    public void copyFrom(double[] source, int from, long index, int length) {
+        checkRange(index, length);
+        segment.asSlice(index * Double.BYTES, (long) length * Double.BYTES)
+                .copyFrom(MemorySegment.ofArray(source).asSlice((long) from * Double.BYTES, (long) length * Double.BYTES));
+    }
+
+    @Override
+    public void copyTo(long index, double[] target, int to, int length) {
+        checkRange(index, length);
+        MemorySegment.ofArray(target).asSlice((long) to * Double.BYTES, (long) length * Double.BYTES)
+                .copyFrom(segment.asSlice(index * Double.BYTES, (long) length * Double.BYTES));
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !scope.isAlive();
+    }
+
+    @Override
+    public void close() {
+        if (scope.isAlive()) {
+            scope.close();
+        }
+    }
+}
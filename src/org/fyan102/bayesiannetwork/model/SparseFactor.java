@@ -0,0 +1,351 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.Arrays;
+
+/**
+ * A factor that keeps only its non-zero entries, for the tables of deterministic and
+ * mostly impossible nodes such as logical gates and lookups. The entries are stored
+ * by their index into the row-major layout of {@link Factor}, in increasing order, so
+ * a sparse factor turns back into the same dense table. Products and marginals only
+ * visit the non-zero entries: their work grows with the entries kept, not with the
+ * size of the scope. Each entry costs an int index besides its value, so the sparse
+ * form is smaller than the dense one while fewer than two thirds of the entries are
+ * non-zero, and faster well below that.
+ */
+final class SparseFactor {
+    private final int[] vars;
+    private final int[] card;
+    private final int[] indices;
+    private final double[] values;
+
+    /**
+     * Constructor of SparseFactor class
+     *
+     * @param vars    the ids of the variables in the scope
+     * @param card    the number of states of each variable
+     * @param indices the increasing indices of the non-zero entries
+     * @param values  the value of each non-zero entry
+     */
+    SparseFactor(int[] vars, int[] card, int[] indices, double[] values) {
+        this.vars = vars;
+        this.card = card;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * keep the non-zero entries of a dense factor
+     *
+     * @param factor the dense factor
+     * @return the sparse factor
+     */
+    static SparseFactor of(Factor factor) {
+        double[] dense = factor.getValues();
+        int count = 0;
+        for (double value : dense) {
+            if (value != 0) {
+                count++;
+            }
+        }
+        int[] indices = new int[count];
+        double[] values = new double[count];
+        int next = 0;
+        for (int i = 0; i < dense.length; i++) {
+            if (dense[i] != 0) {
+                indices[next] = i;
+                values[next++] = dense[i];
+            }
+        }
+        return new SparseFactor(factor.getVars(), factor.getCard(), indices, values);
+    }
+
+    /**
+     * find the fraction of the entries of a dense factor that are not zero
+     *
+     * @param factor the dense factor
+     * @return the density, 1 for a factor without entries
+     */
+    static double density(Factor factor) {
+        double[] dense = factor.getValues();
+        if (dense.length == 0) {
+            return 1;
+        }
+        int count = 0;
+        for (double value : dense) {
+            if (value != 0) {
+                count++;
+            }
+        }
+        return (double) count / dense.length;
+    }
+
+    /**
+     * find the fraction of the entries that are not zero
+     *
+     * @return the density, 1 for a factor without entries
+     */
+    double density() {
+        long size = size(card);
+        return size == 0 ? 1 : (double) values.length / size;
+    }
+
+    /**
+     * expand the factor into a dense table
+     *
+     * @return the dense factor
+     */
+    Factor toFactor() {
+        double[] dense = new double[(int) size(card)];
+        for (int i = 0; i < indices.length; i++) {
+            dense[indices[i]] = values[i];
+        }
+        return new Factor(vars, card, dense);
+    }
+
+    int[] getVars() {
+        return vars;
+    }
+
+    /**
+     * Return the number of non-zero entries
+     *
+     * @return the number of entries kept
+     */
+    int getNonZeros() {
+        return values.length;
+    }
+
+    /**
+     * find the position of a variable in the scope
+     *
+     * @param var the variable id
+     * @return the position, or -1 if the variable is not in the scope
+     */
+    int indexOf(int var) {
+        for (int i = 0; i < vars.length; i++) {
+            if (vars[i] == var) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * multiply two factors. The scope of the result is the scope of this factor
+     * followed by the variables that only occur in the other factor, as in
+     * {@link Factor#product(Factor)}.
+     * <p>
+     * The entries of the other factor are sorted by their states of the shared
+     * variables. Every entry of this factor then meets only the entries of the other
+     * factor that agree with it, found by binary search, and the pairs come out in
+     * the order of the result.
+     *
+     * @param other the other factor
+     * @return the product
+     */
+    SparseFactor product(SparseFactor other) {
+        int extra = 0;
+        for (int var : other.vars) {
+            if (indexOf(var) < 0) {
+                extra++;
+            }
+        }
+        int m = vars.length + extra;
+        int[] resultVars = new int[m];
+        int[] resultCard = new int[m];
+        System.arraycopy(vars, 0, resultVars, 0, vars.length);
+        System.arraycopy(card, 0, resultCard, 0, card.length);
+
+        // key the other factor by its shared states, most significant first, then by
+        // the states only it has, so that the key of an entry is its place in a
+        // reordered copy of the table
+        int[] otherStrides = strides(other.card);
+        int[] ownStrides = strides(card);
+        int[] keyStrides = new int[other.vars.length];
+        int[] matchStrides = new int[vars.length];
+        int stride = 1;
+        int next = m;
+        for (int j = other.vars.length - 1; j >= 0; j--) {
+            if (indexOf(other.vars[j]) < 0) {
+                keyStrides[j] = stride;
+                stride *= other.card[j];
+                resultVars[--next] = other.vars[j];
+                resultCard[next] = other.card[j];
+            }
+        }
+        int extraSize = stride;
+        if (size(resultCard) > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The product of the factors has more than "
+                    + Integer.MAX_VALUE + " entries");
+        }
+        for (int j = other.vars.length - 1; j >= 0; j--) {
+            int p = indexOf(other.vars[j]);
+            if (p >= 0) {
+                keyStrides[j] = stride;
+                matchStrides[p] = stride;
+                stride *= other.card[j];
+            }
+        }
+
+        long[] keyed = new long[other.indices.length];
+        for (int k = 0; k < keyed.length; k++) {
+            long key = remap(other.indices[k], other.card, otherStrides, keyStrides);
+            keyed[k] = key << 32 | k;
+        }
+        Arrays.sort(keyed);
+
+        int capacity = Math.max(1, Math.max(indices.length, other.indices.length));
+        int[] resultIndices = new int[capacity];
+        double[] resultValues = new double[capacity];
+        int count = 0;
+        for (int i = 0; i < indices.length; i++) {
+            long key = remap(indices[i], card, ownStrides, matchStrides);
+            for (int k = lowerBound(keyed, key << 32); k < keyed.length && keyed[k] >>> 32 < key + extraSize; k++) {
+                double value = values[i] * other.values[(int) keyed[k]];
+                if (value == 0) {
+                    continue;
+                }
+                if (count == resultIndices.length) {
+                    resultIndices = Arrays.copyOf(resultIndices, 2 * count);
+                    resultValues = Arrays.copyOf(resultValues, 2 * count);
+                }
+                resultIndices[count] = (int) ((long) indices[i] * extraSize + (keyed[k] >>> 32) - key);
+                resultValues[count++] = value;
+            }
+        }
+        return new SparseFactor(resultVars, resultCard, Arrays.copyOf(resultIndices, count),
+                Arrays.copyOf(resultValues, count));
+    }
+
+    /**
+     * sum a variable out of the factor
+     *
+     * @param var the variable id
+     * @return the marginal over the remaining variables
+     */
+    SparseFactor sumOut(int var) {
+        int p = indexOf(var);
+        if (p < 0) {
+            return this;
+        }
+        int inner = 1;
+        for (int i = p + 1; i < card.length; i++) {
+            inner *= card[i];
+        }
+        int c = card[p];
+
+        // the entries that differ only in the variable land on the same index
+        long[] keyed = new long[indices.length];
+        for (int k = 0; k < keyed.length; k++) {
+            long index = indices[k] / (c * inner) * inner + indices[k] % inner;
+            keyed[k] = index << 32 | k;
+        }
+        Arrays.sort(keyed);
+        int[] resultIndices = new int[keyed.length];
+        double[] resultValues = new double[keyed.length];
+        int count = 0;
+        for (int k = 0; k < keyed.length; k++) {
+            int index = (int) (keyed[k] >>> 32);
+            double value = values[(int) keyed[k]];
+            if (count > 0 && resultIndices[count - 1] == index) {
+                resultValues[count - 1] += value;
+            }
+            else {
+                resultIndices[count] = index;
+                resultValues[count++] = value;
+            }
+        }
+        return new SparseFactor(remove(vars, p), remove(card, p), Arrays.copyOf(resultIndices, count),
+                Arrays.copyOf(resultValues, count));
+    }
+
+    /**
+     * fix a variable to an observed state and drop it from the scope
+     *
+     * @param var   the variable id
+     * @param state the observed state
+     * @return the reduced factor
+     */
+    SparseFactor reduce(int var, int state) {
+        int p = indexOf(var);
+        if (p < 0) {
+            return this;
+        }
+        int inner = 1;
+        for (int i = p + 1; i < card.length; i++) {
+            inner *= card[i];
+        }
+        int c = card[p];
+
+        int[] resultIndices = new int[indices.length];
+        double[] resultValues = new double[indices.length];
+        int count = 0;
+        for (int k = 0; k < indices.length; k++) {
+            if (indices[k] / inner % c == state) {
+                resultIndices[count] = indices[k] / (c * inner) * inner + indices[k] % inner;
+                resultValues[count++] = values[k];
+            }
+        }
+        return new SparseFactor(remove(vars, p), remove(card, p), Arrays.copyOf(resultIndices, count),
+                Arrays.copyOf(resultValues, count));
+    }
+
+    /**
+     * move an entry to another layout of the same states
+     *
+     * @param index   the index of the entry in its own table
+     * @param card    the number of states of each variable of the table
+     * @param strides the strides of the table
+     * @param target  the stride of each variable in the other layout, 0 to drop it
+     * @return the index in the other layout
+     */
+    private static long remap(int index, int[] card, int[] strides, int[] target) {
+        long result = 0;
+        for (int j = 0; j < card.length; j++) {
+            if (target[j] != 0) {
+                result += (long) (index / strides[j] % card[j]) * target[j];
+            }
+        }
+        return result;
+    }
+
+    private static int lowerBound(long[] sorted, long key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < key) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int[] strides(int[] card) {
+        int[] strides = new int[card.length];
+        int stride = 1;
+        for (int i = card.length - 1; i >= 0; i--) {
+            strides[i] = stride;
+            stride *= card[i];
+        }
+        return strides;
+    }
+
+    private static long size(int[] card) {
+        long size = 1;
+        for (int c : card) {
+            size *= c;
+        }
+        return size;
+    }
+
+    private static int[] remove(int[] array, int index) {
+        int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+}
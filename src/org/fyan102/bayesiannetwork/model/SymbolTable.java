@@ -0,0 +1,161 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of labels that maps every label to its dense integer id, its position in the
+ * list, in constant time. The state labels of a node are kept in one, so that the
+ * state of a label is found without scanning the states, and the network keeps the
+ * names of its nodes in one. Labels may repeat; a repeated label maps to its first
+ * position, as with {@link List#indexOf(Object)}. Adding a label is constant time,
+ * while changing or removing one renumbers the labels after it.
+ */
+public final class SymbolTable {
+    private final ArrayList<String> symbols;
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    /**
+     * Constructor of SymbolTable class, creating an empty table
+     */
+    public SymbolTable() {
+        symbols = new ArrayList<>();
+    }
+
+    /**
+     * Constructor of SymbolTable class
+     *
+     * @param symbols the labels, numbered from 0 in order
+     */
+    public SymbolTable(List<String> symbols) {
+        this.symbols = new ArrayList<>(symbols);
+        index();
+    }
+
+    /**
+     * find the id of a label
+     *
+     * @param symbol the label
+     * @return the id, or -1 if the label is not in the table
+     */
+    public int indexOf(String symbol) {
+        Integer id = ids.get(symbol);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * check if a label is in the table
+     *
+     * @param symbol the label
+     * @return true if the label has an id
+     */
+    public boolean contains(String symbol) {
+        return ids.containsKey(symbol);
+    }
+
+    /**
+     * find the id of a label, adding the label if it is new
+     *
+     * @param symbol the label
+     * @return the id of the label
+     */
+    public int intern(String symbol) {
+        int id = indexOf(symbol);
+        if (id < 0) {
+            id = symbols.size();
+            add(symbol);
+        }
+        return id;
+    }
+
+    /**
+     * append a label, even if it is already in the table
+     *
+     * @param symbol the label
+     */
+    public void add(String symbol) {
+        ids.putIfAbsent(symbol, symbols.size());
+        symbols.add(symbol);
+    }
+
+    /**
+     * Return the label of an id
+     *
+     * @param id the id
+     * @return the label
+     */
+    public String get(int id) {
+        return symbols.get(id);
+    }
+
+    /**
+     * change the label of an id
+     *
+     * @param id     the id
+     * @param symbol the new label
+     */
+    public void set(int id, String symbol) {
+        symbols.set(id, symbol);
+        index();
+    }
+
+    /**
+     * remove the label of an id. The labels after it move down by one.
+     *
+     * @param id the id
+     */
+    public void remove(int id) {
+        symbols.remove(id);
+        index();
+    }
+
+    /**
+     * remove every label
+     */
+    public void clear() {
+        symbols.clear();
+        ids.clear();
+    }
+
+    /**
+     * Return the number of labels
+     *
+     * @return the number of labels
+     */
+    public int size() {
+        return symbols.size();
+    }
+
+    /**
+     * check if the table has no labels
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return symbols.isEmpty();
+    }
+
+    /**
+     * copy the labels into a list, in the order of their ids. Editing the list has no
+     * effect on the table.
+     *
+     * @return the labels
+     */
+    public ArrayList<String> toList() {
+        return new ArrayList<>(symbols);
+    }
+
+    private void index() {
+        ids.clear();
+        for (int i = 0; i < symbols.size(); i++) {
+            ids.putIfAbsent(symbols.get(i), i);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return symbols.toString();
+    }
+}
@@ -0,0 +1,19 @@
+package org.fyan102.bayesiannetwork.model;
+
+/**
+ * Where the tables of a node or the potentials of a compiled junction tree are kept
+ */
+enum TableStorage {
+    /**
+     * double arrays on the heap
+     */
+    DOUBLE,
+    /**
+     * float arrays on the heap, half the memory of doubles
+     */
+    SINGLE,
+    /**
+     * doubles in {@link OffHeapTable}s outside the heap
+     */
+    OFF_HEAP
+}
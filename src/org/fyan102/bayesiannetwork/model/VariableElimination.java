@@ -0,0 +1,355 @@
+package org.fyan102.bayesiannetwork.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Exact inference by variable elimination. Each query first prunes the network to
+ * the nodes that can influence the target given the evidence, then multiplies their
+ * conditional probability tables, conditions them on the evidence and sums out every
+ * other variable one at a time. The cost is bounded by the largest intermediate
+ * factor rather than by the number of nodes.
+ * <p>
+ * In log space every factor holds the logarithms of its values: products become
+ * sums and summing out takes the log-sum-exp relative to the largest entry. Long
+ * evidence chains then no longer underflow to zero, at the price of one exponential
+ * per entry summed out.
+ * <p>
+ * Tables that are mostly zeros, such as those of logical gates and lookup nodes, are
+ * eliminated as {@link SparseFactor}s that keep only their non-zero entries. A table
+ * is taken as sparse when at most the sparse threshold of its entries are non-zero;
+ * every product and marginal involving a sparse table is then computed in sparse form
+ * and its result is checked against the threshold again.
+ */
+public class VariableElimination {
+    private final Network network;
+    private boolean logSpace;
+    private double sparseThreshold = 0.5;
+
+    /**
+     * Constructor of VariableElimination class
+     *
+     * @param network the network to query
+     */
+    public VariableElimination(Network network) {
+        this.network = network;
+        logSpace = network.isLogSpace();
+    }
+
+    /**
+     * check if the factors hold logarithms
+     *
+     * @return true in log space
+     */
+    public boolean isLogSpace() {
+        return logSpace;
+    }
+
+    /**
+     * choose between linear and log-space arithmetic. The default is the setting of
+     * the network.
+     *
+     * @param logSpace true to eliminate with logarithms
+     */
+    public void setLogSpace(boolean logSpace) {
+        this.logSpace = logSpace;
+    }
+
+    /**
+     * Return the largest fraction of non-zero entries for which a table is eliminated
+     * in sparse form
+     *
+     * @return the density threshold
+     */
+    public double getSparseThreshold() {
+        return sparseThreshold;
+    }
+
+    /**
+     * change the largest fraction of non-zero entries for which a table is eliminated
+     * in sparse form. The default of 0.5 covers the deterministic tables of binary
+     * nodes; 0 keeps every table dense. Sparse tables are only used in linear space,
+     * since the zeros of a table in log space are negative infinities.
+     *
+     * @param sparseThreshold the density threshold, between 0 and 1
+     */
+    public void setSparseThreshold(double sparseThreshold) {
+        if (!(sparseThreshold >= 0 && sparseThreshold <= 1)) {
+            throw new IllegalArgumentException("Invalid density threshold " + sparseThreshold);
+        }
+        this.sparseThreshold = sparseThreshold;
+    }
+
+    /**
+     * compute the posterior distribution of one node
+     *
+     * @param target   the node to query
+     * @param evidence the observed state index of each observed node
+     * @return the posterior over the states of the target
+     */
+    public double[] query(Node target, Map<Node, Integer> evidence) {
+        if (!network.getNodes().contains(target)) {
+            throw new IllegalArgumentException("Node " + target.getName() + " is not in the network");
+        }
+        validate(evidence);
+        Integer observed = evidence.get(target);
+        if (observed != null) {
+            return Factor.indicator(0, target.getNumberOfStates(), observed).getValues();
+        }
+        Set<Node> requisite = Relevance.requisite(Collections.singletonList(target), evidence);
+        Map<Node, Integer> ids = new IdentityHashMap<>();
+        List<Node> variables = index(requisite, ids);
+        List<Factor> factors = reducedFactors(requisite, ids, evidence);
+
+        Set<Integer> eliminate = new HashSet<>();
+        for (Node node : variables) {
+            if (node != target && !evidence.containsKey(node)) {
+                eliminate.add(ids.get(node));
+            }
+        }
+        Factor marginal = eliminate(factors, eliminate, variables, logSpace);
+        if (logSpace) {
+            marginal.logNormalize();
+            return marginal.exp().getValues();
+        }
+        marginal.normalize();
+        return marginal.getValues();
+    }
+
+    /**
+     * compute the posterior distributions of several nodes. Each target is answered
+     * from its own pruned subnetwork.
+     *
+     * @param targets  the nodes to query
+     * @param evidence the observed state index of each observed node
+     * @return the posterior over the states of each target, in the order of the targets
+     */
+    public Map<Node, double[]> query(Collection<Node> targets, Map<Node, Integer> evidence) {
+        Map<Node, double[]> results = new LinkedHashMap<>();
+        for (Node target : targets) {
+            results.put(target, query(target, evidence));
+        }
+        return results;
+    }
+
+    /**
+     * compute the probability of the evidence. Only the ancestors of the observed
+     * nodes are evaluated.
+     *
+     * @param evidence the observed state index of each observed node
+     * @return P(evidence)
+     */
+    public double probabilityOfEvidence(Map<Node, Integer> evidence) {
+        return logSpace ? Math.exp(logProbabilityOfEvidence(evidence)) : evidence(evidence, false);
+    }
+
+    /**
+     * compute the logarithm of the probability of the evidence, always in log space so
+     * that evidence too unlikely for a double still has a finite result
+     *
+     * @param evidence the observed state index of each observed node
+     * @return log P(evidence), or negative infinity if the evidence is impossible
+     */
+    public double logProbabilityOfEvidence(Map<Node, Integer> evidence) {
+        return evidence(evidence, true);
+    }
+
+    private double evidence(Map<Node, Integer> evidence, boolean log) {
+        validate(evidence);
+        Set<Node> ancestral = Relevance.ancestral(evidence.keySet());
+        Map<Node, Integer> ids = new IdentityHashMap<>();
+        List<Node> variables = index(ancestral, ids);
+        List<Factor> factors = reducedFactors(ancestral, ids, evidence);
+
+        Set<Integer> eliminate = new HashSet<>();
+        for (Node node : variables) {
+            if (!evidence.containsKey(node)) {
+                eliminate.add(ids.get(node));
+            }
+        }
+        return eliminate(factors, eliminate, variables, log).getValues()[0];
+    }
+
+    /**
+     * find the nodes whose conditional probabilities are needed to answer a query
+     *
+     * @param targets  the nodes to query
+     * @param evidence the observed state index of each observed node
+     * @return the requisite nodes
+     */
+    public Set<Node> getRequisiteNodes(Collection<Node> targets, Map<Node, Integer> evidence) {
+        return Relevance.requisite(targets, evidence);
+    }
+
+    static void validate(Map<Node, Integer> evidence) {
+        for (Map.Entry<Node, Integer> entry : evidence.entrySet()) {
+            Node node = entry.getKey();
+            int state = entry.getValue();
+            if (state < 0 || state >= node.getNumberOfStates()) {
+                throw new IllegalArgumentException("Invalid state " + state + " for node " + node.getName());
+            }
+        }
+    }
+
+    /**
+     * number the nodes whose tables are used and the parents in their scopes
+     */
+    static List<Node> index(Set<Node> nodes, Map<Node, Integer> ids) {
+        List<Node> variables = new ArrayList<>();
+        for (Node node : nodes) {
+            add(node, ids, variables);
+            for (Node link : node.getChain()) {
+                add(link, ids, variables);
+            }
+            for (Node parent : node.getParents()) {
+                add(parent, ids, variables);
+            }
+        }
+        return variables;
+    }
+
+    private static void add(Node node, Map<Node, Integer> ids, List<Node> variables) {
+        if (!ids.containsKey(node)) {
+            ids.put(node, variables.size());
+            variables.add(node);
+        }
+    }
+
+    static List<Factor> reducedFactors(Set<Node> nodes, Map<Node, Integer> ids, Map<Node, Integer> evidence) {
+        List<Factor> factors = new ArrayList<>();
+        for (Node node : nodes) {
+            for (Node link : node.getChain()) {
+                factors.add(reducedFactor(link, ids, evidence));
+            }
+            factors.add(reducedFactor(node, ids, evidence));
+        }
+        return factors;
+    }
+
+    private static Factor reducedFactor(Node node, Map<Node, Integer> ids, Map<Node, Integer> evidence) {
+        Factor factor = Factor.of(node, ids);
+        for (Node member : node.getFactorParents()) {
+            Integer state = evidence.get(member);
+            if (state != null) {
+                factor = factor.reduce(ids.get(member), state);
+            }
+        }
+        Integer state = evidence.get(node);
+        if (state != null) {
+            factor = factor.reduce(ids.get(node), state);
+        }
+        return factor;
+    }
+
+    /**
+     * sum out a set of variables, always picking the variable whose elimination
+     * creates the smallest factor next
+     *
+     * @param log true to work with the logarithms of the factors
+     * @return the product of the factors that remain, in log space if log is true
+     */
+    private Factor eliminate(List<Factor> factors, Set<Integer> eliminate, List<Node> variables, boolean log) {
+        int[] card = new int[variables.size()];
+        for (int v = 0; v < card.length; v++) {
+            card[v] = variables.get(v).getNumberOfStates();
+        }
+        boolean[] selected = new boolean[card.length];
+        for (int var : eliminate) {
+            selected[var] = true;
+        }
+        List<int[]> scopes = new ArrayList<>();
+        for (Factor factor : factors) {
+            scopes.add(factor.getVars());
+        }
+
+        // the tables sparse enough are kept apart and never turned dense while they
+        // stay below the threshold
+        List<Factor> pool = new ArrayList<>();
+        List<SparseFactor> sparse = new ArrayList<>();
+        for (Factor factor : factors) {
+            if (log) {
+                pool.add(factor.log());
+            }
+            else {
+                add(factor, pool, sparse);
+            }
+        }
+        for (int var : EliminationOrder.minWeight(card, scopes, selected)) {
+            SparseFactor sparseProduct = null;
+            List<SparseFactor> sparseRest = new ArrayList<>();
+            for (SparseFactor factor : sparse) {
+                if (factor.indexOf(var) >= 0) {
+                    sparseProduct = sparseProduct == null ? factor : sparseProduct.product(factor);
+                }
+                else {
+                    sparseRest.add(factor);
+                }
+            }
+            // once a sparse table takes part, the dense ones are multiplied into it
+            // without building their dense product
+            Factor product = null;
+            List<Factor> rest = new ArrayList<>();
+            for (Factor factor : pool) {
+                if (factor.indexOf(var) < 0) {
+                    rest.add(factor);
+                }
+                else if (sparseProduct != null) {
+                    sparseProduct = sparseProduct.product(SparseFactor.of(factor));
+                }
+                else {
+                    product = product == null ? factor : log ? product.logProduct(factor) : product.product(factor);
+                }
+            }
+            if (sparseProduct != null) {
+                add(sparseProduct.sumOut(var), rest, sparseRest);
+            }
+            else if (product != null) {
+                if (log) {
+                    rest.add(product.logSumOut(var));
+                }
+                else {
+                    add(product.sumOut(var), rest, sparseRest);
+                }
+            }
+            pool = rest;
+            sparse = sparseRest;
+        }
+        for (SparseFactor factor : sparse) {
+            pool.add(factor.toFactor());
+        }
+
+        Factor result = Factor.constant(log ? 0.0 : 1.0);
+        for (Factor factor : pool) {
+            result = log ? result.logProduct(factor) : result.product(factor);
+        }
+        return result;
+    }
+
+    /**
+     * put a factor into the dense or the sparse pool by its density
+     */
+    private void add(Factor factor, List<Factor> pool, List<SparseFactor> sparse) {
+        if (sparseThreshold > 0 && SparseFactor.density(factor) <= sparseThreshold) {
+            sparse.add(SparseFactor.of(factor));
+        }
+        else {
+            pool.add(factor);
+        }
+    }
+
+    private void add(SparseFactor factor, List<Factor> pool, List<SparseFactor> sparse) {
+        if (factor.density() <= sparseThreshold) {
+            sparse.add(factor);
+        }
+        else {
+            pool.add(factor.toFactor());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.fyan102.bayesiannetwork.model;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The inner loops of the factor operations on the JDK Vector API. Only loaded by
+ * {@link FactorKernels} when the jdk.incubator.vector module is present; the tail of
+ * every run that does not fill a whole vector is done with plain loops.
+ */
+final class VectorKernels extends FactorKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    void multiply(double[] a, int ai, double[] b, int bi, double[] out, int o, int n) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, ai + i)
+                    .mul(DoubleVector.fromArray(SPECIES, b, bi + i))
+                    .intoArray(out, o + i);
+        }
+        for (; i < n; i++) {
+            out[o + i] = a[ai + i] * b[bi + i];
+        }
+    }
+
+    @Override
+    void scale(double[] a, int ai, double factor, double[] out, int o, int n) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, ai + i).mul(factor).intoArray(out, o + i);
+        }
+        for (; i < n; i++) {
+            out[o + i] = a[ai + i] * factor;
+        }
+    }
+
+    @Override
+    void addPairs(double[] a, int ai, double[] b, int bi, double[] out, int o, int n) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, ai + i)
+                    .add(DoubleVector.fromArray(SPECIES, b, bi + i))
+                    .intoArray(out, o + i);
+        }
+        for (; i < n; i++) {
+            out[o + i] = a[ai + i] + b[bi + i];
+        }
+    }
+
+    @Override
+    void shift(double[] a, int ai, double constant, double[] out, int o, int n) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, ai + i).add(constant).intoArray(out, o + i);
+        }
+        for (; i < n; i++) {
+            out[o + i] = a[ai + i] + constant;
+        }
+    }
+
+    @Override
+    void add(double[] a, int ai, double[] out, int o, int n) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, out, o + i)
+                    .add(DoubleVector.fromArray(SPECIES, a, ai + i))
+                    .intoArray(out, o + i);
+        }
+        for (; i < n; i++) {
+            out[o + i] += a[ai + i];
+        }
+    }
+
+    @Override
+    void max(double[] a, int ai, double[] out, int o, int n) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, out, o + i)
+                    .max(DoubleVector.fromArray(SPECIES, a, ai + i))
+                    .intoArray(out, o + i);
+        }
+        for (; i < n; i++) {
+            out[o + i] = Math.max(out[o + i], a[ai + i]);
+        }
+    }
+
+    @Override
+    double sum(double[] a, int ai, int n) {
+        int i = 0;
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            sums = sums.add(DoubleVector.fromArray(SPECIES, a, ai + i));
+        }
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            sum += a[ai + i];
+        }
+        return sum;
+    }
+}
@@ -5,6 +5,8 @@ import java.awt.*;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import org.fyan102.bayesiannetwork.model.Node;
 import org.fyan102.bayesiannetwork.model.Network;
 
@@ -181,10 +183,11 @@ public class NetworkView extends JPanel implements MouseListener {
         links.clear();
         
         // Create new links based on parent-child relationships
+        Map<Node, NodeView> views = viewsByNode();
         for (NodeView nodeView : nodes) {
             Node node = nodeView.getNode();
             for (Node parent : node.getParents()) {
-                NodeView parentView = findNodeView(parent);
+                NodeView parentView = views.get(parent);
                 if (parentView != null) {
                     Link link = new Link();
                     
@@ -202,13 +205,13 @@ public class NetworkView extends JPanel implements MouseListener {
         repaint();
     }
     
-    private NodeView findNodeView(Node node) {
+    // Index the views by their nodes once, instead of scanning them for every link
+    private Map<Node, NodeView> viewsByNode() {
+        Map<Node, NodeView> views = new IdentityHashMap<>();
         for (NodeView nodeView : nodes) {
-            if (nodeView.getNode() == node) {
-                return nodeView;
-            }
+            views.putIfAbsent(nodeView.getNode(), nodeView);
         }
-        return null;
+        return views;
     }
     
     @Override
@@ -2,10 +2,12 @@ package org.fyan102.bayesiannetwork.ui;
 
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.ArrayList;
+import org.fyan102.bayesiannetwork.model.MixedRadix;
 import org.fyan102.bayesiannetwork.model.Node;
 
 public class NodeView extends JPanel {
@@ -443,8 +445,10 @@ public class NodeView extends JPanel {
         ));
         panel.setBackground(BACKGROUND_COLOR);
         
-        // Get all possible parent state combinations
-        ArrayList<ArrayList<String>> parentStateCombinations = getParentStateCombinations();
+        // Walk all parent state combinations in the order of the table rows
+        ArrayList<Node> parents = node.getParents();
+        MixedRadix combinations = MixedRadix.ofParents(node);
+        int rows = parents.isEmpty() ? 0 : combinations.size();
         
         // Create column names
         String[] columnNames = new String[node.getNumberOfStates() + 1];
@@ -454,30 +458,22 @@ public class NodeView extends JPanel {
         }
         
         // Create table data
-        Object[][] data = new Object[parentStateCombinations.size()][node.getNumberOfStates() + 1];
-        for (int i = 0; i < parentStateCombinations.size(); i++) {
-            ArrayList<String> combination = parentStateCombinations.get(i);
-            
+        Object[][] data = new Object[rows][node.getNumberOfStates() + 1];
+        for (int i = 0; i < rows; i++, combinations.next()) {
             // Create condition text
             StringBuilder conditionText = new StringBuilder("If ");
-            for (int j = 0; j < node.getParents().size(); j++) {
+            for (int j = 0; j < parents.size(); j++) {
                 if (j > 0) conditionText.append(" AND ");
-                conditionText.append(node.getParents().get(j).getName())
+                conditionText.append(parents.get(j).getName())
                            .append(" = ")
-                           .append(combination.get(j));
+                           .append(parents.get(j).getState(combinations.getDigit(j)));
             }
             data[i][0] = conditionText.toString();
             
             // Add probability values
-            int rowIndex = getConditionalProbabilityRowIndex(combination);
-            if (rowIndex >= 0 && rowIndex < node.getProbs().size()) {
-                ArrayList<Double> probs = node.getProbs().get(rowIndex);
+            if (i < node.getNumberOfRows()) {
                 for (int j = 0; j < node.getNumberOfStates(); j++) {
-                    if (j < probs.size()) {
-                        data[i][j + 1] = String.format("%.2f", probs.get(j));
-                    } else {
-                        data[i][j + 1] = "0.00";
-                    }
+                    data[i][j + 1] = String.format("%.2f", node.getProb(i, j));
                 }
             }
         }
@@ -490,6 +486,23 @@ public class NodeView extends JPanel {
                 return column > 0;
             }
         };
+        // Write edited probabilities back to the node
+        model.addTableModelListener(e -> {
+            int row = e.getFirstRow();
+            int column = e.getColumn();
+            if (e.getType() != TableModelEvent.UPDATE || row < 0 || row != e.getLastRow() || column < 1) {
+                return;
+            }
+            try {
+                double value = Double.parseDouble(model.getValueAt(row, column).toString());
+                // table rows are in the order of the conditional probability rows
+                if (row < node.getNumberOfRows() && column - 1 < node.getNumberOfStates()) {
+                    node.setProb(row, column - 1, value);
+                }
+            } catch (NumberFormatException ex) {
+                // Invalid values are reported by the validation button
+            }
+        });
         JTable table = new JTable(model);
         
         table.setFont(STATE_FONT);
@@ -665,52 +678,6 @@ public class NodeView extends JPanel {
         return true;
     }
 
-    private ArrayList<ArrayList<String>> getParentStateCombinations() {
-        ArrayList<ArrayList<String>> combinations = new ArrayList<>();
-        ArrayList<Node> parents = node.getParents();
-        
-        if (parents.isEmpty()) {
-            return combinations;
-        }
-        
-        // Initialize with first parent's states
-        for (String state : parents.get(0).getStates()) {
-            ArrayList<String> combination = new ArrayList<>();
-            combination.add(state);
-            combinations.add(combination);
-        }
-        
-        // Add states from remaining parents
-        for (int i = 1; i < parents.size(); i++) {
-            ArrayList<ArrayList<String>> newCombinations = new ArrayList<>();
-            for (ArrayList<String> combination : combinations) {
-                for (String state : parents.get(i).getStates()) {
-                    ArrayList<String> newCombination = new ArrayList<>(combination);
-                    newCombination.add(state);
-                    newCombinations.add(newCombination);
-                }
-            }
-            combinations = newCombinations;
-        }
-        
-        return combinations;
-    }
-
-    private int getConditionalProbabilityRowIndex(ArrayList<String> combination) {
-        ArrayList<Node> parents = node.getParents();
-        int rowIndex = 0;
-        int multiplier = 1;
-        
-        for (int i = parents.size() - 1; i >= 0; i--) {
-            Node parent = parents.get(i);
-            int stateIndex = parent.getStates().indexOf(combination.get(i));
-            rowIndex += stateIndex * multiplier;
-            multiplier *= parent.getNumberOfStates();
-        }
-        
-        return rowIndex;
-    }
-
     @Override
     protected void paintComponent(Graphics g) {
         Graphics2D g2d = (Graphics2D) g;
@@ -2,8 +2,10 @@ package org.fyan102.bayesiannetwork.util;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import org.fyan102.bayesiannetwork.model.Network;
 import org.fyan102.bayesiannetwork.model.NetworkData;
 import org.fyan102.bayesiannetwork.model.Node;
+import org.fyan102.bayesiannetwork.model.NoisyMax;
 import org.fyan102.bayesiannetwork.ui.NodeView;
 import org.fyan102.bayesiannetwork.ui.NetworkView;
 import org.fyan102.bayesiannetwork.ui.Link;
@@ -14,7 +16,8 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -32,26 +35,39 @@ public class NetworkFileHandler {
             
             // Set basic node information
             nodeData.setName(node.getName());
-            nodeData.setStates(new ArrayList<>(node.getStates()));
+            nodeData.setStates(node.getStates());
             
-            // Convert beliefs to array
-            double[] beliefs = new double[node.getBeliefs().size()];
-            for (int i = 0; i < beliefs.length; i++) {
-                beliefs[i] = node.getBeliefs().get(i);
-            }
-            nodeData.setBeliefs(beliefs);
+            nodeData.setBeliefs(node.getBeliefArray());
             
-            // Convert conditional probabilities to 2D array
-            List<ArrayList<Double>> probs = node.getProbs();
-            double[][] condProbs = new double[probs.size()][];
-            for (int i = 0; i < probs.size(); i++) {
-                List<Double> row = probs.get(i);
-                condProbs[i] = new double[row.size()];
-                for (int j = 0; j < row.size(); j++) {
-                    condProbs[i][j] = row.get(j);
+            // Noisy-MAX nodes keep their parameters instead of the expanded table
+            NoisyMax noisyMax = node.getNoisyMax();
+            if (noisyMax != null) {
+                double[][][] causes = new double[noisyMax.getNumberOfParents()][][];
+                for (int i = 0; i < causes.length; i++) {
+                    causes[i] = new double[noisyMax.getNumberOfParentStates(i)][];
+                    for (int j = 0; j < causes[i].length; j++) {
+                        causes[i][j] = noisyMax.getCause(i, j);
+                    }
                 }
+                nodeData.setNoisyMaxCauses(causes);
+                nodeData.setNoisyMaxLeak(noisyMax.getLeak());
+                nodeData.setConditionalProbabilities(new double[0][]);
+            }
+            else if (node.getContextTree() != null) {
+                // Context trees keep every distinct context once
+                nodeData.setContextTree(new NetworkData.ContextData(node.getContextTree()));
+                nodeData.setConditionalProbabilities(new double[0][]);
+            }
+            else {
+                // Split the flat conditional probability table into rows
+                double[] probs = node.getProbArray();
+                int width = node.getNumberOfStates();
+                double[][] condProbs = new double[node.getNumberOfRows()][];
+                for (int i = 0; i < condProbs.length; i++) {
+                    condProbs[i] = Arrays.copyOfRange(probs, i * width, (i + 1) * width);
+                }
+                nodeData.setConditionalProbabilities(condProbs);
             }
-            nodeData.setConditionalProbabilities(condProbs);
             
             // Set node position
             Point location = nodeView.getLocation();
@@ -71,6 +87,10 @@ public class NetworkFileHandler {
         
         // Convert links
         List<NetworkData.LinkData> linkDataList = new ArrayList<>();
+        Map<Node, NodeView> views = new IdentityHashMap<>();
+        for (NodeView nodeView : networkView.getNodes()) {
+            views.putIfAbsent(nodeView.getNode(), nodeView);
+        }
         for (NodeView nodeView : networkView.getNodes()) {
             Node node = nodeView.getNode();
             for (Node parent : node.getParents()) {
@@ -79,7 +99,7 @@ public class NetworkFileHandler {
                 linkData.setToNode(node.getName());
                 
                 // Create a simple straight line between nodes
-                NodeView parentView = findNodeView(networkView, parent);
+                NodeView parentView = views.get(parent);
                 if (parentView != null) {
                     // Calculate connection points on the edges of the nodes
                     Point from = calculateConnectionPoint(parentView, nodeView);
@@ -100,15 +120,6 @@ public class NetworkFileHandler {
         }
     }
 
-    private static NodeView findNodeView(NetworkView networkView, Node node) {
-        for (NodeView nodeView : networkView.getNodes()) {
-            if (nodeView.getNode() == node) {
-                return nodeView;
-            }
-        }
-        return null;
-    }
-
     private static Point calculateConnectionPoint(NodeView from, NodeView to) {
         Point fromCenter = new Point(
             from.getX() + from.getWidth() / 2,
@@ -141,49 +152,51 @@ public class NetworkFileHandler {
         networkView.getNodes().clear();
         networkView.getLinks().clear();
         networkView.removeAll();
-
-        // Create a map to store nodes by name for easy lookup
-        Map<String, Node> nodeMap = new HashMap<>();
-        Map<String, NodeView> nodeViewMap = new HashMap<>();
+        Network network = networkView.getNetwork();
+        network.setNodes(new ArrayList<>());
 
         // First pass: Create all nodes
         for (NetworkData.NodeData nodeData : networkData.getNodes()) {
             Node node = new Node(nodeData.getName());
             node.setStates(new ArrayList<>(nodeData.getStates()));
             
-            // Convert beliefs array to ArrayList
-            ArrayList<Double> beliefs = new ArrayList<>();
-            for (double belief : nodeData.getBeliefs()) {
-                beliefs.add(belief);
-            }
-            node.setBeliefs(beliefs);
+            node.setBeliefs(nodeData.getBeliefs());
             
-            // Convert conditional probabilities 2D array to ArrayList<ArrayList<Double>>
-            ArrayList<ArrayList<Double>> condProbs = new ArrayList<>();
-            for (double[] row : nodeData.getConditionalProbabilities()) {
-                ArrayList<Double> probRow = new ArrayList<>();
-                for (double prob : row) {
-                    probRow.add(prob);
-                }
-                condProbs.add(probRow);
+            // Join the rows of conditional probabilities into one flat table
+            double[][] condProbs = nodeData.getConditionalProbabilities();
+            int width = node.getNumberOfStates();
+            double[] probs = new double[condProbs.length * width];
+            for (int i = 0; i < condProbs.length; i++) {
+                System.arraycopy(condProbs[i], 0, probs, i * width, Math.min(width, condProbs[i].length));
             }
-            node.setProbs(condProbs);
+            node.setProbArray(probs);
 
             NodeView nodeView = new NodeView(node);
             nodeView.setLocation(nodeData.getX(), nodeData.getY());
             
-            nodeMap.put(node.getName(), node);
-            nodeViewMap.put(node.getName(), nodeView);
-            
             networkView.addNode(nodeView);
         }
 
-        // Second pass: Set up parent relationships
+        // Second pass: Set up parent relationships, finding the nodes by name
         for (NetworkData.NodeData nodeData : networkData.getNodes()) {
-            Node node = nodeMap.get(nodeData.getName());
+            Node node = network.getNode(nodeData.getName());
+            List<Node> parents = new ArrayList<>();
             for (String parentName : nodeData.getParentNames()) {
-                Node parent = nodeMap.get(parentName);
+                Node parent = network.getNode(parentName);
                 if (parent != null) {
+                    parents.add(parent);
+                }
+            }
+            // Attach noisy-MAX parameters and context trees together with the
+            // parents, so the full table over the parents is never expanded
+            if (nodeData.getNoisyMaxLeak() != null) {
+                node.setNoisyMax(parents, new NoisyMax(nodeData.getNoisyMaxCauses(), nodeData.getNoisyMaxLeak()));
+            }
+            else if (nodeData.getContextTree() != null) {
+                node.setContextTree(parents, nodeData.getContextTree().toContextTree());
+            }
+            else {
+                for (Node parent : parents) {
                     node.addParent(parent);
                 }
             }